@@ -1,11 +1,14 @@
 package com.akiramenai.videobackend;
 
+import com.akiramenai.videobackend.config.RunModeEnvironmentListener;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 @SpringBootApplication
 public class VideoBackend {
   public static void main(String[] args) {
-    SpringApplication.run(VideoBackend.class, args);
+    SpringApplication application = new SpringApplication(VideoBackend.class);
+    application.addListeners(new RunModeEnvironmentListener());
+    application.run(args);
   }
 }
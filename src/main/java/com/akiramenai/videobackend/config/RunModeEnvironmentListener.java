@@ -0,0 +1,28 @@
+package com.akiramenai.videobackend.config;
+
+import com.akiramenai.videobackend.model.ApplicationRunMode;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.Map;
+
+/// Worker nodes don't serve any HTTP traffic, so in `Worker` run mode the application is started without the web
+/// layer. This has to be decided before the application context gets created, hence the environment listener.
+public class RunModeEnvironmentListener implements ApplicationListener<ApplicationEnvironmentPreparedEvent> {
+  private static final String RUN_MODE_PROPERTY = "application.default-values.run-mode";
+
+  @Override
+  public void onApplicationEvent(ApplicationEnvironmentPreparedEvent event) {
+    ConfigurableEnvironment environment = event.getEnvironment();
+    String runMode = environment.getProperty(RUN_MODE_PROPERTY, ApplicationRunMode.All.name());
+    if (!runMode.equalsIgnoreCase(ApplicationRunMode.Worker.name())) {
+      return;
+    }
+
+    environment.getPropertySources().addFirst(
+        new MapPropertySource("workerRunMode", Map.of("spring.main.web-application-type", "none"))
+    );
+  }
+}
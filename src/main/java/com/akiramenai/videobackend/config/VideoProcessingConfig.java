@@ -1,12 +1,23 @@
 package com.akiramenai.videobackend.config;
 
+import com.akiramenai.videobackend.model.ApplicationRunMode;
+import com.akiramenai.videobackend.model.HlsSegmentType;
+import com.akiramenai.videobackend.model.StoryboardLayout;
+import com.akiramenai.videobackend.model.VideoCodec;
+import com.akiramenai.videobackend.model.VideoRendition;
+import com.akiramenai.videobackend.model.VideoSourceInfo;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 
 @Component
 @ConfigurationProperties(prefix = "application.default-values")
@@ -22,20 +33,474 @@ public class VideoProcessingConfig {
   @Getter
   private List<String> videoQualities;
 
+  // Decode the source once and encode every rendition from the same FFMPEG process
+  @Setter
+  @Getter
+  private boolean singlePassEncoding = true;
+
+  // Container of the HLS segments, `MpegTs` or `Fmp4` (CMAF)
+  @Setter
+  @Getter
+  private HlsSegmentType hlsSegmentType = HlsSegmentType.MpegTs;
+
+  // Every rendition is written as one media file that its playlist addresses with `#EXT-X-BYTERANGE`, instead of
+  // thousands of small segment files
+  @Setter
+  @Getter
+  private boolean singleFileRenditions = false;
+
+  // Long videos get split at keyframes and their chunks are encoded in parallel
+  @Setter
+  @Getter
+  private boolean chunkedEncoding = false;
+
+  @Setter
+  @Getter
+  private long chunkedEncodingMinDurationInSeconds = 1200;
+
+  @Setter
+  @Getter
+  private long chunkDurationInSeconds = 300;
+
+  // How many chunks of the same video are encoded at the same time
+  @Setter
+  @Getter
+  private int chunkParallelism = 4;
+
+  // Bitrates are fitted to each video with a quick constant quality encode of a few short windows of it. Otherwise
+  // every video of the same height gets the same bitrate.
+  @Setter
+  @Getter
+  private boolean perTitleBitrates = false;
+
+  @Setter
+  @Getter
+  private int complexityProbeWindows = 3;
+
+  @Setter
+  @Getter
+  private double complexityProbeWindowInSeconds = 4;
+
+  // The quality the probe encodes at. Lower is better.
+  @Setter
+  @Getter
+  private int complexityProbeCrf = 23;
+
+  // A fitted bitrate never drops below this fraction of the default bitrate of its height
+  @Setter
+  @Getter
+  private double minBitrateFraction = 0.25;
+
+  // Seek-bar previews and a poster frame come out of the same decode pass as the renditions
+  @Setter
+  @Getter
+  private boolean storyboard = false;
+
+  @Setter
+  @Getter
+  private double storyboardIntervalInSeconds = 5;
+
+  @Setter
+  @Getter
+  private int storyboardThumbnailWidth = 160;
+
+  @Setter
+  @Getter
+  private int storyboardColumns = 10;
+
+  @Setter
+  @Getter
+  private int storyboardRows = 10;
+
+  @Setter
+  @Getter
+  private int posterMaxWidth = 1280;
+
+  // How many videos are processed at the same time
+  @Setter
+  @Getter
+  private int concurrentJobs = 1;
+
+  // Thread budget handed to each FFMPEG/Whisper process. `0` splits the available cores evenly between the jobs.
+  @Setter
+  private int threadsPerJob = 0;
+
+  // Share of the thread budget Whisper gets while it transcribes alongside the encode, which gets the rest
+  @Setter
+  @Getter
+  private double transcriptionThreadShare = 0.25;
+
+  // How many videos of the same uploader are processed at the same time across all the workers. `0` means no limit.
+  @Setter
+  @Getter
+  private int maxConcurrentJobsPerUploader = 0;
+
+  // Uploads up to this size skip ahead of the regular queue, since they're done quickly. `0` disables it.
+  @Setter
+  @Getter
+  private long priorityLaneMaxUploadSizeInBytes = 209715200;
+
+  // Videos added to an already published course skip ahead as well, since learners are waiting for them
+  @Setter
+  @Getter
+  private boolean priorityLaneForPublishedCourses = true;
+
+  // Upload admission. Every instructor gets a token bucket of `uploadBurstPerInstructor` uploads that refills at
+  // `uploadsPerMinutePerInstructor`, and all the uploads to a node share one of `uploadBurst`/`uploadsPerMinute`.
+  // Uploads beyond that are turned away with a `429`. `0` per minute disables a bucket.
+  @Setter
+  @Getter
+  private double uploadsPerMinutePerInstructor = 6;
+
+  @Setter
+  @Getter
+  private int uploadBurstPerInstructor = 10;
+
+  @Setter
+  @Getter
+  private double uploadsPerMinute = 120;
+
+  @Setter
+  @Getter
+  private int uploadBurst = 200;
+
+  // Uploads are turned away while this many bytes of source are waiting in the queue. `0` means no limit.
+  @Setter
+  @Getter
+  private long maxQueuedUploadBytes = 214748364800L;
+
+  // Streamed uploads of fragmentable containers get encoded while they're still coming in, instead of after the last
+  // byte. Everything else is spooled and encoded once it's complete.
+  @Setter
+  @Getter
+  private boolean streamingIngest = false;
+
+  // A streamed upload that doesn't grow for this long is considered stalled. FFMPEG waits this long for more data at
+  // the end of the file as well, so it's also how far the encode trails behind the end of the upload.
+  @Setter
+  @Getter
+  private long streamingIngestStallTimeoutInSeconds = 15;
+
+  // The length of a video isn't known while it's being uploaded, so an encode that follows the upload gets a fixed
+  // deadline instead of one that scales with the source
+  @Setter
+  @Getter
+  private long streamingEncodeTimeoutInSeconds = 21600;
+
+  // Chunk size of resumable uploads whose uploader hasn't picked one. Uploaders have to stay between the minimum and
+  // the maximum, a chunk is a single request body and every chunk is a file of its own until the upload is complete.
+  @Setter
+  @Getter
+  private long uploadChunkSizeInBytes = 8L * 1024 * 1024;
+
+  @Setter
+  @Getter
+  private long minUploadChunkSizeInBytes = 1024 * 1024;
+
+  @Setter
+  @Getter
+  private long maxUploadChunkSizeInBytes = 64L * 1024 * 1024;
+
+  // Resumable uploads that haven't been completed by then are thrown away, along with their chunks
+  @Setter
+  @Getter
+  private long uploadSessionExpiryInHours = 24;
+
+  // Encoder presets ordered from the most efficient to the fastest. With adaptive presets the jobs move towards the
+  // faster ones while the backlog is long, and back once it has drained.
+  @Setter
+  @Getter
+  private List<String> cpuEncoderPresets = List.of("medium", "faster", "veryfast");
+
+  @Setter
+  @Getter
+  private List<String> gpuEncoderPresets = List.of("p6", "p4", "p2");
+
+  @Setter
+  @Getter
+  private List<String> x265EncoderPresets = List.of("fast", "faster", "veryfast");
+
+  @Setter
+  @Getter
+  private List<String> svtAv1EncoderPresets = List.of("8", "10", "12");
+
+  // Codecs encoded next to H.264 at some heights, e.g. `1080: [Hevc, Av1]`. The master playlist lists them as separate
+  // variants, so the players that can decode them get the same quality at a lower bitrate. HEVC and AV1 can't go in
+  // MPEG-TS segments, so they're only encoded with `Fmp4` segments.
+  @Setter
+  @Getter
+  private Map<Integer, List<VideoCodec>> additionalCodecs = Map.of();
+
+  @Setter
+  @Getter
+  private boolean adaptiveEncoderPresets = false;
+
+  // At this many queued jobs the next job is encoded one preset faster
+  @Setter
+  @Getter
+  private int backlogHighWatermark = 10;
+
+  // At this many queued jobs (or fewer) the next job is encoded one preset slower
+  @Setter
+  @Getter
+  private int backlogLowWatermark = 2;
+
+  // While there is a backlog, encodes slower than this (in multiples of realtime) count as falling behind as well
+  @Setter
+  @Getter
+  private double minEncodeSpeed = 1.0;
+
+  // Videos encoded with a fast preset get re-encoded with the efficient one in the background, once nothing else waits
+  @Setter
+  @Getter
+  private boolean backgroundReencode = false;
+
+  // Deadlines of the external processes scale with the source's duration. A process that runs past its deadline is
+  // killed, so a hung FFMPEG/Whisper can't block its worker forever.
+  @Setter
+  @Getter
+  private long minProcessTimeoutInSeconds = 300;
+
+  // Wall-clock seconds an FFMPEG encode gets per second of source
+  @Setter
+  @Getter
+  private double encodeTimeoutPerSourceSecond = 10;
+
+  // Wall-clock seconds Whisper gets per second of source
+  @Setter
+  @Getter
+  private double transcriptionTimeoutPerSourceSecond = 10;
+
+  // Wall-clock seconds the quick passes (audio extraction, fingerprinting, chunk splitting) get per second of source
+  @Setter
+  @Getter
+  private double auxiliaryTimeoutPerSourceSecond = 1;
+
+  @Setter
+  @Getter
+  private long probeTimeoutInSeconds = 60;
+
+  // How much of the audio, from the start, goes into the fingerprint. It is checked before the video gets encoded, so
+  // stolen videos are turned away early.
+  @Setter
+  @Getter
+  private int fingerprintLengthInSeconds = 120;
+
+  // How long in-flight jobs are given to finish when the application is shutting down
+  @Setter
+  @Getter
+  private long shutdownGracePeriodInSeconds = 30;
+
+  // How many times a failed job is attempted before it is marked as `Failed`
+  @Setter
+  @Getter
+  private int maxProcessingAttempts = 3;
+
+  // A failed job waits this long before its first retry, and twice as long before every retry after that
+  @Setter
+  @Getter
+  private long retryBackoffInSeconds = 30;
+
+  @Setter
+  @Getter
+  private long maxRetryBackoffInSeconds = 1800;
+
+  // A running job whose lease hasn't been renewed in this long is considered abandoned and can be claimed by another
+  // worker. Workers renew the leases of their jobs every third of this duration.
+  @Setter
+  @Getter
+  private long jobLeaseDurationInSeconds = 90;
+
+  // `Api` nodes only accept uploads, `Worker` nodes only process videos (without a web layer) and `All` does both.
+  // Api and worker nodes must share the video directory (e.g. over NFS) at the same path: the jobs carry the absolute
+  // path of the upload, and the renditions, upload sessions and partial uploads are read straight off the disk.
+  @Setter
+  @Getter
+  private ApplicationRunMode runMode = ApplicationRunMode.All;
+
+  // Runtime stats of the video processing pool. These aren't configurable.
+  @Getter
+  private final AtomicInteger activeJobCount = new AtomicInteger(0);
+
+  @Setter
+  private IntSupplier queueDepthSupplier = () -> 0;
+
+  private final AtomicInteger encoderPresetTier = new AtomicInteger(0);
+
+  // Moving average of how many seconds of video are encoded per second, `0` until the first job is done
+  @Getter
+  private volatile double observedEncodeSpeed = 0;
+
   public boolean useGpu() {
     return useGpu;
   }
 
-  public List<int[]> getVideoDimensions() {
-    List<int[]> dimensions = new ArrayList<>();
+  public int getThreadsPerJob() {
+    if (threadsPerJob > 0) {
+      return threadsPerJob;
+    }
+
+    int availableCores = Runtime.getRuntime().availableProcessors();
+    return Math.max(1, availableCores / Math.max(1, concurrentJobs));
+  }
+
+  public int getTranscriptionThreads() {
+    int threads = (int) Math.round(getThreadsPerJob() * Math.clamp(transcriptionThreadShare, 0, 1));
+    return Math.clamp(threads, 1, Math.max(1, getThreadsPerJob() - 1));
+  }
+
+  // What's left for the encode while Whisper runs next to it
+  public int getEncodeThreads() {
+    return Math.max(1, getThreadsPerJob() - getTranscriptionThreads());
+  }
+
+  public int getHlsPlaylistVersion() {
+    return hlsSegmentType.playlistVersion(singleFileRenditions);
+  }
+
+  public Duration getJobLeaseDuration() {
+    return Duration.ofSeconds(jobLeaseDurationInSeconds);
+  }
+
+  public Duration getHeartbeatInterval() {
+    return Duration.ofSeconds(Math.max(1, jobLeaseDurationInSeconds / 3));
+  }
+
+  /// `attempts` is how many times the job has been attempted so far, including the one that has just failed.
+  public Duration getRetryBackoff(int attempts) {
+    long multiplier = 1L << Math.min(Math.max(0, attempts - 1), 20);
+    return Duration.ofSeconds(Math.min(maxRetryBackoffInSeconds, retryBackoffInSeconds * multiplier));
+  }
+
+  public Duration getEncodeTimeout(double sourceDurationInSeconds) {
+    return getProcessTimeout(sourceDurationInSeconds * encodeTimeoutPerSourceSecond);
+  }
+
+  public Duration getTranscriptionTimeout(double sourceDurationInSeconds) {
+    return getProcessTimeout(sourceDurationInSeconds * transcriptionTimeoutPerSourceSecond);
+  }
+
+  public Duration getAuxiliaryTimeout(double sourceDurationInSeconds) {
+    return getProcessTimeout(sourceDurationInSeconds * auxiliaryTimeoutPerSourceSecond);
+  }
+
+  public Duration getStreamingIngestStallTimeout() {
+    return Duration.ofSeconds(streamingIngestStallTimeoutInSeconds);
+  }
+
+  public Duration getStreamingEncodeTimeout() {
+    return Duration.ofSeconds(streamingEncodeTimeoutInSeconds);
+  }
+
+  public Duration getUploadSessionExpiry() {
+    return Duration.ofHours(uploadSessionExpiryInHours);
+  }
+
+  public Duration getProbeTimeout() {
+    return Duration.ofSeconds(probeTimeoutInSeconds);
+  }
+
+  private Duration getProcessTimeout(double timeoutInSeconds) {
+    return Duration.ofSeconds(Math.max(minProcessTimeoutInSeconds, (long) Math.ceil(timeoutInSeconds)));
+  }
+
+  public int getQueueDepth() {
+    return queueDepthSupplier.getAsInt();
+  }
+
+  /// Picks the preset tier of the next job, out of `presetCount` tiers. Tier `0` is the most efficient preset of every
+  /// encoder, and the one every job gets without adaptive presets.
+  ///
+  /// A long backlog moves the policy one preset faster per job, a short one moves it one preset slower. In between
+  /// the current preset is kept, so it doesn't flip back and forth around a single threshold.
+  public int pickEncoderPresetTier(int presetCount) {
+    if (!adaptiveEncoderPresets) {
+      return 0;
+    }
+
+    int queueDepth = getQueueDepth();
+    boolean isFallingBehind = queueDepth >= backlogHighWatermark
+        || (queueDepth > backlogLowWatermark && observedEncodeSpeed > 0 && observedEncodeSpeed < minEncodeSpeed);
+    int tier;
+    if (isFallingBehind) {
+      tier = encoderPresetTier.updateAndGet(current -> Math.min(current + 1, presetCount - 1));
+    } else if (queueDepth <= backlogLowWatermark) {
+      tier = encoderPresetTier.updateAndGet(current -> Math.max(current - 1, 0));
+    } else {
+      tier = Math.min(encoderPresetTier.get(), presetCount - 1);
+    }
+
+    return tier;
+  }
+
+  public synchronized void recordEncodeSpeed(double encodeSpeed) {
+    observedEncodeSpeed = observedEncodeSpeed == 0 ? encodeSpeed : 0.7 * observedEncodeSpeed + 0.3 * encodeSpeed;
+  }
+
+  /// Builds the encoding ladder for the given source. Qualities above the source's height are dropped, since upscaling
+  /// only wastes CPU and storage, and the widths follow the source's real aspect ratio.
+  public List<VideoRendition> getVideoRenditions(VideoSourceInfo sourceInfo) {
+    double aspectRatio = (double) sourceInfo.width() / sourceInfo.height();
+
+    List<VideoRendition> renditions = new ArrayList<>();
+    for (int videoHeight : getVideoHeights()) {
+      if (videoHeight > sourceInfo.height()) {
+        continue;
+      }
+      if (renditions.stream().anyMatch(rendition -> rendition.height() == videoHeight)) {
+        continue;
+      }
+
+      renditions.add(VideoRendition.withDefaultBitrates(toEven(videoHeight * aspectRatio), videoHeight));
+    }
+
+    // The source is smaller than every configured quality, so it's only encoded at its own size
+    if (renditions.isEmpty()) {
+      int videoHeight = toEven(sourceInfo.height());
+      renditions.add(VideoRendition.withDefaultBitrates(toEven(videoHeight * aspectRatio), videoHeight));
+    }
+
+    return renditions;
+  }
+
+  /// The codecs a rung of this height is encoded with on top of H.264. None without `Fmp4` segments.
+  public List<VideoCodec> getAdditionalCodecs(int videoHeight) {
+    if (hlsSegmentType != HlsSegmentType.Fmp4) {
+      return List.of();
+    }
+
+    return additionalCodecs.getOrDefault(videoHeight, List.of());
+  }
+
+  public Optional<StoryboardLayout> getStoryboardLayout(VideoSourceInfo sourceInfo) {
+    if (!storyboard) {
+      return Optional.empty();
+    }
+
+    double aspectRatio = (double) sourceInfo.width() / sourceInfo.height();
+    int posterWidth = toEven(Math.min(posterMaxWidth, sourceInfo.width()));
+    return Optional.of(new StoryboardLayout(
+        toEven(storyboardThumbnailWidth),
+        toEven(storyboardThumbnailWidth / aspectRatio),
+        storyboardColumns,
+        storyboardRows,
+        storyboardIntervalInSeconds,
+        posterWidth,
+        toEven(posterWidth / aspectRatio)
+    ));
+  }
+
+  public List<Integer> getVideoHeights() {
+    List<Integer> videoHeights = new ArrayList<>();
     for (String videoQuality : videoQualities) {
       String videoHeightStr = videoQuality.substring(0, videoQuality.length() - 1);
-      int videoHeight = Integer.parseInt(videoHeightStr);
-      int videoWidth = (int) ((videoHeight / 9.0) * 16.0);
-
-      // All videos are assumed to be in 16:9 aspect ratio
-      dimensions.add(new int[]{videoWidth,videoHeight});
+      videoHeights.add(Integer.parseInt(videoHeightStr));
     }
-    return dimensions;
+    return videoHeights;
+  }
+
+  // Most encoders only accept even dimensions
+  private static int toEven(double dimension) {
+    return Math.max(2, (int) Math.round(dimension / 2.0) * 2);
   }
 }
@@ -1,33 +1,42 @@
 package com.akiramenai.videobackend.controller;
 
 import com.akiramenai.videobackend.config.VideoProcessingConfig;
-import com.akiramenai.videobackend.filters.FingerprintService;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import com.akiramenai.videobackend.model.*;
 import com.akiramenai.videobackend.repo.CourseRepo;
-import com.akiramenai.videobackend.repo.FingerprintRepo;
 import com.akiramenai.videobackend.repo.UserRepo;
 import com.akiramenai.videobackend.repo.VideoMetadataRepo;
 import com.akiramenai.videobackend.service.MediaStorageService;
-import com.akiramenai.videobackend.service.TranscriptionCommandService;
+import com.akiramenai.videobackend.service.StorageQuotaService;
+import com.akiramenai.videobackend.service.UploadAdmissionService;
+import com.akiramenai.videobackend.service.VideoDeduplicationService;
+import com.akiramenai.videobackend.service.VideoProcessingQueueService;
+import com.akiramenai.videobackend.service.VideoProgressStreamService;
+import com.akiramenai.videobackend.service.VideoUploadSessionService;
 import com.akiramenai.videobackend.utility.HttpResponseWriter;
+import com.akiramenai.videobackend.utility.IdParser;
 import com.akiramenai.videobackend.utility.JsonSerializer;
-import com.akiramenai.videobackend.utility.VideoProcessor;
+import com.akiramenai.videobackend.utility.StreamingIngest;
 
 import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
 
 @Slf4j
 @RestController
+@ConditionalOnWebApplication
 @RequestMapping("/api/private/video")
 public class VideoConvertController {
   JsonSerializer jsonSerializer = new JsonSerializer();
@@ -37,42 +46,39 @@ public class VideoConvertController {
 
   private final VideoProcessingConfig videoProcessingConfig;
 
-  TranscriptionCommandService transcriptionCommandService;
-
   UserRepo userRepo;
   VideoMetadataRepo videoMetadataRepo;
   MediaStorageService mediaStorageService;
-  VideoProcessor videoProcessor;
-  ArrayBlockingQueue<VideoProcessingTask> fileQueue;
+  VideoProcessingQueueService videoProcessingQueueService;
+  VideoUploadSessionService videoUploadSessionService;
+  VideoDeduplicationService videoDeduplicationService;
+  UploadAdmissionService uploadAdmissionService;
+  StorageQuotaService storageQuotaService;
+  VideoProgressStreamService videoProgressStreamService;
 
   public VideoConvertController(
       UserRepo userRepo,
       VideoMetadataRepo videoMetadataRepo,
       MediaStorageService mediaStorageService,
-      TranscriptionCommandService transcriptionCommandService,
+      VideoProcessingQueueService videoProcessingQueueService,
+      VideoUploadSessionService videoUploadSessionService,
+      VideoDeduplicationService videoDeduplicationService,
+      UploadAdmissionService uploadAdmissionService,
+      StorageQuotaService storageQuotaService,
+      VideoProgressStreamService videoProgressStreamService,
       CourseRepo courseRepo,
-      VideoProcessingConfig videoProcessingConfig,
-      FingerprintService fingerprintService
+      VideoProcessingConfig videoProcessingConfig
   ) {
     this.userRepo = userRepo;
     this.videoMetadataRepo = videoMetadataRepo;
     this.mediaStorageService = mediaStorageService;
+    this.videoProcessingQueueService = videoProcessingQueueService;
+    this.videoUploadSessionService = videoUploadSessionService;
+    this.videoDeduplicationService = videoDeduplicationService;
+    this.uploadAdmissionService = uploadAdmissionService;
+    this.storageQuotaService = storageQuotaService;
+    this.videoProgressStreamService = videoProgressStreamService;
 
-    this.transcriptionCommandService = transcriptionCommandService;
-
-    this.fileQueue = new ArrayBlockingQueue<>(1024);
-    this.videoProcessor = new VideoProcessor(
-        this.userRepo,
-        this.videoMetadataRepo,
-        this.mediaStorageService,
-        this.fileQueue,
-        transcriptionCommandService.whisperCppCliPath,
-        transcriptionCommandService.whisperCppModelPath,
-        videoProcessingConfig,
-        fingerprintService
-    );
-
-    this.videoProcessor.start();
     this.courseRepo = courseRepo;
     this.videoProcessingConfig = videoProcessingConfig;
   }
@@ -82,56 +88,445 @@ public class VideoConvertController {
       HttpServletRequest request,
       HttpServletResponse response,
       @RequestParam("video") MultipartFile uploadedVideo,
-      @RequestParam("course-id") String courseId
+      @RequestParam("course-id") String courseId,
+      @RequestParam(value = "sha256", required = false) String expectedSha256
   ) {
-    if (!request.getAttribute("accountType").equals("Instructor")) {
-      httpResponseWriter.writeFailedResponse(response, "Only instructors can upload videos.", HttpStatus.BAD_REQUEST);
+    long videoSize = uploadedVideo.getSize();
+    Optional<Course> targetCourse = validateUpload(request, response, courseId);
+    if (targetCourse.isEmpty()) {
       return;
     }
-    if (courseId == null) {
-      httpResponseWriter.writeFailedResponse(response, "Course ID not provided.", HttpStatus.BAD_REQUEST);
+    if (uploadedVideo.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Uploaded video is empty.", HttpStatus.BAD_REQUEST);
       return;
     }
-    if (uploadedVideo.isEmpty()) {
+    if (linkDuplicateVideo(request, response, targetCourse.get(), expectedSha256)) {
+      return;
+    }
+    if (!admitUpload(request, response, videoSize)) {
+      return;
+    }
+    Optional<Long> reservedStorage = reserveStorage(request, response, videoSize);
+    if (reservedStorage.isEmpty()) {
+      return;
+    }
+
+    UUID videoId = UUID.randomUUID();
+    ResultOrError<ReceivedVideo, FileUploadErrorTypes> savedVideo = mediaStorageService.saveUploadedVideo(
+        uploadedVideo,
+        expectedSha256
+    );
+    if (savedVideo.errorType() == FileUploadErrorTypes.ChecksumMismatch) {
+      releaseStorage(request, reservedStorage.get());
+      httpResponseWriter.writeFailedResponse(response, "The checksum of the uploaded video doesn't match.", HttpStatus.BAD_REQUEST);
+      return;
+    }
+    if (savedVideo.errorType() != null) {
+      log.error("Failed to save uploaded video. Reason: {} -> {}", savedVideo.errorType(), savedVideo.errorMessage());
+      releaseStorage(request, reservedStorage.get());
+
+      httpResponseWriter.writeFailedResponse(response, "Failed to save video.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    Optional<VideoMetadata> videoMetadata = addVideoToCourse(response, targetCourse.get(), videoId);
+    if (videoMetadata.isEmpty()) {
+      FileUtils.deleteQuietly(savedVideo.result().file());
+      releaseStorage(request, reservedStorage.get());
+      return;
+    }
+
+    // The metadata has to exist before the job gets queued, since the worker updates it once it's done
+    if (!enqueueVideo(request, response, savedVideo.result(), targetCourse.get(), videoId, videoSize, reservedStorage.get())) {
+      removeVideoFromCourse(targetCourse.get(), videoMetadata.get());
+      FileUtils.deleteQuietly(savedVideo.result().file());
+      releaseStorage(request, reservedStorage.get());
+      return;
+    }
+
+    writeItemIdResponse(response, videoMetadata.get());
+  }
+
+  /// Takes the video as the raw request body instead of a multipart form, and queues it before its first byte is read.
+  /// A worker picks it up right away and encodes it while it's still coming in, see `StreamingIngest`. The request
+  /// needs a `Content-Length`, and `filename` gives the container away by its extension. With `sha256` the video is
+  /// only accepted if its checksum matches.
+  @PostMapping("/upload-stream")
+  public void uploadStream(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @RequestParam("course-id") String courseId,
+      @RequestParam("filename") String filename,
+      @RequestParam(value = "sha256", required = false) String expectedSha256
+  ) {
+    long videoSize = request.getContentLengthLong();
+    if (videoSize <= 0) {
+      httpResponseWriter.writeFailedResponse(response, "The length of the video wasn't provided.", HttpStatus.LENGTH_REQUIRED);
+      return;
+    }
+
+    Optional<Course> targetCourse = validateUpload(request, response, courseId);
+    if (targetCourse.isEmpty()) {
+      return;
+    }
+    // The body doesn't need to be read at all then
+    if (linkDuplicateVideo(request, response, targetCourse.get(), expectedSha256)) {
+      return;
+    }
+    if (!admitUpload(request, response, videoSize)) {
+      return;
+    }
+    Optional<Long> reservedStorage = reserveStorage(request, response, videoSize);
+    if (reservedStorage.isEmpty()) {
+      return;
+    }
+
+    UUID videoId = UUID.randomUUID();
+    ResultOrError<File, FileUploadErrorTypes> streamedVideo = mediaStorageService.createStreamedVideoFile(filename);
+    if (streamedVideo.errorType() != null) {
+      log.error("Failed to create the file of the streamed video. Reason: {}", streamedVideo.errorType());
+      releaseStorage(request, reservedStorage.get());
+
+      httpResponseWriter.writeFailedResponse(response, "Failed to save video.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    Optional<VideoMetadata> videoMetadata = addVideoToCourse(response, targetCourse.get(), videoId);
+    if (videoMetadata.isEmpty()) {
+      FileUtils.deleteQuietly(StreamingIngest.partialFileOf(streamedVideo.result()).toFile());
+      releaseStorage(request, reservedStorage.get());
+      return;
+    }
+    // From here on the job holds the reservation, and gives it back if the upload doesn't make it
+    ReceivedVideo videoToReceive = new ReceivedVideo(streamedVideo.result(), null);
+    if (!enqueueVideo(request, response, videoToReceive, targetCourse.get(), videoId, videoSize, reservedStorage.get())) {
+      removeVideoFromCourse(targetCourse.get(), videoMetadata.get());
+      FileUtils.deleteQuietly(StreamingIngest.partialFileOf(streamedVideo.result()).toFile());
+      releaseStorage(request, reservedStorage.get());
+      return;
+    }
+
+    ResultOrError<ReceivedVideo, FileUploadErrorTypes> receivedVideo;
+    try {
+      receivedVideo = mediaStorageService.receiveStreamedVideo(
+          request.getInputStream(),
+          streamedVideo.result(),
+          videoSize,
+          expectedSha256
+      );
+    } catch (IOException e) {
+      log.error("Failed to read the streamed video. Reason: ", e);
+      receivedVideo = ResultOrError.<ReceivedVideo, FileUploadErrorTypes>builder()
+          .errorType(FileUploadErrorTypes.IncompleteUpload)
+          .errorMessage(e.getMessage())
+          .build();
+    }
+    if (receivedVideo.errorType() != null) {
+      // The worker is already on it, so the job has to be stopped
+      log.error("Failed to receive the streamed video. Reason: {} -> {}", receivedVideo.errorType(), receivedVideo.errorMessage());
+      videoProcessingQueueService.cancel(videoId);
+
+      httpResponseWriter.writeFailedResponse(response, "Failed to save video.", HttpStatus.BAD_REQUEST);
+      return;
+    }
+    videoProcessingQueueService.recordSourceChecksum(videoId, receivedVideo.result().sha256());
+
+    writeItemIdResponse(response, videoMetadata.get());
+  }
+
+  /// Lets a client skip uploading a video the instructor has already uploaded. If a processed video with the same
+  /// SHA-256 exists, the new video is added to the course right away and shares its renditions (`201`), otherwise the
+  /// video has to be uploaded (`404`).
+  @PostMapping("/upload-check")
+  public void checkUpload(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @RequestParam("course-id") String courseId,
+      @RequestParam("sha256") String sha256
+  ) {
+    // Linking doesn't take up any storage
+    Optional<Course> targetCourse = validateUpload(request, response, courseId);
+    if (targetCourse.isEmpty()) {
+      return;
+    }
+    if (linkDuplicateVideo(request, response, targetCourse.get(), sha256)) {
+      return;
+    }
+
+    httpResponseWriter.writeFailedResponse(response, "No processed video with that checksum.", HttpStatus.NOT_FOUND);
+  }
+
+  /// Starts a resumable upload of a `size` bytes long video. The video is then sent as numbered chunks with
+  /// `PUT /uploads/{uploadId}/chunks/{index}`, which can be sent side by side, in any order and again after a failure.
+  /// `chunk-size` defaults to `upload-chunk-size-in-bytes`.
+  @PostMapping("/uploads")
+  public void createUploadSession(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @RequestParam("course-id") String courseId,
+      @RequestParam("filename") String filename,
+      @RequestParam("size") long videoSize,
+      @RequestParam(value = "chunk-size", required = false, defaultValue = "0") long chunkSize,
+      @RequestParam(value = "sha256", required = false) String expectedSha256
+  ) {
+    if (videoSize <= 0) {
       httpResponseWriter.writeFailedResponse(response, "Uploaded video is empty.", HttpStatus.BAD_REQUEST);
       return;
     }
+    Optional<Course> targetCourse = validateUpload(request, response, courseId);
+    if (targetCourse.isEmpty()) {
+      return;
+    }
+    if (!admitUpload(request, response, videoSize)) {
+      return;
+    }
+    // Reserved for the whole video up front, so its chunks can't outgrow the quota
+    Optional<Long> reservedStorage = reserveStorage(request, response, videoSize);
+    if (reservedStorage.isEmpty()) {
+      return;
+    }
 
     UUID userId = UUID.fromString(request.getAttribute("userId").toString());
-    Optional<Users> targetUser = userRepo.findUsersById(userId);
-    if (targetUser.isEmpty()) {
-      httpResponseWriter.writeFailedResponse(response, "User not found.", HttpStatus.BAD_REQUEST);
+    ResultOrError<VideoUploadSession, FileUploadErrorTypes> session = videoUploadSessionService.create(
+        userId,
+        targetCourse.get().getId(),
+        filename,
+        videoSize,
+        chunkSize,
+        reservedStorage.get(),
+        expectedSha256
+    );
+    if (session.errorType() != null) {
+      releaseStorage(request, reservedStorage.get());
+    }
+    if (session.errorType() == FileUploadErrorTypes.InvalidChunk) {
+      httpResponseWriter.writeFailedResponse(response, session.errorMessage(), HttpStatus.BAD_REQUEST);
       return;
     }
+    if (session.errorType() != null) {
+      log.error("Failed to create the upload session. Reason: {} -> {}", session.errorType(), session.errorMessage());
 
-    Optional<Course> targetCourse = courseRepo.findCourseById(UUID.fromString(courseId));
-    if (targetCourse.isEmpty()) {
-      httpResponseWriter.writeFailedResponse(response, "Course not found.", HttpStatus.BAD_REQUEST);
+      httpResponseWriter.writeFailedResponse(response, "Failed to create the upload session.", HttpStatus.INTERNAL_SERVER_ERROR);
       return;
     }
 
-    long videoSize = uploadedVideo.getSize();
-    long storageLeft = targetUser.get().getTotalStorageInBytes() - targetUser.get().getUsedStorageInBytes();
+    writeUploadSessionResponse(response, session.result(), HttpStatus.CREATED);
+  }
 
-    // Depending on the configured video quality count. We multiply it to get the upperbound size.
-    int videoQualityCount = this.videoProcessingConfig.getVideoQualities().size();
-    if ((videoSize * videoQualityCount) > storageLeft) {
-      httpResponseWriter.writeFailedResponse(response, "Failed to upload the video. You don't have enough free storage.", HttpStatus.INSUFFICIENT_STORAGE);
+  /// Takes a chunk as the raw request body. `sha256` is the checksum of the chunk, a chunk that doesn't match it has
+  /// to be sent again.
+  @PutMapping("/uploads/{uploadId}/chunks/{index}")
+  public void uploadChunk(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable("uploadId") String uploadId,
+      @PathVariable("index") int chunkIndex,
+      @RequestParam("sha256") String expectedSha256
+  ) {
+    Optional<VideoUploadSession> session = getUploadSession(request, response, uploadId);
+    if (session.isEmpty()) {
+      return;
+    }
+
+    ResultOrError<Integer, FileUploadErrorTypes> writtenChunk;
+    try {
+      writtenChunk = videoUploadSessionService.writeChunk(
+          session.get(),
+          chunkIndex,
+          request.getInputStream(),
+          request.getContentLengthLong(),
+          expectedSha256
+      );
+    } catch (IOException e) {
+      log.error("Failed to read the chunk. Reason: ", e);
+      writtenChunk = ResultOrError.<Integer, FileUploadErrorTypes>builder()
+          .errorType(FileUploadErrorTypes.IncompleteUpload)
+          .errorMessage(e.getMessage())
+          .build();
+    }
+    if (writtenChunk.errorType() == FileUploadErrorTypes.FailedToSaveFile) {
+      httpResponseWriter.writeFailedResponse(response, "Failed to save the chunk.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+    if (writtenChunk.errorType() != null) {
+      httpResponseWriter.writeFailedResponse(response, writtenChunk.errorMessage(), HttpStatus.BAD_REQUEST);
+      return;
+    }
+
+    writeUploadSessionResponse(response, session.get(), HttpStatus.OK);
+  }
+
+  /// Which chunks of the upload have been received, so an interrupted upload only resends the rest.
+  @GetMapping("/uploads/{uploadId}")
+  public void getUploadSession(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable("uploadId") String uploadId
+  ) {
+    Optional<VideoUploadSession> session = getUploadSession(request, response, uploadId);
+    if (session.isEmpty()) {
+      return;
+    }
+
+    writeUploadSessionResponse(response, session.get(), HttpStatus.OK);
+  }
+
+  /// Assembles the uploaded chunks and queues the video. Completing a session again returns the same video.
+  @PostMapping("/uploads/{uploadId}/complete")
+  public void completeUploadSession(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable("uploadId") String uploadId
+  ) {
+    Optional<VideoUploadSession> session = getUploadSession(request, response, uploadId);
+    if (session.isEmpty()) {
+      return;
+    }
+    if (session.get().getState() == VideoUploadSessionState.Completed) {
+      writeItemIdResponse(response, "VM_" + session.get().getVideoId());
+      return;
+    }
+
+    Optional<Course> targetCourse = validateUpload(request, response, session.get().getCourseId().toString());
+    if (targetCourse.isEmpty()) {
+      return;
+    }
+    // The session has been admitted when it was started, only the queue might have filled up since
+    Optional<UploadRejection> queueRejection = uploadAdmissionService.checkQueuedBytes(session.get().getTotalSizeInBytes());
+    if (queueRejection.isPresent()) {
+      writeUploadRejection(response, queueRejection.get());
+      return;
+    }
+    if (!videoUploadSessionService.startCompletion(session.get())) {
+      httpResponseWriter.writeFailedResponse(response, "The upload is already being completed.", HttpStatus.CONFLICT);
+      return;
+    }
+
+    ResultOrError<ReceivedVideo, FileUploadErrorTypes> assembledVideo = videoUploadSessionService.assemble(session.get());
+    if (assembledVideo.errorType() == FileUploadErrorTypes.FailedToSaveFile) {
+      httpResponseWriter.writeFailedResponse(response, "Failed to save video.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+    if (assembledVideo.errorType() != null) {
+      httpResponseWriter.writeFailedResponse(response, assembledVideo.errorMessage(), HttpStatus.BAD_REQUEST);
       return;
     }
 
     UUID videoId = UUID.randomUUID();
-    Optional<String> result = processUploadedVideo(uploadedVideo, UUID.fromString(courseId), videoId, userId);
-    if (result.isPresent()) {
-      httpResponseWriter.writeFailedResponse(response, result.get(), HttpStatus.INTERNAL_SERVER_ERROR);
+    Optional<VideoMetadata> videoMetadata = addVideoToCourse(response, targetCourse.get(), videoId);
+    if (videoMetadata.isEmpty()) {
+      videoUploadSessionService.disassemble(session.get(), assembledVideo.result());
+      return;
+    }
+    boolean isEnqueued = enqueueVideo(
+        request,
+        response,
+        assembledVideo.result(),
+        targetCourse.get(),
+        videoId,
+        session.get().getTotalSizeInBytes(),
+        session.get().getReservedStorageInBytes()
+    );
+    // The session goes back to its chunks, so completing it again doesn't leave another video behind
+    if (!isEnqueued) {
+      removeVideoFromCourse(targetCourse.get(), videoMetadata.get());
+      videoUploadSessionService.disassemble(session.get(), assembledVideo.result());
       return;
     }
+    videoUploadSessionService.markCompleted(session.get(), videoId);
 
+    writeItemIdResponse(response, videoMetadata.get());
+  }
+
+  // Checks that the requester is an instructor uploading to an existing course. The failure response is written here.
+  private Optional<Course> validateUpload(HttpServletRequest request, HttpServletResponse response, String courseId) {
+    if (!request.getAttribute("accountType").equals("Instructor")) {
+      httpResponseWriter.writeFailedResponse(response, "Only instructors can upload videos.", HttpStatus.BAD_REQUEST);
+      return Optional.empty();
+    }
+    if (courseId == null) {
+      httpResponseWriter.writeFailedResponse(response, "Course ID not provided.", HttpStatus.BAD_REQUEST);
+      return Optional.empty();
+    }
+
+    Optional<Course> targetCourse = courseRepo.findCourseById(UUID.fromString(courseId));
+    if (targetCourse.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Course not found.", HttpStatus.BAD_REQUEST);
+      return Optional.empty();
+    }
+
+    return targetCourse;
+  }
+
+  // Reserves enough of the requester's storage for the renditions of the video, and returns how much. The failure
+  // response is written here.
+  private Optional<Long> reserveStorage(HttpServletRequest request, HttpServletResponse response, long videoSize) {
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+    long storageToReserve = storageQuotaService.estimateStorage(videoSize);
+    if (storageQuotaService.reserve(userId, storageToReserve)) {
+      return Optional.of(storageToReserve);
+    }
+
+    // The reservation only tells that it didn't go through, the user is only looked up to tell why
+    if (!userRepo.existsById(userId)) {
+      httpResponseWriter.writeFailedResponse(response, "User not found.", HttpStatus.BAD_REQUEST);
+      return Optional.empty();
+    }
+    httpResponseWriter.writeFailedResponse(response, "Failed to upload the video. You don't have enough free storage.", HttpStatus.INSUFFICIENT_STORAGE);
+    return Optional.empty();
+  }
+
+  private void releaseStorage(HttpServletRequest request, long reservedStorage) {
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+    storageQuotaService.release(userId, reservedStorage);
+  }
+
+  // Turns the upload away with a `429` if there are too many uploads coming in, or too many videos waiting in the queue
+  private boolean admitUpload(HttpServletRequest request, HttpServletResponse response, long videoSize) {
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+    Optional<UploadRejection> rejection = uploadAdmissionService.admit(userId, videoSize);
+    if (rejection.isPresent()) {
+      writeUploadRejection(response, rejection.get());
+      return false;
+    }
+
+    return true;
+  }
+
+  private void writeUploadRejection(HttpServletResponse response, UploadRejection rejection) {
+    long retryAfterInSeconds = Math.max(1, (long) Math.ceil(rejection.retryAfter().toMillis() / 1000.0));
+    response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterInSeconds));
+    httpResponseWriter.writeFailedResponse(response, rejection.reason(), HttpStatus.TOO_MANY_REQUESTS);
+  }
+
+  // Adds a video that shares the renditions of an identical, already processed video of the requester, and writes the
+  // response. Returns `false` if there's no such video.
+  private boolean linkDuplicateVideo(HttpServletRequest request, HttpServletResponse response, Course targetCourse, String sha256) {
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+    Optional<VideoMetadata> existingVideo = videoDeduplicationService.findProcessedDuplicate(userId, sha256, null);
+    if (existingVideo.isEmpty()) {
+      return false;
+    }
+
+    VideoMetadata videoMetadataToAdd = newVideoMetadata(targetCourse, UUID.randomUUID());
+    videoDeduplicationService.linkTo(videoMetadataToAdd, existingVideo.get());
+    Optional<VideoMetadata> videoMetadata = addVideoToCourse(response, targetCourse, videoMetadataToAdd);
+    if (videoMetadata.isPresent()) {
+      writeItemIdResponse(response, videoMetadata.get());
+    }
+    return true;
+  }
+
+  private Optional<VideoMetadata> addVideoToCourse(HttpServletResponse response, Course targetCourse, UUID videoId) {
+    return addVideoToCourse(response, targetCourse, newVideoMetadata(targetCourse, videoId));
+  }
+
+  private VideoMetadata newVideoMetadata(Course targetCourse, UUID videoId) {
     LocalDateTime ldtNow = LocalDateTime.now();
-    VideoMetadata videoMetadataToAdd = VideoMetadata
+    return VideoMetadata
         .builder()
         .itemId("VM_" + videoId)
-        .courseId(UUID.fromString(courseId))
+        .courseId(targetCourse.getId())
         .title("Placeholder Title")
         .description("Placeholder Description")
         .videoFileId(videoId)
@@ -139,20 +534,82 @@ public class VideoConvertController {
         .uploadDateTime(ldtNow)
         .lastModifiedDateTime(ldtNow)
         .build();
+  }
 
+  private Optional<VideoMetadata> addVideoToCourse(
+      HttpServletResponse response,
+      Course targetCourse,
+      VideoMetadata videoMetadataToAdd
+  ) {
     try {
       videoMetadataRepo.save(videoMetadataToAdd);
 
-      targetCourse.get().getCourseItemIds().add(videoMetadataToAdd.getItemId());
-      courseRepo.save(targetCourse.get());
+      targetCourse.getCourseItemIds().add(videoMetadataToAdd.getItemId());
+      courseRepo.save(targetCourse);
     } catch (Exception e) {
       log.error("Failed to save video metadata to DB. Reason: ", e);
+      removeVideoFromCourse(targetCourse, videoMetadataToAdd);
 
       httpResponseWriter.writeFailedResponse(response, "Failed to save video metadata.", HttpStatus.INTERNAL_SERVER_ERROR);
-      return;
+      return Optional.empty();
     }
 
-    ItemId itemIdResponse = new ItemId(videoMetadataToAdd.getItemId());
+    return Optional.of(videoMetadataToAdd);
+  }
+
+  // Undoes `addVideoToCourse` for a video that didn't make it into the queue, so it doesn't show up in the course as
+  // processing forever
+  private void removeVideoFromCourse(Course targetCourse, VideoMetadata videoMetadata) {
+    try {
+      if (targetCourse.getCourseItemIds().remove(videoMetadata.getItemId())) {
+        courseRepo.save(targetCourse);
+      }
+      videoMetadataRepo.delete(videoMetadata);
+    } catch (Exception e) {
+      log.error("Failed to remove video {} from course {}. Reason: ", videoMetadata.getItemId(), targetCourse.getId(), e);
+    }
+  }
+
+  private boolean enqueueVideo(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      ReceivedVideo video,
+      Course targetCourse,
+      UUID videoId,
+      long videoSize,
+      long reservedStorage
+  ) {
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+
+    // Small uploads and new videos of published courses go ahead of bulk uploads
+    long priorityLaneMaxSize = videoProcessingConfig.getPriorityLaneMaxUploadSizeInBytes();
+    boolean isPriority = (priorityLaneMaxSize > 0 && videoSize <= priorityLaneMaxSize)
+        || (videoProcessingConfig.isPriorityLaneForPublishedCourses() && Boolean.TRUE.equals(targetCourse.getIsPublished()));
+
+    try {
+      videoProcessingQueueService.enqueue(
+          new VideoProcessingTask(video.file(), targetCourse.getId(), videoId, userId),
+          isPriority,
+          video.sha256(),
+          videoSize,
+          reservedStorage
+      );
+    } catch (Exception e) {
+      log.error("Failed to put the video in processing queue. Reason: ", e);
+
+      httpResponseWriter.writeFailedResponse(response, "Failed to process video.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return false;
+    }
+
+    return true;
+  }
+
+  private void writeItemIdResponse(HttpServletResponse response, VideoMetadata videoMetadata) {
+    writeItemIdResponse(response, videoMetadata.getItemId());
+  }
+
+  private void writeItemIdResponse(HttpServletResponse response, String itemId) {
+    ItemId itemIdResponse = new ItemId(itemId);
     Optional<String> respJson = jsonSerializer.serialize(itemIdResponse);
     if (respJson.isEmpty()) {
       httpResponseWriter.writeFailedResponse(response, "Failed to serialize JSON response.", HttpStatus.INTERNAL_SERVER_ERROR);
@@ -162,38 +619,160 @@ public class VideoConvertController {
     httpResponseWriter.writeOkResponse(response, respJson.get(), HttpStatus.CREATED);
   }
 
-  private Optional<String> processUploadedVideo(
-      MultipartFile uploadedFile,
-      UUID courseId,
-      UUID videoId,
-      UUID uploader
+  private void writeUploadSessionResponse(HttpServletResponse response, VideoUploadSession session, HttpStatus httpStatus) {
+    Optional<String> respJson = jsonSerializer.serialize(videoUploadSessionService.toResponse(session));
+    if (respJson.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Failed to serialize JSON response.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    httpResponseWriter.writeOkResponse(response, respJson.get(), httpStatus);
+  }
+
+  // Upload sessions are only visible to the instructor who has started them
+  private Optional<VideoUploadSession> getUploadSession(HttpServletRequest request, HttpServletResponse response, String uploadId) {
+    Optional<UUID> parsedUploadId = IdParser.parseId(uploadId);
+    if (parsedUploadId.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Invalid upload ID.", HttpStatus.BAD_REQUEST);
+      return Optional.empty();
+    }
+
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+    Optional<VideoUploadSession> session = videoUploadSessionService.find(parsedUploadId.get(), userId);
+    if (session.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Upload session not found.", HttpStatus.NOT_FOUND);
+      return Optional.empty();
+    }
+
+    return session;
+  }
+
+  /// How many of the requesting instructor's videos are waiting or being processed, and how long they wait.
+  @GetMapping("/queue")
+  public void getQueueStats(HttpServletRequest request, HttpServletResponse response) {
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+
+    QueueStatsResponse queueStats;
+    try {
+      queueStats = videoProcessingQueueService.getQueueStats(userId);
+    } catch (Exception e) {
+      log.error("Failed to fetch the video processing queue stats. Reason: ", e);
+
+      httpResponseWriter.writeFailedResponse(response, "Failed to fetch the queue stats.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    Optional<String> respJson = jsonSerializer.serialize(queueStats);
+    if (respJson.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Failed to serialize JSON response.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    httpResponseWriter.writeOkResponse(response, respJson.get(), HttpStatus.OK);
+  }
+
+  @GetMapping("/status/{itemId}")
+  public void getProcessingStatus(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable("itemId") String itemId
+  ) {
+    Optional<UUID> videoId = getUploadedVideoId(request, response, itemId);
+    if (videoId.isEmpty()) {
+      return;
+    }
+
+    Optional<VideoProcessingStatusResponse> status = videoProcessingQueueService.getStatus(videoId.get());
+    if (status.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Video processing job not found.", HttpStatus.NOT_FOUND);
+      return;
+    }
+
+    Optional<String> respJson = jsonSerializer.serialize(status.get());
+    if (respJson.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Failed to serialize JSON response.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    httpResponseWriter.writeOkResponse(response, respJson.get(), HttpStatus.OK);
+  }
+
+  /// Server-sent events stream of the processing status. A `progress` event is pushed every couple of seconds and the
+  /// stream is closed once the job is `Done`, `Failed` or `Cancelled`.
+  @GetMapping(value = "/status/{itemId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamProcessingStatus(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable("itemId") String itemId
   ) {
-    if (uploadedFile.isEmpty()) {
-      return Optional.of("Failed to process video. Uploaded file is empty.");
+    Optional<UUID> videoId = getUploadedVideoId(request, response, itemId);
+    if (videoId.isEmpty()) {
+      return null;
     }
 
-    ResultOrError<String, FileUploadErrorTypes> savedPath = mediaStorageService.saveUploadedVideo(uploadedFile);
-    if (savedPath.errorType() != null) {
-      log.error("Failed to save uploaded video. Reason: {}", savedPath.errorType());
+    return videoProgressStreamService.open(videoId.get());
+  }
 
-      return Optional.of("Failed to process video.");
+  /// Cancels the processing of a video. A queued job is cancelled right away (`200`), a running one is stopped by its
+  /// worker shortly after (`202`).
+  @PostMapping("/cancel/{itemId}")
+  public void cancelProcessing(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      @PathVariable("itemId") String itemId
+  ) {
+    Optional<UUID> videoId = getUploadedVideoId(request, response, itemId);
+    if (videoId.isEmpty()) {
+      return;
     }
 
+    Optional<VideoProcessingCancellationResult> cancellationResult;
     try {
-      File vidoeFile = new File(savedPath.result());
-      uploadedFile.transferTo(vidoeFile);
+      cancellationResult = videoProcessingQueueService.cancel(videoId.get());
+    } catch (Exception e) {
+      log.error("Failed to cancel the video processing job. Reason: ", e);
 
-      fileQueue.put(new VideoProcessingTask(vidoeFile, courseId, videoId, uploader));
-    } catch (IllegalStateException | IOException e) {
-      log.error("Failed to save the uploaded video in storage. Reason: ", e);
+      httpResponseWriter.writeFailedResponse(response, "Failed to cancel the video processing.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+    if (cancellationResult.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Video processing job not found.", HttpStatus.NOT_FOUND);
+      return;
+    }
+    if (cancellationResult.get() == VideoProcessingCancellationResult.AlreadyFinished) {
+      httpResponseWriter.writeFailedResponse(response, "Video processing has already finished.", HttpStatus.CONFLICT);
+      return;
+    }
 
-      return Optional.of("Failed to save video.");
-    } catch (InterruptedException | NullPointerException e) {
-      log.error("Failed to put the video in processing queue. Reason: ", e);
+    Optional<VideoProcessingStatusResponse> status = videoProcessingQueueService.getStatus(videoId.get());
+    Optional<String> respJson = status.flatMap(jsonSerializer::serialize);
+    if (respJson.isEmpty()) {
+      httpResponseWriter.writeFailedResponse(response, "Failed to serialize JSON response.", HttpStatus.INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    HttpStatus httpStatus = cancellationResult.get() == VideoProcessingCancellationResult.Cancelled
+        ? HttpStatus.OK
+        : HttpStatus.ACCEPTED;
+    httpResponseWriter.writeOkResponse(response, respJson.get(), httpStatus);
+  }
 
-      return Optional.of("Failed to process video.");
+  // Only the instructor who has uploaded the video gets to see how its processing is going
+  private Optional<UUID> getUploadedVideoId(HttpServletRequest request, HttpServletResponse response, String itemId) {
+    Optional<ParsedItemInfo> parsedItemId = IdParser.parseItemId(itemId);
+    if (parsedItemId.isEmpty() || parsedItemId.get().itemType() != CourseItems.Video) {
+      httpResponseWriter.writeFailedResponse(response, "Invalid video item ID.", HttpStatus.BAD_REQUEST);
+      return Optional.empty();
     }
 
-    return Optional.empty();
+    UUID userId = UUID.fromString(request.getAttribute("userId").toString());
+    UUID videoId = parsedItemId.get().itemUUID();
+    Optional<VideoProcessingJob> targetJob = videoProcessingQueueService.findJobByVideoId(videoId);
+    if (targetJob.isEmpty() || !targetJob.get().getUploader().equals(userId)) {
+      httpResponseWriter.writeFailedResponse(response, "Video processing job not found.", HttpStatus.NOT_FOUND);
+      return Optional.empty();
+    }
+
+    return Optional.of(videoId);
   }
 }
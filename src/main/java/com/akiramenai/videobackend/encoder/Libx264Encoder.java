@@ -0,0 +1,54 @@
+package com.akiramenai.videobackend.encoder;
+
+import com.akiramenai.videobackend.model.VideoCodec;
+import com.akiramenai.videobackend.model.VideoRendition;
+
+import java.util.List;
+import java.util.Locale;
+
+public class Libx264Encoder implements VideoEncoder {
+  private final List<String> presets;
+
+  public Libx264Encoder(List<String> presets) {
+    this.presets = presets;
+  }
+
+  @Override
+  public VideoCodec codec() {
+    return VideoCodec.H264;
+  }
+
+  @Override
+  public String name() {
+    return "libx264";
+  }
+
+  @Override
+  public List<String> presets() {
+    return presets;
+  }
+
+  @Override
+  public double bitrateFactor() {
+    return 1.0;
+  }
+
+  @Override
+  public List<String> getCodecArguments(VideoRendition rendition, String streamSpecifier) {
+    return List.of(
+        "-profile" + streamSpecifier, "main",
+        "-level" + streamSpecifier, formatLevel(VideoEncoder.levelOf(rendition))
+    );
+  }
+
+  /// Main profile: `avc1.4d40` followed by the level in hex
+  @Override
+  public String getCodecsString(VideoRendition rendition) {
+    return String.format(Locale.ROOT, "avc1.4d40%02x", VideoEncoder.levelOf(rendition));
+  }
+
+  // `40` -> `4.0`
+  static String formatLevel(int level) {
+    return (level / 10) + "." + (level % 10);
+  }
+}
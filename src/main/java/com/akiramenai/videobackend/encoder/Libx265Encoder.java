@@ -0,0 +1,51 @@
+package com.akiramenai.videobackend.encoder;
+
+import com.akiramenai.videobackend.model.VideoCodec;
+import com.akiramenai.videobackend.model.VideoRendition;
+
+import java.util.List;
+
+public class Libx265Encoder implements VideoEncoder {
+  private final List<String> presets;
+
+  public Libx265Encoder(List<String> presets) {
+    this.presets = presets;
+  }
+
+  @Override
+  public VideoCodec codec() {
+    return VideoCodec.Hevc;
+  }
+
+  @Override
+  public String name() {
+    return "libx265";
+  }
+
+  @Override
+  public List<String> presets() {
+    return presets;
+  }
+
+  @Override
+  public double bitrateFactor() {
+    return 0.65;
+  }
+
+  // Apple's players only take HEVC tagged as `hvc1`, FFMPEG tags it as `hev1` by default
+  @Override
+  public List<String> getCodecArguments(VideoRendition rendition, String streamSpecifier) {
+    return List.of(
+        "-profile" + streamSpecifier, "main",
+        "-tag" + streamSpecifier, "hvc1",
+        "-x265-params" + streamSpecifier,
+        "level-idc=" + Libx264Encoder.formatLevel(VideoEncoder.levelOf(rendition)) + ":log-level=error"
+    );
+  }
+
+  /// Main profile, main tier: `hvc1.1.6.L` followed by 30 times the level
+  @Override
+  public String getCodecsString(VideoRendition rendition) {
+    return "hvc1.1.6.L" + (VideoEncoder.levelOf(rendition) * 3) + ".B0";
+  }
+}
@@ -0,0 +1,15 @@
+package com.akiramenai.videobackend.encoder;
+
+import java.util.List;
+
+/// H.264 on an NVIDIA GPU. The stream is the same as the one of `libx264`, only the presets differ.
+public class NvencH264Encoder extends Libx264Encoder {
+  public NvencH264Encoder(List<String> presets) {
+    super(presets);
+  }
+
+  @Override
+  public String name() {
+    return "h264_nvenc";
+  }
+}
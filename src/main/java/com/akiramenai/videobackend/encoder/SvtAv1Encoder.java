@@ -0,0 +1,67 @@
+package com.akiramenai.videobackend.encoder;
+
+import com.akiramenai.videobackend.model.VideoCodec;
+import com.akiramenai.videobackend.model.VideoRendition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/// AV1 through SVT-AV1, the fastest of the AV1 encoders on a CPU. Its presets are numbers, lower is more efficient.
+public class SvtAv1Encoder implements VideoEncoder {
+  // SVT-AV1's own default. The maximum bitrate of the rendition caps it where the video needs more.
+  private static final int CRF = 35;
+
+  private final List<String> presets;
+
+  public SvtAv1Encoder(List<String> presets) {
+    this.presets = presets;
+  }
+
+  @Override
+  public VideoCodec codec() {
+    return VideoCodec.Av1;
+  }
+
+  @Override
+  public String name() {
+    return "libsvtav1";
+  }
+
+  @Override
+  public List<String> presets() {
+    return presets;
+  }
+
+  @Override
+  public double bitrateFactor() {
+    return 0.55;
+  }
+
+  /// Capped CRF. SVT-AV1 refuses to start with a target bitrate and a maximum bitrate together, it only takes the
+  /// maximum along with a CRF.
+  @Override
+  public List<String> getEncodingArguments(VideoRendition rendition, int presetTier, String streamSpecifier) {
+    List<String> arguments = new ArrayList<>(List.of(
+        "-c" + streamSpecifier, name(),
+        "-preset" + streamSpecifier, preset(presetTier),
+        "-crf" + streamSpecifier, String.valueOf(CRF),
+        "-maxrate" + streamSpecifier, rendition.maxRate() + "k"
+    ));
+    arguments.addAll(getCodecArguments(rendition, streamSpecifier));
+    return arguments;
+  }
+
+  @Override
+  public List<String> getCodecArguments(VideoRendition rendition, String streamSpecifier) {
+    return List.of("-profile" + streamSpecifier, "main");
+  }
+
+  /// Main profile, 8 bit: `av01.0.` followed by the `seq_level_idx` of the level and the main tier
+  @Override
+  public String getCodecsString(VideoRendition rendition) {
+    int level = VideoEncoder.levelOf(rendition);
+    int sequenceLevelIndex = (level / 10 - 2) * 4 + level % 10;
+    return String.format(Locale.ROOT, "av01.0.%02dM.08", sequenceLevelIndex);
+  }
+}
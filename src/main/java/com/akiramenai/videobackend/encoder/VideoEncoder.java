@@ -0,0 +1,66 @@
+package com.akiramenai.videobackend.encoder;
+
+import com.akiramenai.videobackend.model.VideoCodec;
+import com.akiramenai.videobackend.model.VideoRendition;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/// An FFMPEG video encoder. It owns everything that differs between the encoders: the codec options, how the bitrates
+/// of a rendition map to its rate control, its presets and the `CODECS` string the master playlist advertises.
+public interface VideoEncoder {
+  VideoCodec codec();
+
+  /// Name of the FFMPEG encoder, e.g. `libx264`
+  String name();
+
+  /// Presets ordered from the most efficient to the fastest. The preset tier of a job picks one of them.
+  List<String> presets();
+
+  /// Bitrate this encoder needs for the same quality, relative to H.264
+  double bitrateFactor();
+
+  /// Codec specific output options, e.g. the profile and the level
+  List<String> getCodecArguments(VideoRendition rendition, String streamSpecifier);
+
+  /// RFC 6381 codec string of the video stream, e.g. `avc1.4d4028`
+  String getCodecsString(VideoRendition rendition);
+
+  /// Output options that encode a video stream of the output at `rendition`. `streamSpecifier` selects the stream the
+  /// options apply to, e.g. `:v:1` for the second video stream of the output.
+  default List<String> getEncodingArguments(VideoRendition rendition, int presetTier, String streamSpecifier) {
+    List<String> arguments = new ArrayList<>(List.of(
+        "-c" + streamSpecifier, name(),
+        "-preset" + streamSpecifier, preset(presetTier),
+        "-b" + streamSpecifier, rendition.videoBitrate() + "k",
+        "-maxrate" + streamSpecifier, rendition.maxRate() + "k",
+        "-bufsize" + streamSpecifier, rendition.bufferSize() + "k"
+    ));
+    arguments.addAll(getCodecArguments(rendition, streamSpecifier));
+    return arguments;
+  }
+
+  /// Tiers past the last preset stick to the fastest one
+  default String preset(int tier) {
+    return presets().get(Math.clamp(tier, 0, presets().size() - 1));
+  }
+
+  /// The tier of a preset this encoder has used before, `0` if it isn't one of its presets anymore
+  default int presetTier(String preset) {
+    return Math.max(0, presets().indexOf(preset));
+  }
+
+  /// The lowest common level that fits a rendition of this height at up to 30 fps: 3.0, 3.1, 4.0 or 5.1
+  static int levelOf(VideoRendition rendition) {
+    if (rendition.height() <= 576) {
+      return 30;
+    }
+    if (rendition.height() <= 720) {
+      return 31;
+    }
+    if (rendition.height() <= 1080) {
+      return 40;
+    }
+    return 51;
+  }
+}
@@ -0,0 +1,25 @@
+package com.akiramenai.videobackend.encoder;
+
+import com.akiramenai.videobackend.config.VideoProcessingConfig;
+import com.akiramenai.videobackend.model.VideoCodec;
+import org.springframework.stereotype.Component;
+
+/// Picks the encoder of every codec. H.264 goes to the GPU if there is one, HEVC and AV1 are always encoded on the CPU.
+@Component
+public class VideoEncoderRegistry {
+  private final VideoProcessingConfig videoProcessingConfig;
+
+  public VideoEncoderRegistry(VideoProcessingConfig videoProcessingConfig) {
+    this.videoProcessingConfig = videoProcessingConfig;
+  }
+
+  public VideoEncoder forCodec(VideoCodec codec) {
+    return switch (codec) {
+      case H264 -> videoProcessingConfig.useGpu()
+          ? new NvencH264Encoder(videoProcessingConfig.getGpuEncoderPresets())
+          : new Libx264Encoder(videoProcessingConfig.getCpuEncoderPresets());
+      case Hevc -> new Libx265Encoder(videoProcessingConfig.getX265EncoderPresets());
+      case Av1 -> new SvtAv1Encoder(videoProcessingConfig.getSvtAv1EncoderPresets());
+    };
+  }
+}
@@ -1,6 +1,7 @@
 package com.akiramenai.videobackend.filters;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -22,6 +23,7 @@ import java.util.Arrays;
 
 @Configuration
 @EnableWebSecurity
+@ConditionalOnWebApplication
 public class SecurityConfig {
   private final JwtFilter jwtFilter;
   private final CustomAuthProvider customAuthProvider;
@@ -0,0 +1,15 @@
+package com.akiramenai.videobackend.model;
+
+public enum ApplicationRunMode {
+  All,
+  Api,
+  Worker;
+
+  public boolean runsWorkers() {
+    return this != Api;
+  }
+
+  public boolean servesApi() {
+    return this != Worker;
+  }
+}
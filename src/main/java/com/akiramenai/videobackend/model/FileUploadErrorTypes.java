@@ -6,4 +6,7 @@ public enum FileUploadErrorTypes {
   UnsupportedFileType,
   FailedToCreateUploadDir,
   FailedToSaveFile,
+  IncompleteUpload,
+  ChecksumMismatch,
+  InvalidChunk,
 }
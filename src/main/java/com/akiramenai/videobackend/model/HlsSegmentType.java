@@ -0,0 +1,26 @@
+package com.akiramenai.videobackend.model;
+
+/// Container of the HLS media segments. `Fmp4` writes CMAF segments behind an init segment (`#EXT-X-MAP`), which
+/// carry less overhead than MPEG-TS and can be shared with a DASH manifest.
+public enum HlsSegmentType {
+  MpegTs,
+  Fmp4;
+
+  public static final String INIT_SEGMENT_FILENAME = "init.mp4";
+
+  /// A single file rendition keeps all of its segments in one media file, which its playlist addresses with byte
+  /// ranges.
+  public String segmentFilename(boolean isSingleFile) {
+    String extension = this == Fmp4 ? ".m4s" : ".ts";
+    return (isSingleFile ? "media" : "seg_%03d") + extension;
+  }
+
+  /// The lowest `#EXT-X-VERSION` the playlists need. `#EXT-X-BYTERANGE` takes version 4 and `#EXT-X-MAP` without
+  /// I-frame only playlists takes version 6, the `fmp4` muxer of FFMPEG writes 7.
+  public int playlistVersion(boolean isSingleFile) {
+    if (this == Fmp4) {
+      return 7;
+    }
+    return isSingleFile ? 4 : 3;
+  }
+}
@@ -0,0 +1,9 @@
+package com.akiramenai.videobackend.model;
+
+public record QueueStatsResponse(
+    long queuedJobs,
+    long runningJobs,
+    double oldestWaitInSeconds,
+    double averageWaitInSeconds
+) {
+}
@@ -0,0 +1,7 @@
+package com.akiramenai.videobackend.model;
+
+import java.io.File;
+
+/// An uploaded video that has been written to the video directory, along with the SHA-256 (hex) of its bytes
+public record ReceivedVideo(File file, String sha256) {
+}
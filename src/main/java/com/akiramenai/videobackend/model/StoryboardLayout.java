@@ -0,0 +1,40 @@
+package com.akiramenai.videobackend.model;
+
+/// How the seek-bar previews of a video are laid out. A thumbnail is taken every `intervalInSeconds` and the thumbnails
+/// are tiled into sprite sheets of `columns` x `rows`. Dimensions are in pixels.
+public record StoryboardLayout(
+    int thumbnailWidth,
+    int thumbnailHeight,
+    int columns,
+    int rows,
+    double intervalInSeconds,
+    int posterWidth,
+    int posterHeight
+) {
+  public static final String DIRECTORY_NAME = "storyboard";
+  public static final String THUMBNAILS_FILE_NAME = "thumbnails.vtt";
+  public static final String POSTER_FILE_NAME = "poster.jpg";
+
+  // How many frames the `thumbnail` filter compares to pick the poster
+  private static final int POSTER_CANDIDATE_FRAMES = 50;
+
+  public int thumbnailsPerSprite() {
+    return columns * rows;
+  }
+
+  /// Turns the decoded frames into sprite sheets, e.g. `fps=1/5,scale=160:90,setsar=1,tile=10x10`
+  public String spriteFilter() {
+    return "fps=1/" + intervalInSeconds
+        + ",scale=" + thumbnailWidth + ":" + thumbnailHeight
+        + ",setsar=1,tile=" + columns + "x" + rows;
+  }
+
+  /// Picks the most representative frame (the one closest to the average) shortly after `posterTimeInSeconds`, which
+  /// skips the black frames and title cards most videos open with.
+  public String posterFilter(double posterTimeInSeconds) {
+    return "trim=start=" + posterTimeInSeconds
+        + ",thumbnail=" + POSTER_CANDIDATE_FRAMES
+        + ",scale=" + posterWidth + ":" + posterHeight
+        + ",setsar=1";
+  }
+}
@@ -0,0 +1,7 @@
+package com.akiramenai.videobackend.model;
+
+import java.time.Duration;
+
+/// Why an upload has been turned away, and when it's worth trying again
+public record UploadRejection(String reason, Duration retryAfter) {
+}
@@ -8,12 +8,15 @@ import jakarta.validation.constraints.Size;
 import lombok.Getter;
 import lombok.Setter;
 import org.hibernate.annotations.ColumnDefault;
+import org.hibernate.annotations.DynamicUpdate;
 import org.hibernate.annotations.UpdateTimestamp;
 
 import java.time.LocalDate;
 import java.util.UUID;
 
 @Entity
+// The storage counters are only ever changed with conditional updates, saving the entity mustn't write them back
+@DynamicUpdate
 @Table(name = "users")
 @Getter
 @Setter
@@ -56,6 +59,11 @@ public class Users {
   @NotNull
   private long usedStorageInBytes;
 
+  // Set aside for the videos that are still being uploaded or processed, see `StorageQuotaService`
+  @NotNull
+  @ColumnDefault("0")
+  private long reservedStorageInBytes;
+
   @UpdateTimestamp
   @Column(nullable = false)
   private LocalDate lastLoginDate;
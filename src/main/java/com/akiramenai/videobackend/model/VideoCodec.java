@@ -0,0 +1,9 @@
+package com.akiramenai.videobackend.model;
+
+/// Video codec of a rendition. Every height is always encoded with `H264`, which every player can decode. `Hevc` and
+/// `Av1` variants are only advertised next to it, for the players that can decode them.
+public enum VideoCodec {
+  H264,
+  Hevc,
+  Av1
+}
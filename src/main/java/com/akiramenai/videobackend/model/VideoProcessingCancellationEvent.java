@@ -0,0 +1,6 @@
+package com.akiramenai.videobackend.model;
+
+/// Published when a job gets cancelled. `isCancelled` tells whether the job has been cancelled right away, or its
+/// worker still has to stop it.
+public record VideoProcessingCancellationEvent(VideoProcessingJob job, boolean isCancelled) {
+}
@@ -0,0 +1,10 @@
+package com.akiramenai.videobackend.model;
+
+public enum VideoProcessingCancellationResult {
+  // The job wasn't running, so it's cancelled right away
+  Cancelled,
+  // The job is running. Its worker stops it on its next heartbeat at the latest.
+  CancellationRequested,
+  // The job is already `Done`, `Failed` or `Cancelled`
+  AlreadyFinished
+}
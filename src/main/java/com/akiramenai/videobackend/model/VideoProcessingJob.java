@@ -0,0 +1,147 @@
+package com.akiramenai.videobackend.model;
+
+import jakarta.persistence.*;
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+import org.hibernate.annotations.DynamicUpdate;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Getter
+@Setter
+@Builder
+@Entity
+// The API node and the worker update different columns of the same job, so an update only writes what it has changed
+@DynamicUpdate
+@Table(
+    name = "video_processing_jobs",
+    indexes = {
+        @Index(name = "idx_video_processing_jobs_state", columnList = "state, createdAt"),
+        @Index(name = "idx_video_processing_jobs_uploader", columnList = "uploader, claimedAt"),
+        @Index(name = "idx_video_processing_jobs_source_sha256", columnList = "uploader, sourceSha256")
+    }
+)
+@NoArgsConstructor
+@AllArgsConstructor
+public class VideoProcessingJob {
+  @Id
+  @GeneratedValue(strategy = GenerationType.UUID)
+  private UUID id;
+
+  @NotNull
+  @Column(unique = true)
+  private UUID videoId;
+
+  @NotNull
+  private UUID courseId;
+
+  @NotNull
+  private UUID uploader;
+
+  // The uploaded source video. It is kept around until the job is done, so an interrupted job can be resumed.
+  @NotNull
+  @Column(columnDefinition = "TEXT")
+  private String sourceFilePath;
+
+  // SHA-256 (hex) of the uploaded source, computed while it was being written
+  @Column(length = 64)
+  private String sourceSha256;
+
+  // Size of the uploaded source, counted towards the bytes waiting in the queue
+  private Long sourceSizeInBytes;
+
+  // Storage reserved for the uploader when the video was uploaded, until the job settles it
+  private Long reservedStorageInBytes;
+
+  // What the job has charged to the uploader's storage when it settled the reservation. `null` until then.
+  private Long chargedStorageInBytes;
+
+  @NotNull
+  @Enumerated(EnumType.STRING)
+  private VideoProcessingJobState state;
+
+  @NotNull
+  private int attempts;
+
+  // Higher goes first. Jobs in the priority lane get `1`, everything else `0` and background re-encodes `-1`.
+  @NotNull
+  private int priority;
+
+  // The worker that is currently running the job
+  private String claimedBy;
+
+  // When the job was last picked up by a worker. Used to take turns between the uploaders.
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime claimedAt;
+
+  // A `Running` job whose lease has expired is considered abandoned and will be claimed again. Workers keep renewing
+  // the lease of their jobs while they run.
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime leaseExpiresAt;
+
+  @Column(columnDefinition = "TEXT")
+  private String lastError;
+
+  // A failed job isn't retried before this, so a transient failure gets some time to clear up
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime availableAt;
+
+  // The stages completed so far along with the checksums of their output, see `JobStageManifest`. A retry skips the
+  // ones whose output is still intact.
+  @Column(columnDefinition = "TEXT")
+  private String stageManifest;
+
+  // Set when the uploader cancels a running job. The worker running it checks this on every heartbeat.
+  private Boolean cancelRequested;
+
+  // Snapshot of the live progress. The worker only writes it on its heartbeats, so it can lag behind a little.
+  @Enumerated(EnumType.STRING)
+  private VideoProcessingStage stage;
+
+  private Double progressPercentage;
+
+  private Long etaInSeconds;
+
+  // The preset the renditions were encoded with. It depends on how long the backlog was when the job started.
+  private String encoderPreset;
+
+  // The renditions were encoded with a fast preset, so the job goes back in the queue as a re-encode once it's done
+  private Boolean needsReencode;
+
+  // The renditions the video is encoded at, as `VideoRendition.toLadderString` puts it. With per-title bitrates these
+  // are measured once, so retries and re-encodes stick to the ladder the playlists advertise.
+  @Column(columnDefinition = "TEXT")
+  private String renditionLadder;
+
+  // The job only re-encodes the renditions of an already processed video at the efficient preset
+  private Boolean isReencode;
+
+  // Filled in by the probe stage, before any encoding starts
+  private Integer sourceWidth;
+
+  private Integer sourceHeight;
+
+  private Double sourceFrameRate;
+
+  private Double sourceDurationInSeconds;
+
+  private String sourceVideoCodec;
+
+  private String sourceAudioCodec;
+
+  private Boolean sourceHasAudio;
+
+  @NotNull
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime createdAt;
+
+  @NotNull
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime updatedAt;
+
+  public VideoProcessingTask toTask() {
+    return new VideoProcessingTask(new File(sourceFilePath), courseId, videoId, uploader);
+  }
+}
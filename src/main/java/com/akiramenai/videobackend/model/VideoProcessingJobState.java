@@ -0,0 +1,9 @@
+package com.akiramenai.videobackend.model;
+
+public enum VideoProcessingJobState {
+  Queued,
+  Running,
+  Failed,
+  Done,
+  Cancelled
+}
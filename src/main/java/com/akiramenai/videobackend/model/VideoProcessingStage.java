@@ -0,0 +1,13 @@
+package com.akiramenai.videobackend.model;
+
+public enum VideoProcessingStage {
+  Queued,
+  Probing,
+  Encoding,
+  Transcribing,
+  GeneratingPlaylists,
+  Finalizing,
+  Done,
+  Failed,
+  Cancelled
+}
@@ -0,0 +1,12 @@
+package com.akiramenai.videobackend.model;
+
+public record VideoProcessingStatusResponse(
+    String itemId,
+    String state,
+    String stage,
+    double progressPercentage,
+    Long etaInSeconds,
+    Double encodingSpeed,
+    Double encodingFps
+) {
+}
@@ -0,0 +1,128 @@
+package com.akiramenai.videobackend.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/// One rung of the encoding ladder. Bitrates are in kbps.
+public record VideoRendition(
+    int width,
+    int height,
+    int videoBitrate,
+    int maxRate,
+    int bufferSize,
+    VideoCodec codec
+) {
+  public static final int AUDIO_BITRATE = 128;
+
+  // Default bitrates of the standard heights: {height, bitrate, maxrate, bufsize}
+  private static final int[][] DEFAULT_BITRATES = {
+      {144, 95, 100, 150},
+      {360, 400, 428, 600},
+      {480, 800, 856, 1200},
+      {720, 2500, 2675, 3750},
+      {1080, 5000, 5350, 7500},
+  };
+
+  /// Creates a rendition with the default bitrates of the closest standard height that isn't smaller than `height`.
+  public static VideoRendition withDefaultBitrates(int width, int height) {
+    int[] bitrates = DEFAULT_BITRATES[DEFAULT_BITRATES.length - 1];
+    for (int[] defaultBitrate : DEFAULT_BITRATES) {
+      if (defaultBitrate[0] >= height) {
+        bitrates = defaultBitrate;
+        break;
+      }
+    }
+
+    return new VideoRendition(width, height, bitrates[1], bitrates[2], bitrates[3], VideoCodec.H264);
+  }
+
+  /// Fits the bitrates to what the video actually needs. `measuredBitrate` is what a constant quality encode of the
+  /// video came out at, it's kept between `minBitrateFraction` of the default bitrate and the default bitrate itself.
+  /// The peak rate and the buffer keep their ratio to the bitrate.
+  public VideoRendition withMeasuredBitrate(int measuredBitrate, double minBitrateFraction) {
+    int minBitrate = (int) Math.round(videoBitrate * minBitrateFraction);
+    int bitrate = Math.clamp(measuredBitrate, minBitrate, videoBitrate);
+
+    return new VideoRendition(
+        width,
+        height,
+        bitrate,
+        (int) Math.round((double) bitrate * maxRate / videoBitrate),
+        (int) Math.round((double) bitrate * bufferSize / videoBitrate),
+        codec
+    );
+  }
+
+  /// The same rung in another codec. `bitrateFactor` is the bitrate that codec needs for the same quality, relative to
+  /// the codec of this rendition.
+  public VideoRendition withCodec(VideoCodec codec, double bitrateFactor) {
+    return new VideoRendition(
+        width,
+        height,
+        (int) Math.round(videoBitrate * bitrateFactor),
+        (int) Math.round(maxRate * bitrateFactor),
+        (int) Math.round(bufferSize * bitrateFactor),
+        codec
+    );
+  }
+
+  /// Serializes the ladder as `1920x1080@5000/5350/7500;1920x1080@3250/3478/4875:Hevc`, so it can be stored on the
+  /// job. H.264 rungs leave the codec out.
+  public static String toLadderString(List<VideoRendition> renditions) {
+    StringBuilder ladder = new StringBuilder();
+    for (VideoRendition rendition : renditions) {
+      if (!ladder.isEmpty()) {
+        ladder.append(";");
+      }
+      ladder
+          .append(rendition.width()).append("x").append(rendition.height())
+          .append("@").append(rendition.videoBitrate())
+          .append("/").append(rendition.maxRate())
+          .append("/").append(rendition.bufferSize());
+      if (rendition.codec() != VideoCodec.H264) {
+        ladder.append(":").append(rendition.codec().name());
+      }
+    }
+    return ladder.toString();
+  }
+
+  public static List<VideoRendition> fromLadderString(String ladder) {
+    return Arrays
+        .stream(ladder.split(";"))
+        .map(rung -> {
+          String[] sizeAndRates = rung.split("@");
+          String[] size = sizeAndRates[0].split("x");
+          String[] ratesAndCodec = sizeAndRates[1].split(":");
+          String[] rates = ratesAndCodec[0].split("/");
+          return new VideoRendition(
+              Integer.parseInt(size[0]),
+              Integer.parseInt(size[1]),
+              Integer.parseInt(rates[0]),
+              Integer.parseInt(rates[1]),
+              Integer.parseInt(rates[2]),
+              ratesAndCodec.length > 1 ? VideoCodec.valueOf(ratesAndCodec[1]) : VideoCodec.H264
+          );
+        })
+        .toList();
+  }
+
+  /// `1080` for H.264, `1080_hevc` for the other codecs
+  public String variantName() {
+    return codec == VideoCodec.H264 ? String.valueOf(height) : height + "_" + codec.name().toLowerCase(Locale.ROOT);
+  }
+
+  public String directoryName() {
+    return "v" + variantName();
+  }
+
+  /// Peak bandwidth in bits per second, as advertised in the master playlist
+  public long bandwidth(boolean hasAudio) {
+    return (maxRate + (hasAudio ? AUDIO_BITRATE : 0)) * 1000L;
+  }
+
+  /// Average bandwidth in bits per second, as advertised in the master playlist
+  public long averageBandwidth(boolean hasAudio) {
+    return (videoBitrate + (hasAudio ? AUDIO_BITRATE : 0)) * 1000L;
+  }
+}
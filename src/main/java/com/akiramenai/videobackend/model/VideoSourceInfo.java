@@ -0,0 +1,14 @@
+package com.akiramenai.videobackend.model;
+
+/// What `ffprobe` found out about an uploaded video. `width` and `height` are the display dimensions, i.e. with the
+/// sample aspect ratio and the rotation already applied.
+public record VideoSourceInfo(
+    int width,
+    int height,
+    double frameRate,
+    double durationInSeconds,
+    String videoCodec,
+    String audioCodec,
+    boolean hasAudio
+) {
+}
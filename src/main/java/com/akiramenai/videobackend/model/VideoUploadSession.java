@@ -0,0 +1,71 @@
+package com.akiramenai.videobackend.model;
+
+import jakarta.persistence.*;
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/// A resumable upload. The video comes in as numbered chunks of `chunkSizeInBytes` (the last one can be shorter),
+/// which can be sent in any order, side by side and as often as needed.
+@Getter
+@Setter
+@Builder
+@Entity
+@Table(name = "video_upload_sessions")
+@NoArgsConstructor
+@AllArgsConstructor
+public class VideoUploadSession {
+  @Id
+  @GeneratedValue(strategy = GenerationType.UUID)
+  private UUID id;
+
+  @NotNull
+  private UUID uploader;
+
+  @NotNull
+  private UUID courseId;
+
+  // Only its extension is kept, it tells the container apart
+  @NotNull
+  private String fileExtension;
+
+  @NotNull
+  private long totalSizeInBytes;
+
+  @NotNull
+  private long chunkSizeInBytes;
+
+  // Storage reserved for the video when the session was started. Its job takes it over once the session is completed.
+  @NotNull
+  private long reservedStorageInBytes;
+
+  // SHA-256 (hex) of the whole video, if the uploader has announced it
+  @Column(length = 64)
+  private String expectedSha256;
+
+  @NotNull
+  @Enumerated(EnumType.STRING)
+  private VideoUploadSessionState state;
+
+  // Set once the session is completed, so a repeated completion request gets the same video
+  private UUID videoId;
+
+  @NotNull
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime createdAt;
+
+  // The chunks of a session that hasn't been completed by then are thrown away
+  @NotNull
+  @Temporal(TemporalType.TIMESTAMP)
+  private LocalDateTime expiresAt;
+
+  public int getChunkCount() {
+    return (int) ((totalSizeInBytes + chunkSizeInBytes - 1) / chunkSizeInBytes);
+  }
+
+  public long getChunkLength(int chunkIndex) {
+    return Math.min(chunkSizeInBytes, totalSizeInBytes - chunkIndex * chunkSizeInBytes);
+  }
+}
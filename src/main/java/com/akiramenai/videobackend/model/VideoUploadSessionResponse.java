@@ -0,0 +1,14 @@
+package com.akiramenai.videobackend.model;
+
+import java.util.List;
+
+/// `receivedChunks` are the indexes of the chunks that have been received and verified so far
+public record VideoUploadSessionResponse(
+    String uploadId,
+    String state,
+    long totalSizeInBytes,
+    long chunkSizeInBytes,
+    int chunkCount,
+    List<Integer> receivedChunks
+) {
+}
@@ -0,0 +1,9 @@
+package com.akiramenai.videobackend.model;
+
+public enum VideoUploadSessionState {
+  // Chunks are coming in
+  Open,
+  // One of the completion requests is assembling the video, the others have to wait for it
+  Completing,
+  Completed
+}
@@ -0,0 +1,17 @@
+package com.akiramenai.videobackend.repo;
+
+import java.util.UUID;
+
+public interface UploaderQueueStats {
+  UUID getUploader();
+
+  long getQueuedJobs();
+
+  long getRunningJobs();
+
+  // How long the oldest queued job of the uploader has been waiting
+  Double getOldestWaitInSeconds();
+
+  // How long the jobs claimed within the last day had waited in the queue
+  Double getAverageWaitInSeconds();
+}
@@ -1,7 +1,11 @@
 package com.akiramenai.videobackend.repo;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import com.akiramenai.videobackend.model.Users;
 
 import java.util.Optional;
@@ -16,4 +20,33 @@ public interface UserRepo extends JpaRepository<Users, UUID> {
   Optional<Users> findUsersByEmail(String email);
 
   Optional<Users> getUsersByEmail(String email);
+
+  // Only reserves if the storage that's used and reserved so far leaves room for it, in a single statement so
+  // concurrent uploads can't both slip past the quota
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE Users u
+      SET u.reservedStorageInBytes = u.reservedStorageInBytes + :bytes
+      WHERE u.id = :id AND u.usedStorageInBytes + u.reservedStorageInBytes + :bytes <= u.totalStorageInBytes
+      """)
+  int reserveStorage(@Param("id") UUID id, @Param("bytes") long bytes);
+
+  // Swaps a reservation for the storage that has actually been used. Neither counter goes below zero.
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE Users u
+      SET
+        u.reservedStorageInBytes = CASE
+          WHEN u.reservedStorageInBytes > :reservedBytes THEN u.reservedStorageInBytes - :reservedBytes
+          ELSE 0
+        END,
+        u.usedStorageInBytes = CASE
+          WHEN u.usedStorageInBytes + :usedBytes > 0 THEN u.usedStorageInBytes + :usedBytes
+          ELSE 0
+        END
+      WHERE u.id = :id
+      """)
+  int settleStorage(@Param("id") UUID id, @Param("reservedBytes") long reservedBytes, @Param("usedBytes") long usedBytes);
 }
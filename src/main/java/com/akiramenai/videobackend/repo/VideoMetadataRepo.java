@@ -10,4 +10,7 @@ public interface VideoMetadataRepo extends JpaRepository<VideoMetadata, UUID> {
   Optional<VideoMetadata> findVideoMetadataById(UUID id);
 
   Optional<VideoMetadata> findVideoMetadataByVideoFileId(UUID videoFileId);
+
+  // Videos linked to the renditions of an identical one share its `videoFileId`
+  Optional<VideoMetadata> findFirstVideoMetadataByVideoFileIdAndIsProcessing(UUID videoFileId, boolean isProcessing);
 }
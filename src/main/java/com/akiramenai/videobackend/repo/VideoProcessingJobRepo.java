@@ -0,0 +1,366 @@
+package com.akiramenai.videobackend.repo;
+
+import com.akiramenai.videobackend.model.VideoProcessingJob;
+import com.akiramenai.videobackend.model.VideoProcessingJobState;
+import com.akiramenai.videobackend.model.VideoProcessingStage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface VideoProcessingJobRepo extends JpaRepository<VideoProcessingJob, UUID> {
+  Optional<VideoProcessingJob> findVideoProcessingJobById(UUID id);
+
+  Optional<VideoProcessingJob> findVideoProcessingJobByVideoId(UUID videoId);
+
+  List<VideoProcessingJob> findVideoProcessingJobsByUploaderAndSourceSha256(UUID uploader, String sourceSha256);
+
+  long countByState(VideoProcessingJobState state);
+
+  long countByStateAndPriorityGreaterThanEqual(VideoProcessingJobState state, int priority);
+
+  // Background re-encodes don't count, their sources have been processed once already
+  @Query("SELECT COALESCE(SUM(j.sourceSizeInBytes), 0) FROM VideoProcessingJob j WHERE j.state = :state AND j.priority >= 0")
+  long sumSourceSizeInBytesByState(@Param("state") VideoProcessingJobState state);
+
+  @Query("SELECT COALESCE(SUM(j.sourceSizeInBytes), 0) FROM VideoProcessingJob j WHERE j.claimedAt >= :since AND j.priority >= 0")
+  long sumSourceSizeInBytesClaimedSince(@Param("since") LocalDateTime since);
+
+  // `SKIP LOCKED` lets any number of workers (across any number of nodes) poll the same table without blocking on or
+  // double-claiming each other's rows. `Running` jobs whose lease has expired belong to a dead worker, so they're fair
+  // game too.
+  //
+  // Instead of plain FIFO the uploaders take turns: the priority lane goes first, then the uploader with the fewest
+  // running jobs, then the one who was served the longest time ago. An uploader already at `maxJobsPerUploader` running
+  // jobs is skipped altogether (`0` means no limit). Failed jobs sit out their backoff before they're retried.
+  @Query(
+      nativeQuery = true,
+      value = """
+          WITH uploader_load AS (
+            SELECT
+              uploader,
+              COUNT(*) FILTER (WHERE state = 'Running' AND lease_expires_at >= :now) AS running_jobs,
+              MAX(claimed_at) AS last_claimed_at
+            FROM video_processing_jobs
+            WHERE uploader IN (SELECT uploader FROM video_processing_jobs WHERE state IN ('Queued', 'Running'))
+            GROUP BY uploader
+          )
+          SELECT j.* FROM video_processing_jobs j
+          JOIN uploader_load l ON l.uploader = j.uploader
+          WHERE (
+              (j.state = 'Queued' AND (j.available_at IS NULL OR j.available_at <= :now))
+              OR (j.state = 'Running' AND j.lease_expires_at < :now)
+            )
+            AND (:maxJobsPerUploader <= 0 OR l.running_jobs < :maxJobsPerUploader)
+          ORDER BY j.priority DESC, l.running_jobs, l.last_claimed_at NULLS FIRST, j.created_at
+          LIMIT 1
+          FOR UPDATE OF j SKIP LOCKED
+          """
+  )
+  Optional<VideoProcessingJob> findNextClaimableJob(
+      @Param("now") LocalDateTime now,
+      @Param("maxJobsPerUploader") int maxJobsPerUploader
+  );
+
+  // Serializes the claims of an uploader's jobs until the transaction ends. Two workers claiming at the same time would
+  // both see the uploader one job short of the limit otherwise.
+  @Query(nativeQuery = true, value = "SELECT 1 FROM (SELECT pg_advisory_xact_lock(hashtext(CAST(:uploader AS text)))) l")
+  int lockUploaderClaims(@Param("uploader") UUID uploader);
+
+  @Query("""
+      SELECT COUNT(j) FROM VideoProcessingJob j
+      WHERE j.uploader = :uploader
+        AND j.id <> :jobId
+        AND j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Running
+        AND j.leaseExpiresAt >= :now
+      """)
+  long countOtherRunningJobs(
+      @Param("uploader") UUID uploader,
+      @Param("jobId") UUID jobId,
+      @Param("now") LocalDateTime now
+  );
+
+  @Query(
+      nativeQuery = true,
+      value = """
+          SELECT
+            uploader AS uploader,
+            COUNT(*) FILTER (WHERE state = 'Queued') AS queuedJobs,
+            COUNT(*) FILTER (WHERE state = 'Running') AS runningJobs,
+            EXTRACT(EPOCH FROM (:now - MIN(created_at) FILTER (WHERE state = 'Queued'))) AS oldestWaitInSeconds,
+            AVG(EXTRACT(EPOCH FROM (claimed_at - created_at))) FILTER (WHERE claimed_at >= :since) AS averageWaitInSeconds
+          FROM video_processing_jobs
+          WHERE uploader = :uploader
+          GROUP BY uploader
+          """
+  )
+  Optional<UploaderQueueStats> getUploaderQueueStats(
+      @Param("uploader") UUID uploader,
+      @Param("now") LocalDateTime now,
+      @Param("since") LocalDateTime since
+  );
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.leaseExpiresAt = :leaseExpiresAt, j.updatedAt = :now
+      WHERE j.id IN :jobIds
+        AND j.claimedBy = :workerId
+        AND j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Running
+      """)
+  int renewLeases(
+      @Param("jobIds") Collection<UUID> jobIds,
+      @Param("workerId") String workerId,
+      @Param("leaseExpiresAt") LocalDateTime leaseExpiresAt,
+      @Param("now") LocalDateTime now
+  );
+
+  // Conditional updates, so a cancellation can't race with a worker claiming the job
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Cancelled,
+        j.stage = com.akiramenai.videobackend.model.VideoProcessingStage.Cancelled,
+        j.claimedBy = null,
+        j.leaseExpiresAt = null,
+        j.etaInSeconds = null,
+        j.updatedAt = :now
+      WHERE j.id = :jobId
+        AND (
+          j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Queued
+          OR (j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Running AND j.leaseExpiresAt < :now)
+        )
+      """)
+  int cancelIdleJob(@Param("jobId") UUID jobId, @Param("now") LocalDateTime now);
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.cancelRequested = true, j.updatedAt = :now
+      WHERE j.id = :jobId
+        AND j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Running
+      """)
+  int requestCancellation(@Param("jobId") UUID jobId, @Param("now") LocalDateTime now);
+
+  @Query("SELECT j.id FROM VideoProcessingJob j WHERE j.id IN :jobIds AND j.cancelRequested = true")
+  List<UUID> findCancelRequestedJobIds(@Param("jobIds") Collection<UUID> jobIds);
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.stage = :stage, j.progressPercentage = :progressPercentage, j.etaInSeconds = :etaInSeconds, j.updatedAt = :now
+      WHERE j.id = :jobId
+        AND j.claimedBy = :workerId
+        AND j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Running
+      """)
+  int recordProgress(
+      @Param("jobId") UUID jobId,
+      @Param("workerId") String workerId,
+      @Param("stage") VideoProcessingStage stage,
+      @Param("progressPercentage") Double progressPercentage,
+      @Param("etaInSeconds") Long etaInSeconds,
+      @Param("now") LocalDateTime now
+  );
+
+  // The whole manifest is written at once. The stages running side by side would overwrite each other's checkpoints
+  // with a read-modify-write of the entity.
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.stageManifest = :stageManifest, j.updatedAt = :now
+      WHERE j.id = :jobId
+        AND j.claimedBy = :workerId
+        AND j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Running
+      """)
+  int recordStageManifest(
+      @Param("jobId") UUID jobId,
+      @Param("workerId") String workerId,
+      @Param("stageManifest") String stageManifest,
+      @Param("now") LocalDateTime now
+  );
+
+  // The worker writes everything else about its job with conditional updates of only the columns it changes as well.
+  // A read-modify-write of the entity would put back a stale `cancelRequested` or `sourceSha256` that the API node
+  // has written in the meantime, or overwrite a job that another worker has reclaimed.
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Cancelled,
+        j.stage = com.akiramenai.videobackend.model.VideoProcessingStage.Cancelled,
+        j.cancelRequested = false,
+        j.claimedBy = null,
+        j.leaseExpiresAt = null,
+        j.etaInSeconds = null,
+        j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int markCancelled(@Param("jobId") UUID jobId, @Param("workerId") String workerId, @Param("now") LocalDateTime now);
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Done,
+        j.stage = com.akiramenai.videobackend.model.VideoProcessingStage.Done,
+        j.progressPercentage = 100.0,
+        j.etaInSeconds = 0,
+        j.claimedBy = null,
+        j.leaseExpiresAt = null,
+        j.lastError = null,
+        j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int markDone(@Param("jobId") UUID jobId, @Param("workerId") String workerId, @Param("now") LocalDateTime now);
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Queued,
+        j.needsReencode = false,
+        j.isReencode = true,
+        j.priority = -1,
+        j.attempts = 0,
+        j.claimedBy = null,
+        j.leaseExpiresAt = null,
+        j.lastError = null,
+        j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId AND j.needsReencode = true
+      """)
+  int requeueForReencode(@Param("jobId") UUID jobId, @Param("workerId") String workerId, @Param("now") LocalDateTime now);
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.encoderPreset = :encoderPreset, j.needsReencode = :needsReencode, j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int recordEncoderPreset(
+      @Param("jobId") UUID jobId,
+      @Param("workerId") String workerId,
+      @Param("encoderPreset") String encoderPreset,
+      @Param("needsReencode") boolean needsReencode,
+      @Param("now") LocalDateTime now
+  );
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.renditionLadder = :renditionLadder, j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int recordRenditionLadder(
+      @Param("jobId") UUID jobId,
+      @Param("workerId") String workerId,
+      @Param("renditionLadder") String renditionLadder,
+      @Param("now") LocalDateTime now
+  );
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.sourceWidth = :width,
+        j.sourceHeight = :height,
+        j.sourceFrameRate = :frameRate,
+        j.sourceDurationInSeconds = :durationInSeconds,
+        j.sourceVideoCodec = :videoCodec,
+        j.sourceAudioCodec = :audioCodec,
+        j.sourceHasAudio = :hasAudio,
+        j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int recordSourceInfo(
+      @Param("jobId") UUID jobId,
+      @Param("workerId") String workerId,
+      @Param("width") Integer width,
+      @Param("height") Integer height,
+      @Param("frameRate") Double frameRate,
+      @Param("durationInSeconds") Double durationInSeconds,
+      @Param("videoCodec") String videoCodec,
+      @Param("audioCodec") String audioCodec,
+      @Param("hasAudio") Boolean hasAudio,
+      @Param("now") LocalDateTime now
+  );
+
+  // `state` is either `Queued` for a retry after `availableAt`, or `Failed` for good
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.state = :state,
+        j.stage = :stage,
+        j.etaInSeconds = null,
+        j.claimedBy = null,
+        j.leaseExpiresAt = null,
+        j.lastError = :lastError,
+        j.availableAt = :availableAt,
+        j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int recordFailure(
+      @Param("jobId") UUID jobId,
+      @Param("workerId") String workerId,
+      @Param("state") VideoProcessingJobState state,
+      @Param("stage") VideoProcessingStage stage,
+      @Param("lastError") String lastError,
+      @Param("availableAt") LocalDateTime availableAt,
+      @Param("now") LocalDateTime now
+  );
+
+  // Handing the job back doesn't count as an attempt
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET
+        j.state = com.akiramenai.videobackend.model.VideoProcessingJobState.Queued,
+        j.stage = com.akiramenai.videobackend.model.VideoProcessingStage.Queued,
+        j.etaInSeconds = null,
+        j.attempts = CASE WHEN j.attempts > 0 THEN j.attempts - 1 ELSE 0 END,
+        j.claimedBy = null,
+        j.leaseExpiresAt = null,
+        j.updatedAt = :now
+      WHERE j.id = :jobId AND j.claimedBy = :workerId
+      """)
+  int release(@Param("jobId") UUID jobId, @Param("workerId") String workerId, @Param("now") LocalDateTime now);
+
+  // Only the first settlement of a job goes through, so a retried finalize doesn't charge the video twice
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoProcessingJob j
+      SET j.chargedStorageInBytes = :chargedBytes
+      WHERE j.id = :id AND j.chargedStorageInBytes IS NULL
+      """)
+  int recordChargedStorage(@Param("id") UUID id, @Param("chargedBytes") long chargedBytes);
+
+  // Written by the API node once a streamed upload is complete, while a worker might already be running the job
+  @Modifying
+  @Transactional
+  @Query("UPDATE VideoProcessingJob j SET j.sourceSha256 = :sourceSha256 WHERE j.videoId = :videoId")
+  int recordSourceSha256(@Param("videoId") UUID videoId, @Param("sourceSha256") String sourceSha256);
+}
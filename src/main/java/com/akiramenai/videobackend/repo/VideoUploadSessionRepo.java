@@ -0,0 +1,56 @@
+package com.akiramenai.videobackend.repo;
+
+import com.akiramenai.videobackend.model.VideoUploadSession;
+import com.akiramenai.videobackend.model.VideoUploadSessionState;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface VideoUploadSessionRepo extends JpaRepository<VideoUploadSession, UUID> {
+  Optional<VideoUploadSession> findVideoUploadSessionByIdAndUploader(UUID id, UUID uploader);
+
+  List<VideoUploadSession> findVideoUploadSessionsByStateAndExpiresAtBefore(
+      VideoUploadSessionState state,
+      LocalDateTime now
+  );
+
+  // Only one of the concurrent requests gets to move the session along
+  @Modifying
+  @Transactional
+  @Query("UPDATE VideoUploadSession s SET s.state = :newState WHERE s.id = :id AND s.state = :currentState")
+  int transitionState(
+      @Param("id") UUID id,
+      @Param("currentState") VideoUploadSessionState currentState,
+      @Param("newState") VideoUploadSessionState newState
+  );
+
+  @Modifying
+  @Transactional
+  @Query("""
+      UPDATE VideoUploadSession s
+      SET s.state = com.akiramenai.videobackend.model.VideoUploadSessionState.Completed, s.videoId = :videoId
+      WHERE s.id = :id
+      """)
+  int markCompleted(@Param("id") UUID id, @Param("videoId") UUID videoId);
+
+  // Only one of the concurrent cleanups gets to delete the session, and it's left alone if its completion has started
+  // in the meantime
+  @Modifying
+  @Transactional
+  @Query("""
+      DELETE FROM VideoUploadSession s
+      WHERE s.id = :id
+        AND s.state = com.akiramenai.videobackend.model.VideoUploadSessionState.Open
+        AND s.expiresAt < :now
+      """)
+  int deleteExpiredSession(@Param("id") UUID id, @Param("now") LocalDateTime now);
+}
@@ -6,22 +6,38 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import com.akiramenai.videobackend.model.FileUploadErrorTypes;
+import com.akiramenai.videobackend.model.ReceivedVideo;
 import com.akiramenai.videobackend.model.ResultOrError;
+import com.akiramenai.videobackend.utility.StreamingIngest;
+import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Optional;
 import java.util.UUID;
 
 @Slf4j
 @Service
 public class MediaStorageService {
+  private static final int UPLOAD_BUFFER_SIZE = 256 * 1024;
+
   public enum FileType {
     PNG,
+    JPG,
     MP4,
     VTT
   }
@@ -86,8 +102,10 @@ public class MediaStorageService {
     }
   }
 
-  public ResultOrError<String, FileUploadErrorTypes> saveUploadedVideo(MultipartFile file) {
-    var resp = ResultOrError.<String, FileUploadErrorTypes>builder();
+  /// Streams the uploaded video into the video directory in a single pass, hashing it on the way through. The video is
+  /// rejected if `expectedSha256` is given and doesn't match.
+  public ResultOrError<ReceivedVideo, FileUploadErrorTypes> saveUploadedVideo(MultipartFile file, String expectedSha256) {
+    var resp = ResultOrError.<ReceivedVideo, FileUploadErrorTypes>builder();
     if (file.isEmpty()) {
       return resp
           .errorMessage("Uploaded file is empty.")
@@ -96,6 +114,7 @@ public class MediaStorageService {
           .build();
     }
 
+    Path filePath;
     try {
       Path uploadPath = Paths.get(this.videoDirectoryString);
       if (!Files.exists(uploadPath)) {
@@ -103,16 +122,7 @@ public class MediaStorageService {
         Files.createDirectories(uploadPath);
       }
 
-      String fileName = getGeneratedFileName(file.getOriginalFilename());
-      Path filePath = uploadPath.resolve(fileName);
-      Files.copy(file.getInputStream(), filePath);
-
-      return ResultOrError
-          .<String, FileUploadErrorTypes>builder()
-          .result(filePath.toString())
-          .errorMessage(null)
-          .errorType(null)
-          .build();
+      filePath = uploadPath.resolve(getGeneratedFileName(file.getOriginalFilename()));
     } catch (InvalidPathException e) {
       log.error("Invalid Path Exception: {}", e.getMessage());
 
@@ -138,6 +148,170 @@ public class MediaStorageService {
           .result(null)
           .build();
     }
+
+    try (
+        ReadableByteChannel body = Channels.newChannel(file.getInputStream());
+        FileChannel videoChannel = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+    ) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      long writtenBytes = writeAndDigest(body, videoChannel, file.getSize(), digest);
+      return verifyReceivedVideo(filePath, writtenBytes, file.getSize(), digest, expectedSha256);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      log.error("Failed to save the uploaded video. Reason: {}", e.getMessage());
+      FileUtils.deleteQuietly(filePath.toFile());
+
+      return resp
+          .errorMessage(e.getMessage())
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .result(null)
+          .build();
+    }
+  }
+
+  /// Creates the empty partial file a streamed upload gets written to. Returns the file the upload ends up as once it's
+  /// complete.
+  public ResultOrError<File, FileUploadErrorTypes> createStreamedVideoFile(String originalFilename) {
+    var resp = ResultOrError.<File, FileUploadErrorTypes>builder();
+
+    try {
+      Path uploadPath = Paths.get(this.videoDirectoryString);
+      if (!Files.exists(uploadPath)) {
+        log.warn("Could not find video directory: {}", uploadPath);
+        Files.createDirectories(uploadPath);
+      }
+
+      File videoFile = uploadPath.resolve(getGeneratedFileName(originalFilename)).toFile();
+      Files.createFile(StreamingIngest.partialFileOf(videoFile));
+
+      return resp
+          .result(videoFile)
+          .build();
+    } catch (InvalidPathException e) {
+      log.error("Invalid Path Exception: {}", e.getMessage());
+
+      return resp
+          .errorMessage(e.getMessage())
+          .errorType(FileUploadErrorTypes.InvalidUploadDir)
+          .build();
+    } catch (IOException e) {
+      log.error("IO Exception: {}", e.getMessage());
+
+      return resp
+          .errorMessage(e.getMessage())
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .build();
+    }
+  }
+
+  /// Appends the streamed upload to its partial file, and renames the partial file to `videoFile` once all
+  /// `expectedSizeInBytes` are in and match `expectedSha256` (if given). Every chunk goes straight to the file, so a
+  /// worker that follows the upload sees it as soon as it arrives. A failed upload leaves nothing behind.
+  public ResultOrError<ReceivedVideo, FileUploadErrorTypes> receiveStreamedVideo(
+      InputStream body,
+      File videoFile,
+      long expectedSizeInBytes,
+      String expectedSha256
+  ) {
+    var resp = ResultOrError.<ReceivedVideo, FileUploadErrorTypes>builder();
+    Path partialFile = StreamingIngest.partialFileOf(videoFile);
+
+    ResultOrError<ReceivedVideo, FileUploadErrorTypes> receivedVideo;
+    try (
+        ReadableByteChannel bodyChannel = Channels.newChannel(body);
+        FileChannel videoChannel = FileChannel.open(partialFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+    ) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      long writtenBytes = writeAndDigest(bodyChannel, videoChannel, expectedSizeInBytes, digest);
+      receivedVideo = verifyReceivedVideo(partialFile, writtenBytes, expectedSizeInBytes, digest, expectedSha256);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      log.error("Failed to receive the streamed video. Reason: {}", e.getMessage());
+      FileUtils.deleteQuietly(partialFile.toFile());
+
+      return resp
+          .errorMessage(e.getMessage())
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .build();
+    }
+    if (receivedVideo.errorType() != null) {
+      return receivedVideo;
+    }
+
+    try {
+      Files.move(partialFile, videoFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("IO Exception: {}", e.getMessage());
+      FileUtils.deleteQuietly(partialFile.toFile());
+
+      return resp
+          .errorMessage(e.getMessage())
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .build();
+    }
+
+    return resp
+        .result(new ReceivedVideo(videoFile, receivedVideo.result().sha256()))
+        .build();
+  }
+
+  /// Copies `source` into `target` through one buffer and feeds every chunk to `digest` on its way through, so the
+  /// video is written once and never read back. Stops as soon as more than `maxBytes` come in.
+  ///
+  /// Returns how many bytes have come in.
+  private static long writeAndDigest(
+      ReadableByteChannel source,
+      FileChannel target,
+      long maxBytes,
+      MessageDigest digest
+  ) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(UPLOAD_BUFFER_SIZE);
+    long receivedBytes = 0;
+    while (source.read(buffer) >= 0) {
+      buffer.flip();
+      receivedBytes += buffer.remaining();
+      if (receivedBytes > maxBytes) {
+        return receivedBytes;
+      }
+
+      digest.update(buffer.duplicate());
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+      buffer.clear();
+    }
+    return receivedBytes;
+  }
+
+  // Deletes the received file if it isn't what the uploader has announced
+  private static ResultOrError<ReceivedVideo, FileUploadErrorTypes> verifyReceivedVideo(
+      Path receivedFile,
+      long receivedBytes,
+      long expectedSizeInBytes,
+      MessageDigest digest,
+      String expectedSha256
+  ) {
+    var resp = ResultOrError.<ReceivedVideo, FileUploadErrorTypes>builder();
+    if (receivedBytes != expectedSizeInBytes) {
+      FileUtils.deleteQuietly(receivedFile.toFile());
+
+      return resp
+          .errorMessage("Received " + receivedBytes + " bytes of the " + expectedSizeInBytes + " bytes of the video.")
+          .errorType(FileUploadErrorTypes.IncompleteUpload)
+          .build();
+    }
+
+    String sha256 = HexFormat.of().formatHex(digest.digest());
+    if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+      FileUtils.deleteQuietly(receivedFile.toFile());
+
+      return resp
+          .errorMessage("The checksum of the video doesn't match. Expected: " + expectedSha256 + ", received: " + sha256)
+          .errorType(FileUploadErrorTypes.ChecksumMismatch)
+          .build();
+    }
+
+    return resp
+        .result(new ReceivedVideo(receivedFile.toFile(), sha256))
+        .build();
   }
 
   private String getFileExtension(@NotNull String filename) {
@@ -162,6 +336,10 @@ public class MediaStorageService {
           uploadPath = Paths.get(this.pictureDirectoryString);
           fileExtension = ".png";
         }
+        case JPG -> {
+          uploadPath = Paths.get(this.pictureDirectoryString);
+          fileExtension = ".jpg";
+        }
         case MP4 -> {
           uploadPath = Paths.get(this.videoDirectoryString);
           fileExtension = ".mp4";
@@ -0,0 +1,105 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.config.VideoProcessingConfig;
+import com.akiramenai.videobackend.encoder.VideoEncoderRegistry;
+import com.akiramenai.videobackend.model.VideoCodec;
+import com.akiramenai.videobackend.model.VideoProcessingJob;
+import com.akiramenai.videobackend.repo.UserRepo;
+import com.akiramenai.videobackend.repo.VideoProcessingJobRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+/// Ledger of the instructors' storage. An upload reserves an estimate of what its renditions will take up front, and its
+/// job settles the reservation to what they actually take once it's done, or releases it if it isn't.
+///
+/// The counters of `Users` are only changed with conditional updates, so concurrent uploads and jobs can neither get
+/// past the quota nor overwrite each other's changes.
+@Slf4j
+@Service
+public class StorageQuotaService {
+  // The storyboard sheets and the poster are small JPEGs, a tenth of the upload leaves plenty of room for them
+  private static final double STORYBOARD_SHARE_OF_UPLOAD = 0.1;
+
+  private final UserRepo userRepo;
+  private final VideoProcessingJobRepo videoProcessingJobRepo;
+  private final VideoProcessingConfig videoProcessingConfig;
+  private final VideoEncoderRegistry videoEncoderRegistry;
+
+  public StorageQuotaService(
+      UserRepo userRepo,
+      VideoProcessingJobRepo videoProcessingJobRepo,
+      VideoProcessingConfig videoProcessingConfig,
+      VideoEncoderRegistry videoEncoderRegistry
+  ) {
+    this.userRepo = userRepo;
+    this.videoProcessingJobRepo = videoProcessingJobRepo;
+    this.videoProcessingConfig = videoProcessingConfig;
+    this.videoEncoderRegistry = videoEncoderRegistry;
+  }
+
+  /// Upper bound of the storage the renditions of a `videoSize` bytes long upload take up. No H.264 rung is taken to
+  /// be larger than the upload, the same rung in another codec is as much smaller as that codec's bitrate.
+  public long estimateStorage(long videoSize) {
+    double uploadsWorth = 0;
+    for (int videoHeight : videoProcessingConfig.getVideoHeights()) {
+      uploadsWorth += 1;
+      for (VideoCodec codec : videoProcessingConfig.getAdditionalCodecs(videoHeight)) {
+        uploadsWorth += videoEncoderRegistry.forCodec(codec).bitrateFactor();
+      }
+    }
+    if (videoProcessingConfig.isStoryboard()) {
+      uploadsWorth += STORYBOARD_SHARE_OF_UPLOAD;
+    }
+
+    return (long) Math.ceil(videoSize * uploadsWorth);
+  }
+
+  /// Returns `false` if the uploader doesn't have `bytes` of storage left.
+  public boolean reserve(UUID uploader, long bytes) {
+    return userRepo.reserveStorage(uploader, bytes) > 0;
+  }
+
+  /// Gives back a reservation that no job has taken over.
+  public void release(UUID uploader, long reservedBytes) {
+    if (reservedBytes > 0 && userRepo.settleStorage(uploader, reservedBytes, 0) == 0) {
+      log.warn("Failed to release the reserved storage. User not found. UserId: {}", uploader);
+    }
+  }
+
+  /// Charges `usedBytes` to the uploader in place of the job's reservation. Only the first settlement of a job counts.
+  @Transactional
+  public void settle(UUID jobId, long usedBytes) {
+    Optional<VideoProcessingJob> job = videoProcessingJobRepo.findVideoProcessingJobById(jobId);
+    if (job.isEmpty()) {
+      log.error("Failed to settle the reserved storage. Job not found. JobId: {}", jobId);
+      return;
+    }
+    if (videoProcessingJobRepo.recordChargedStorage(jobId, usedBytes) == 0) {
+      log.info("The storage of video processing job {} has already been settled.", jobId);
+      return;
+    }
+
+    long reservedBytes = Objects.requireNonNullElse(job.get().getReservedStorageInBytes(), 0L);
+    if (userRepo.settleStorage(job.get().getUploader(), reservedBytes, usedBytes) == 0) {
+      log.warn("Failed to settle the reserved storage. User not found. UserId: {}", job.get().getUploader());
+    }
+  }
+
+  /// Gives back the job's reservation without charging anything, e.g. when it has failed for good.
+  @Transactional
+  public void releaseJob(UUID jobId) {
+    settle(jobId, 0);
+  }
+
+  /// Charges (or with negative `deltaBytes` refunds) the uploader for a video that has been settled already.
+  public void adjustUsedStorage(UUID uploader, long deltaBytes) {
+    if (userRepo.settleStorage(uploader, 0, deltaBytes) == 0) {
+      log.warn("Failed to update the used storage. User not found. UserId: {}", uploader);
+    }
+  }
+}
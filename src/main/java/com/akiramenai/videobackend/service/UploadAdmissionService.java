@@ -0,0 +1,119 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.config.VideoProcessingConfig;
+import com.akiramenai.videobackend.model.UploadRejection;
+import com.akiramenai.videobackend.utility.TokenBucket;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// Decides whether an upload is let in before any of it gets written, so an upload storm is answered with quick `429`s
+/// instead of piling up on the disk and in the queue.
+///
+/// The token buckets live on this node. Only the bytes waiting in the queue are counted across every node.
+@Slf4j
+@Service
+public class UploadAdmissionService {
+  // Without a drain rate to go by, e.g. while every worker is busy with a long video
+  private static final Duration DEFAULT_RETRY_AFTER = Duration.ofMinutes(1);
+  private static final Duration MAX_RETRY_AFTER = Duration.ofHours(1);
+  // Instructors whose bucket is full again are forgotten once there are this many of them
+  private static final int MAX_TRACKED_UPLOADERS = 10_000;
+
+  private final VideoProcessingConfig videoProcessingConfig;
+  private final VideoProcessingQueueService videoProcessingQueueService;
+
+  private final TokenBucket uploadBucket;
+  private final Map<UUID, TokenBucket> uploaderBuckets = new ConcurrentHashMap<>();
+
+  public UploadAdmissionService(
+      VideoProcessingConfig videoProcessingConfig,
+      VideoProcessingQueueService videoProcessingQueueService
+  ) {
+    this.videoProcessingConfig = videoProcessingConfig;
+    this.videoProcessingQueueService = videoProcessingQueueService;
+
+    this.uploadBucket = videoProcessingConfig.getUploadsPerMinute() > 0
+        ? new TokenBucket(videoProcessingConfig.getUploadBurst(), videoProcessingConfig.getUploadsPerMinute() / 60)
+        : null;
+  }
+
+  /// Lets the upload of a `videoSize` bytes long video in, or says why not.
+  public Optional<UploadRejection> admit(UUID uploader, long videoSize) {
+    TokenBucket uploaderBucket = getUploaderBucket(uploader);
+    if (uploaderBucket != null) {
+      Optional<Duration> uploaderWait = uploaderBucket.tryAcquire();
+      if (uploaderWait.isPresent()) {
+        return Optional.of(new UploadRejection("You are uploading too many videos at once.", uploaderWait.get()));
+      }
+    }
+
+    if (uploadBucket != null) {
+      Optional<Duration> uploadWait = uploadBucket.tryAcquire();
+      if (uploadWait.isPresent()) {
+        releaseToken(uploaderBucket);
+        return Optional.of(new UploadRejection("The server is receiving too many uploads right now.", uploadWait.get()));
+      }
+    }
+
+    Optional<UploadRejection> queueRejection = checkQueuedBytes(videoSize);
+    if (queueRejection.isPresent()) {
+      releaseToken(uploaderBucket);
+      releaseToken(uploadBucket);
+    }
+    return queueRejection;
+  }
+
+  /// Turns the video away if it would push the bytes waiting in the queue over `maxQueuedUploadBytes`. It's told to come
+  /// back once the workers have taken enough off the queue, going by how fast they've done so lately.
+  public Optional<UploadRejection> checkQueuedBytes(long videoSize) {
+    long maxQueuedBytes = videoProcessingConfig.getMaxQueuedUploadBytes();
+    if (maxQueuedBytes <= 0) {
+      return Optional.empty();
+    }
+
+    long queuedBytes = videoProcessingQueueService.getQueuedSourceBytes();
+    // A video larger than the limit still gets in once the queue is empty
+    if (queuedBytes == 0 || queuedBytes + videoSize <= maxQueuedBytes) {
+      return Optional.empty();
+    }
+
+    Duration retryAfter = DEFAULT_RETRY_AFTER;
+    double drainRate = videoProcessingQueueService.getDrainRateInBytesPerSecond();
+    if (drainRate > 0) {
+      long excessBytes = Math.min(queuedBytes, queuedBytes + videoSize - maxQueuedBytes);
+      retryAfter = Duration.ofSeconds((long) Math.ceil(excessBytes / drainRate));
+    }
+    if (retryAfter.compareTo(MAX_RETRY_AFTER) > 0) {
+      retryAfter = MAX_RETRY_AFTER;
+    }
+
+    log.info("Turning away an upload of {} bytes. {} bytes are waiting in the queue.", videoSize, queuedBytes);
+    return Optional.of(new UploadRejection("Too many videos are waiting to be processed right now.", retryAfter));
+  }
+
+  private TokenBucket getUploaderBucket(UUID uploader) {
+    if (videoProcessingConfig.getUploadsPerMinutePerInstructor() <= 0) {
+      return null;
+    }
+
+    if (uploaderBuckets.size() > MAX_TRACKED_UPLOADERS) {
+      uploaderBuckets.values().removeIf(TokenBucket::isFull);
+    }
+    return uploaderBuckets.computeIfAbsent(uploader, id -> new TokenBucket(
+        videoProcessingConfig.getUploadBurstPerInstructor(),
+        videoProcessingConfig.getUploadsPerMinutePerInstructor() / 60
+    ));
+  }
+
+  private static void releaseToken(TokenBucket bucket) {
+    if (bucket != null) {
+      bucket.release();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.model.VideoMetadata;
+import com.akiramenai.videobackend.model.VideoProcessingJob;
+import com.akiramenai.videobackend.repo.VideoMetadataRepo;
+import com.akiramenai.videobackend.repo.VideoProcessingJobRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/// Spots an author uploading a video they've already uploaded, by the SHA-256 of the source. Instead of being encoded
+/// and stored again, the new video gets linked to the renditions of the one that's already processed: both
+/// `VideoMetadata` share its `videoFileId`.
+///
+/// Only byte for byte identical sources count. The audio fingerprint also matches a re-edited video of the same
+/// lecture, and that one has to keep its own renditions.
+@Slf4j
+@Service
+public class VideoDeduplicationService {
+  private final VideoProcessingJobRepo videoProcessingJobRepo;
+  private final VideoMetadataRepo videoMetadataRepo;
+
+  public VideoDeduplicationService(VideoProcessingJobRepo videoProcessingJobRepo, VideoMetadataRepo videoMetadataRepo) {
+    this.videoProcessingJobRepo = videoProcessingJobRepo;
+    this.videoMetadataRepo = videoMetadataRepo;
+  }
+
+  /// A processed video of `uploader` whose source has the same checksum. `videoId` is left out, so a job doesn't find
+  /// itself.
+  public Optional<VideoMetadata> findProcessedDuplicate(UUID uploader, String sourceSha256, UUID videoId) {
+    if (sourceSha256 == null || sourceSha256.isBlank()) {
+      return Optional.empty();
+    }
+
+    List<VideoProcessingJob> candidateJobs = videoProcessingJobRepo.findVideoProcessingJobsByUploaderAndSourceSha256(
+        uploader,
+        sourceSha256.toLowerCase()
+    );
+    for (VideoProcessingJob candidateJob : candidateJobs) {
+      if (candidateJob.getVideoId().equals(videoId)) {
+        continue;
+      }
+
+      // A video that's still processing has nothing to link to yet, and a deleted one has nothing left
+      Optional<VideoMetadata> processedVideo = videoMetadataRepo.findFirstVideoMetadataByVideoFileIdAndIsProcessing(
+          candidateJob.getVideoId(),
+          false
+      );
+      if (processedVideo.isPresent()) {
+        return processedVideo;
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  /// Points `metadata` at the renditions, subtitles and thumbnail of `existingVideo`. It isn't saved here.
+  public void linkTo(VideoMetadata metadata, VideoMetadata existingVideo) {
+    log.info(
+        "Linking video {} to the renditions of the identical video {}.",
+        metadata.getItemId(),
+        existingVideo.getItemId()
+    );
+    metadata.setVideoFileId(existingVideo.getVideoFileId());
+    metadata.setSubtitleFileName(existingVideo.getSubtitleFileName());
+    if (metadata.getThumbnailImageName() == null) {
+      metadata.setThumbnailImageName(existingVideo.getThumbnailImageName());
+    }
+    metadata.setProcessing(false);
+  }
+}
@@ -0,0 +1,451 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.config.VideoProcessingConfig;
+import com.akiramenai.videobackend.model.QueueStatsResponse;
+import com.akiramenai.videobackend.model.VideoProcessingCancellationEvent;
+import com.akiramenai.videobackend.model.VideoProcessingCancellationResult;
+import com.akiramenai.videobackend.model.VideoProcessingJob;
+import com.akiramenai.videobackend.model.VideoProcessingJobState;
+import com.akiramenai.videobackend.model.VideoProcessingStage;
+import com.akiramenai.videobackend.model.VideoProcessingStatusResponse;
+import com.akiramenai.videobackend.model.VideoProcessingTask;
+import com.akiramenai.videobackend.model.VideoRendition;
+import com.akiramenai.videobackend.model.VideoSourceInfo;
+import com.akiramenai.videobackend.repo.UploaderQueueStats;
+import com.akiramenai.videobackend.repo.VideoProcessingJobRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/// Persistent queue of video processing jobs. Every job lives in the `video_processing_jobs` table, so queued and
+/// in-flight work survives a restart of the application, and any number of worker nodes can share the same queue.
+@Slf4j
+@Service
+public class VideoProcessingQueueService {
+  // How far back the drain rate of the queue looks
+  private static final Duration DRAIN_RATE_WINDOW = Duration.ofMinutes(15);
+
+  private final VideoProcessingJobRepo videoProcessingJobRepo;
+  private final VideoProcessingConfig videoProcessingConfig;
+  private final VideoProgressTracker videoProgressTracker;
+  private final ApplicationEventPublisher eventPublisher;
+
+  // Identifies the workers of this node on the jobs they claim
+  private final String workerId = resolveHostName() + ":" + ProcessHandle.current().pid();
+
+  // Wakes up idle workers as soon as something gets enqueued, instead of making them wait for the next poll
+  private final Semaphore newJobSignal = new Semaphore(0);
+
+  public VideoProcessingQueueService(
+      VideoProcessingJobRepo videoProcessingJobRepo,
+      VideoProcessingConfig videoProcessingConfig,
+      VideoProgressTracker videoProgressTracker,
+      ApplicationEventPublisher eventPublisher
+  ) {
+    this.videoProcessingJobRepo = videoProcessingJobRepo;
+    this.videoProcessingConfig = videoProcessingConfig;
+    this.videoProgressTracker = videoProgressTracker;
+    this.eventPublisher = eventPublisher;
+  }
+
+  /// `isPriority` puts the job in the priority lane, ahead of everything else that is queued. `sourceSha256` is `null`
+  /// if the upload is still coming in, see `recordSourceChecksum`. The job takes over `reservedStorageInBytes` of the
+  /// uploader's storage, see `StorageQuotaService`.
+  public VideoProcessingJob enqueue(
+      VideoProcessingTask task,
+      boolean isPriority,
+      String sourceSha256,
+      long sourceSizeInBytes,
+      long reservedStorageInBytes
+  ) {
+    LocalDateTime ldtNow = LocalDateTime.now();
+    VideoProcessingJob job = VideoProcessingJob
+        .builder()
+        .videoId(task.videoId())
+        .courseId(task.courseId())
+        .uploader(task.uploader())
+        .sourceFilePath(task.videoToProcess().getAbsolutePath())
+        .sourceSha256(sourceSha256)
+        .sourceSizeInBytes(sourceSizeInBytes)
+        .reservedStorageInBytes(reservedStorageInBytes)
+        .state(VideoProcessingJobState.Queued)
+        .stage(VideoProcessingStage.Queued)
+        .progressPercentage(0.0)
+        .attempts(0)
+        .priority(isPriority ? 1 : 0)
+        .createdAt(ldtNow)
+        .updatedAt(ldtNow)
+        .build();
+
+    VideoProcessingJob savedJob = videoProcessingJobRepo.save(job);
+    newJobSignal.release();
+
+    return savedJob;
+  }
+
+  @Transactional
+  public Optional<VideoProcessingJob> claimNext() {
+    LocalDateTime ldtNow = LocalDateTime.now();
+    Optional<VideoProcessingJob> nextJob = videoProcessingJobRepo.findNextClaimableJob(
+        ldtNow,
+        videoProcessingConfig.getMaxConcurrentJobsPerUploader()
+    );
+    if (nextJob.isEmpty()) {
+      return Optional.empty();
+    }
+
+    VideoProcessingJob job = nextJob.get();
+    // Its worker died before it could stop the job
+    if (Boolean.TRUE.equals(job.getCancelRequested())) {
+      job.setState(VideoProcessingJobState.Cancelled);
+      job.setStage(VideoProcessingStage.Cancelled);
+      job.setClaimedBy(null);
+      job.setLeaseExpiresAt(null);
+      job.setUpdatedAt(ldtNow);
+      videoProcessingJobRepo.save(job);
+      eventPublisher.publishEvent(new VideoProcessingCancellationEvent(job, true));
+      return Optional.empty();
+    }
+    // The uploader's running jobs are counted again under the uploader's lock, which is held until this claim is
+    // committed. The job is left for a later poll if another worker has claimed one in the meantime.
+    int maxJobsPerUploader = videoProcessingConfig.getMaxConcurrentJobsPerUploader();
+    if (maxJobsPerUploader > 0) {
+      videoProcessingJobRepo.lockUploaderClaims(job.getUploader());
+      if (videoProcessingJobRepo.countOtherRunningJobs(job.getUploader(), job.getId(), ldtNow) >= maxJobsPerUploader) {
+        return Optional.empty();
+      }
+    }
+    if (job.getState() == VideoProcessingJobState.Running) {
+      log.warn("Reclaiming abandoned video processing job. VideoId: {}, Previous worker: {}", job.getVideoId(), job.getClaimedBy());
+    }
+    log.info(
+        "Claimed video processing job. VideoId: {}, Uploader: {}, Priority: {}, Waited: {} seconds",
+        job.getVideoId(),
+        job.getUploader(),
+        job.getPriority(),
+        Duration.between(job.getCreatedAt(), ldtNow).toSeconds()
+    );
+    job.setState(VideoProcessingJobState.Running);
+    job.setStage(VideoProcessingStage.Probing);
+    job.setProgressPercentage(0.0);
+    job.setEtaInSeconds(null);
+    job.setClaimedBy(workerId);
+    job.setClaimedAt(ldtNow);
+    job.setAttempts(job.getAttempts() + 1);
+    job.setLeaseExpiresAt(ldtNow.plus(videoProcessingConfig.getJobLeaseDuration()));
+    job.setUpdatedAt(ldtNow);
+
+    return Optional.of(videoProcessingJobRepo.save(job));
+  }
+
+  /// Extends the lease of the jobs this node is running, so other workers don't consider them abandoned.
+  public void renewLeases(Collection<UUID> jobIds) {
+    if (jobIds.isEmpty()) {
+      return;
+    }
+
+    LocalDateTime ldtNow = LocalDateTime.now();
+    int renewedLeaseCount = videoProcessingJobRepo.renewLeases(
+        jobIds,
+        workerId,
+        ldtNow.plus(videoProcessingConfig.getJobLeaseDuration()),
+        ldtNow
+    );
+    if (renewedLeaseCount < jobIds.size()) {
+      log.warn("Lost the lease on {} video processing job(s).", jobIds.size() - renewedLeaseCount);
+    }
+  }
+
+  /// Persists the live progress of the jobs this node is running. Called on every heartbeat.
+  public void recordProgress(UUID jobId, VideoProgressTracker.Snapshot snapshot) {
+    videoProcessingJobRepo.recordProgress(
+        jobId,
+        workerId,
+        snapshot.stage(),
+        snapshot.progressPercentage(),
+        snapshot.etaInSeconds(),
+        LocalDateTime.now()
+    );
+  }
+
+  /// The live progress if the job is running on this node, otherwise whatever its worker has last persisted.
+  public Optional<VideoProcessingStatusResponse> getStatus(UUID videoId) {
+    Optional<VideoProcessingStatusResponse> liveStatus = getLiveStatus(videoId);
+    if (liveStatus.isPresent()) {
+      return liveStatus;
+    }
+
+    Optional<VideoProcessingJob> targetJob = videoProcessingJobRepo.findVideoProcessingJobByVideoId(videoId);
+    if (targetJob.isEmpty()) {
+      return Optional.empty();
+    }
+
+    VideoProcessingJob job = targetJob.get();
+    if (Boolean.TRUE.equals(job.getIsReencode())) {
+      return Optional.of(newReencodeStatus(videoId));
+    }
+
+    VideoProcessingStage stage = Objects.requireNonNullElse(job.getStage(), VideoProcessingStage.Queued);
+    return Optional.of(new VideoProcessingStatusResponse(
+        "VM_" + videoId,
+        job.getState().name(),
+        stage.name(),
+        Objects.requireNonNullElse(job.getProgressPercentage(), 0.0),
+        job.getEtaInSeconds(),
+        null,
+        null
+    ));
+  }
+
+  /// The live progress of a job running on this node, straight from memory. Empty if it isn't running here.
+  public Optional<VideoProcessingStatusResponse> getLiveStatus(UUID videoId) {
+    return videoProgressTracker.getSnapshot(videoId).map(snapshot -> {
+      if (snapshot.isReencode()) {
+        return newReencodeStatus(videoId);
+      }
+
+      return new VideoProcessingStatusResponse(
+          "VM_" + videoId,
+          VideoProcessingJobState.Running.name(),
+          snapshot.stage().name(),
+          snapshot.progressPercentage(),
+          snapshot.etaInSeconds(),
+          snapshot.encodingSpeed(),
+          snapshot.encodingFps()
+      );
+    });
+  }
+
+  // The video is already watchable while it gets re-encoded in the background
+  private static VideoProcessingStatusResponse newReencodeStatus(UUID videoId) {
+    return new VideoProcessingStatusResponse(
+        "VM_" + videoId,
+        VideoProcessingJobState.Done.name(),
+        VideoProcessingStage.Done.name(),
+        100,
+        0L,
+        null,
+        null
+    );
+  }
+
+  public void recordSourceChecksum(UUID videoId, String sourceSha256) {
+    if (videoProcessingJobRepo.recordSourceSha256(videoId, sourceSha256) == 0) {
+      log.warn("Failed to record the checksum of the uploaded video. VideoId: {}", videoId);
+    }
+  }
+
+  public Optional<VideoProcessingJob> findJobByVideoId(UUID videoId) {
+    return videoProcessingJobRepo.findVideoProcessingJobByVideoId(videoId);
+  }
+
+  /// Cancels the job of the video. A job that isn't running is cancelled right away, a running one gets stopped by its
+  /// worker.
+  public Optional<VideoProcessingCancellationResult> cancel(UUID videoId) {
+    Optional<VideoProcessingJob> targetJob = videoProcessingJobRepo.findVideoProcessingJobByVideoId(videoId);
+    if (targetJob.isEmpty()) {
+      return Optional.empty();
+    }
+
+    // The video is already watchable, so there is nothing left for the uploader to cancel
+    VideoProcessingJob job = targetJob.get();
+    if (Boolean.TRUE.equals(job.getIsReencode())) {
+      return Optional.of(VideoProcessingCancellationResult.AlreadyFinished);
+    }
+
+    LocalDateTime ldtNow = LocalDateTime.now();
+    if (videoProcessingJobRepo.cancelIdleJob(job.getId(), ldtNow) > 0) {
+      log.info("Cancelled video processing job. VideoId: {}", videoId);
+      eventPublisher.publishEvent(new VideoProcessingCancellationEvent(job, true));
+      return Optional.of(VideoProcessingCancellationResult.Cancelled);
+    }
+    if (videoProcessingJobRepo.requestCancellation(job.getId(), ldtNow) > 0) {
+      log.info("Requested the cancellation of video processing job. VideoId: {}, Worker: {}", videoId, job.getClaimedBy());
+      eventPublisher.publishEvent(new VideoProcessingCancellationEvent(job, false));
+      return Optional.of(VideoProcessingCancellationResult.CancellationRequested);
+    }
+
+    return Optional.of(VideoProcessingCancellationResult.AlreadyFinished);
+  }
+
+  public List<UUID> findCancelRequestedJobIds(Collection<UUID> jobIds) {
+    if (jobIds.isEmpty()) {
+      return List.of();
+    }
+
+    return videoProcessingJobRepo.findCancelRequestedJobIds(jobIds);
+  }
+
+  public void markCancelled(UUID jobId) {
+    checkOwnership(jobId, videoProcessingJobRepo.markCancelled(jobId, workerId, LocalDateTime.now()));
+  }
+
+  /// Jobs that were encoded with a fast preset go back in the queue as a low priority re-encode instead.
+  public void markDone(UUID jobId) {
+    LocalDateTime ldtNow = LocalDateTime.now();
+    if (videoProcessingJobRepo.requeueForReencode(jobId, workerId, ldtNow) > 0) {
+      return;
+    }
+
+    checkOwnership(jobId, videoProcessingJobRepo.markDone(jobId, workerId, ldtNow));
+  }
+
+  public void recordEncoderPreset(UUID jobId, String encoderPreset, boolean needsReencode) {
+    checkOwnership(
+        jobId,
+        videoProcessingJobRepo.recordEncoderPreset(jobId, workerId, encoderPreset, needsReencode, LocalDateTime.now())
+    );
+  }
+
+  public void recordRenditionLadder(UUID jobId, List<VideoRendition> renditions) {
+    checkOwnership(
+        jobId,
+        videoProcessingJobRepo.recordRenditionLadder(
+            jobId,
+            workerId,
+            VideoRendition.toLadderString(renditions),
+            LocalDateTime.now()
+        )
+    );
+  }
+
+  public void recordSourceInfo(UUID jobId, VideoSourceInfo sourceInfo) {
+    checkOwnership(
+        jobId,
+        videoProcessingJobRepo.recordSourceInfo(
+            jobId,
+            workerId,
+            sourceInfo.width(),
+            sourceInfo.height(),
+            sourceInfo.frameRate(),
+            sourceInfo.durationInSeconds(),
+            sourceInfo.videoCodec(),
+            sourceInfo.audioCodec(),
+            sourceInfo.hasAudio(),
+            LocalDateTime.now()
+        )
+    );
+  }
+
+  /// Puts the job back in the queue unless it has used up all of its attempts. The retry waits out a backoff that
+  /// doubles with every attempt.
+  ///
+  /// Returns the state the job ends up in, or nothing if the job isn't ours anymore.
+  public Optional<VideoProcessingJobState> markFailed(UUID jobId, String reason) {
+    return markFailed(jobId, reason, true);
+  }
+
+  /// A job that isn't `isRetryable` is marked as `Failed` for good, whatever attempts it has left.
+  public Optional<VideoProcessingJobState> markFailed(UUID jobId, String reason, boolean isRetryable) {
+    Optional<VideoProcessingJob> failedJob = videoProcessingJobRepo.findVideoProcessingJobById(jobId);
+    if (failedJob.isEmpty()) {
+      log.error("Failed to find video processing job. JobId: {}", jobId);
+      return Optional.empty();
+    }
+
+    // Only a worker claiming the job changes its attempts, and the update below doesn't go through if that happened
+    int attempts = failedJob.get().getAttempts();
+    boolean hasAttemptsLeft = isRetryable && attempts < videoProcessingConfig.getMaxProcessingAttempts();
+    LocalDateTime ldtNow = LocalDateTime.now();
+    int updatedJobCount = videoProcessingJobRepo.recordFailure(
+        jobId,
+        workerId,
+        hasAttemptsLeft ? VideoProcessingJobState.Queued : VideoProcessingJobState.Failed,
+        hasAttemptsLeft ? VideoProcessingStage.Queued : VideoProcessingStage.Failed,
+        reason,
+        hasAttemptsLeft ? ldtNow.plus(videoProcessingConfig.getRetryBackoff(attempts)) : null,
+        ldtNow
+    );
+    if (!checkOwnership(jobId, updatedJobCount)) {
+      return Optional.empty();
+    }
+
+    // There's no point in waking up the idle workers, the job isn't available before its backoff is over anyway
+    return Optional.of(hasAttemptsLeft ? VideoProcessingJobState.Queued : VideoProcessingJobState.Failed);
+  }
+
+  /// Persists the checkpoints of the job's completed stages.
+  public void recordStageManifest(UUID jobId, String stageManifest) {
+    int updatedJobCount = videoProcessingJobRepo.recordStageManifest(jobId, workerId, stageManifest, LocalDateTime.now());
+    if (updatedJobCount == 0) {
+      log.warn("Failed to record the stage checkpoints of video processing job {}. It isn't ours anymore.", jobId);
+    }
+  }
+
+  /// Hands a job that was interrupted (e.g. by a shutdown) back to the queue. This doesn't count as an attempt.
+  ///
+  /// Returns `false` if the job isn't ours anymore.
+  public boolean release(UUID jobId) {
+    return checkOwnership(jobId, videoProcessingJobRepo.release(jobId, workerId, LocalDateTime.now()));
+  }
+
+  public void awaitNewJob(Duration timeout) throws InterruptedException {
+    newJobSignal.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public int getQueueDepth() {
+    // Background re-encodes don't count, they only run once there's nothing else to do
+    return (int) videoProcessingJobRepo.countByStateAndPriorityGreaterThanEqual(VideoProcessingJobState.Queued, 0);
+  }
+
+  /// Bytes of uploaded sources waiting in the queue, across every node
+  public long getQueuedSourceBytes() {
+    return videoProcessingJobRepo.sumSourceSizeInBytesByState(VideoProcessingJobState.Queued);
+  }
+
+  /// How many bytes of source the workers have lately been taking off the queue per second, `0` if none.
+  public double getDrainRateInBytesPerSecond() {
+    long claimedBytes = videoProcessingJobRepo.sumSourceSizeInBytesClaimedSince(LocalDateTime.now().minus(DRAIN_RATE_WINDOW));
+    return (double) claimedBytes / DRAIN_RATE_WINDOW.toSeconds();
+  }
+
+  public QueueStatsResponse getQueueStats(UUID uploader) {
+    LocalDateTime ldtNow = LocalDateTime.now();
+    Optional<UploaderQueueStats> stats = videoProcessingJobRepo.getUploaderQueueStats(
+        uploader,
+        ldtNow,
+        ldtNow.minusDays(1)
+    );
+    if (stats.isEmpty()) {
+      return new QueueStatsResponse(0, 0, 0, 0);
+    }
+
+    return new QueueStatsResponse(
+        stats.get().getQueuedJobs(),
+        stats.get().getRunningJobs(),
+        Objects.requireNonNullElse(stats.get().getOldestWaitInSeconds(), 0.0),
+        Objects.requireNonNullElse(stats.get().getAverageWaitInSeconds(), 0.0)
+    );
+  }
+
+  private static String resolveHostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      return "unknown-host";
+    }
+  }
+
+  // Our lease has run out and someone else has picked the job up in the meantime. It's theirs to update now.
+  private boolean checkOwnership(UUID jobId, int updatedJobCount) {
+    if (updatedJobCount == 0) {
+      log.warn("Video processing job {} is not ours anymore. Leaving it to its current owner.", jobId);
+      return false;
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,160 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.model.VideoProcessingJobState;
+import com.akiramenai.videobackend.model.VideoProcessingStatusResponse;
+import com.akiramenai.videobackend.utility.JsonSerializer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/// Pushes the processing status of videos to their open server-sent event streams.
+///
+/// Every video is looked up once per push, however many streams are watching it. The progress of a job running on
+/// this node comes straight from memory. Only the other jobs are looked up in the DB, on threads of their own, so a
+/// slow query doesn't hold up the pushes of every other video.
+@Slf4j
+@Service
+@ConditionalOnWebApplication
+public class VideoProgressStreamService {
+  private static final Duration PUSH_INTERVAL = Duration.ofSeconds(2);
+  // Clients are expected to reconnect if the video is still processing by then
+  private static final Duration STREAM_TIMEOUT = Duration.ofMinutes(30);
+
+  private final VideoProcessingQueueService videoProcessingQueueService;
+  private final JsonSerializer jsonSerializer = new JsonSerializer();
+
+  private final Map<UUID, Set<SseEmitter>> streamsByVideoId = new ConcurrentHashMap<>();
+  // Videos whose DB lookup is still running. The pushes in the meantime wait for its result instead of piling up.
+  private final Set<UUID> pendingLookups = ConcurrentHashMap.newKeySet();
+
+  private final ScheduledExecutorService pushScheduler = Executors.newSingleThreadScheduledExecutor(
+      runnable -> new Thread(runnable, "video-progress-stream")
+  );
+  private final ExecutorService lookupExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public VideoProgressStreamService(VideoProcessingQueueService videoProcessingQueueService) {
+    this.videoProcessingQueueService = videoProcessingQueueService;
+
+    pushScheduler.scheduleAtFixedRate(
+        this::pushAll,
+        PUSH_INTERVAL.toMillis(),
+        PUSH_INTERVAL.toMillis(),
+        TimeUnit.MILLISECONDS
+    );
+  }
+
+  /// Opens a stream that gets a `progress` event every couple of seconds, and is closed once the job is `Done`,
+  /// `Failed` or `Cancelled`.
+  public SseEmitter open(UUID videoId) {
+    SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT.toMillis());
+    Runnable close = () -> removeStream(videoId, emitter);
+    emitter.onCompletion(close);
+    emitter.onTimeout(close);
+    emitter.onError(e -> close.run());
+
+    // Added within `compute`, so a stream that is being removed at the same time can't drop the set along with it
+    streamsByVideoId.compute(videoId, (id, streams) -> {
+      Set<SseEmitter> videoStreams = streams != null ? streams : ConcurrentHashMap.newKeySet();
+      videoStreams.add(emitter);
+      return videoStreams;
+    });
+    push(videoId);
+    return emitter;
+  }
+
+  @PreDestroy
+  public void stop() {
+    pushScheduler.shutdownNow();
+    lookupExecutor.shutdownNow();
+  }
+
+  private void pushAll() {
+    for (UUID videoId : streamsByVideoId.keySet()) {
+      try {
+        push(videoId);
+      } catch (Exception e) {
+        // The scheduler stops running a task that has thrown
+        log.error("Failed to push the processing status of video {}. Reason: ", videoId, e);
+      }
+    }
+  }
+
+  private void push(UUID videoId) {
+    Optional<VideoProcessingStatusResponse> liveStatus = videoProcessingQueueService.getLiveStatus(videoId);
+    if (liveStatus.isPresent()) {
+      send(videoId, liveStatus);
+      return;
+    }
+
+    if (!pendingLookups.add(videoId)) {
+      return;
+    }
+    lookupExecutor.execute(() -> {
+      try {
+        send(videoId, videoProcessingQueueService.getStatus(videoId));
+      } catch (Exception e) {
+        log.error("Failed to look up the processing status of video {}. Reason: ", videoId, e);
+      } finally {
+        pendingLookups.remove(videoId);
+      }
+    });
+  }
+
+  private void send(UUID videoId, Optional<VideoProcessingStatusResponse> status) {
+    Set<SseEmitter> streams = streamsByVideoId.get(videoId);
+    if (streams == null) {
+      return;
+    }
+
+    if (status.isEmpty()) {
+      streams.forEach(emitter -> closeStream(videoId, emitter));
+      return;
+    }
+    Optional<String> statusJson = jsonSerializer.serialize(status.get());
+    boolean isFinished = status.get().state().equals(VideoProcessingJobState.Done.name())
+        || status.get().state().equals(VideoProcessingJobState.Failed.name())
+        || status.get().state().equals(VideoProcessingJobState.Cancelled.name());
+
+    for (SseEmitter emitter : streams) {
+      try {
+        if (statusJson.isPresent()) {
+          emitter.send(SseEmitter.event().name("progress").data(statusJson.get(), MediaType.APPLICATION_JSON));
+        }
+        if (isFinished) {
+          closeStream(videoId, emitter);
+        }
+      } catch (Exception e) {
+        // Most likely the client has gone away
+        log.debug("Closing video progress stream. Reason: {}", e.getMessage());
+        emitter.completeWithError(e);
+        removeStream(videoId, emitter);
+      }
+    }
+  }
+
+  private void closeStream(UUID videoId, SseEmitter emitter) {
+    emitter.complete();
+    removeStream(videoId, emitter);
+  }
+
+  private void removeStream(UUID videoId, SseEmitter emitter) {
+    streamsByVideoId.computeIfPresent(videoId, (id, streams) -> {
+      streams.remove(emitter);
+      return streams.isEmpty() ? null : streams;
+    });
+  }
+}
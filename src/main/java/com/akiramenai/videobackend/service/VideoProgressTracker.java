@@ -0,0 +1,132 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.model.VideoProcessingStage;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/// Keeps the live progress of the jobs running on this node in memory. FFMPEG and Whisper report here as often as
+/// they like, the database only gets a snapshot on every worker heartbeat.
+@Service
+public class VideoProgressTracker {
+  public record Snapshot(
+      VideoProcessingStage stage,
+      double progressPercentage,
+      Long etaInSeconds,
+      Double encodingSpeed,
+      Double encodingFps,
+      boolean isReencode
+  ) {
+  }
+
+  private static class JobProgress {
+    final boolean isReencode;
+    volatile VideoProcessingStage stage = VideoProcessingStage.Probing;
+    volatile double durationInSeconds = 0;
+    volatile int encodePasses = 1;
+    volatile boolean isTranscribing = true;
+    volatile long transcriptionStartedAt = 0;
+    volatile double transcribedSeconds = 0;
+
+    // A job can have several FFMPEG processes encoding at the same time (one per chunk), so they report separately
+    final Map<String, double[]> encoderProgress = new ConcurrentHashMap<>();
+
+    JobProgress(boolean isReencode) {
+      this.isReencode = isReencode;
+    }
+  }
+
+  private final Map<UUID, JobProgress> progressByVideoId = new ConcurrentHashMap<>();
+
+  /// A background re-encode is tracked as well, but its video is already watchable, see `Snapshot.isReencode`.
+  public void start(UUID videoId, boolean isReencode) {
+    progressByVideoId.put(videoId, new JobProgress(isReencode));
+  }
+
+  public void finish(UUID videoId) {
+    progressByVideoId.remove(videoId);
+  }
+
+  /// `encodePasses` is how many times the whole duration gets encoded, e.g. once per rendition when every rendition is
+  /// encoded by its own FFMPEG process. `isTranscribing` tells whether Whisper's progress counts towards the job's.
+  public void setWorkload(UUID videoId, double durationInSeconds, int encodePasses, boolean isTranscribing) {
+    getProgress(videoId).ifPresent(progress -> {
+      progress.durationInSeconds = durationInSeconds;
+      progress.encodePasses = Math.max(1, encodePasses);
+      progress.isTranscribing = isTranscribing;
+    });
+  }
+
+  public void setStage(UUID videoId, VideoProcessingStage stage) {
+    getProgress(videoId).ifPresent(progress -> progress.stage = stage);
+  }
+
+  /// `processedSeconds` is how much of the source the reporting FFMPEG process has encoded so far.
+  public void reportEncodingProgress(UUID videoId, String encoderKey, double processedSeconds, double speed, double fps) {
+    getProgress(videoId).ifPresent(progress -> progress.encoderProgress.put(
+        encoderKey,
+        new double[]{processedSeconds, speed, fps}
+    ));
+  }
+
+  public void reportTranscriptionProgress(UUID videoId, double transcribedSeconds) {
+    getProgress(videoId).ifPresent(progress -> {
+      if (progress.transcriptionStartedAt == 0) {
+        progress.transcriptionStartedAt = System.currentTimeMillis();
+      }
+      progress.transcribedSeconds = transcribedSeconds;
+    });
+  }
+
+  public Optional<Snapshot> getSnapshot(UUID videoId) {
+    return getProgress(videoId).map(this::toSnapshot);
+  }
+
+  private Optional<JobProgress> getProgress(UUID videoId) {
+    return Optional.ofNullable(progressByVideoId.get(videoId));
+  }
+
+  private Snapshot toSnapshot(JobProgress progress) {
+    if (progress.durationInSeconds <= 0) {
+      return new Snapshot(progress.stage, 0, null, null, null, progress.isReencode);
+    }
+
+    double encodedSeconds = 0, encodingSpeed = 0, encodingFps = 0;
+    for (double[] encoder : progress.encoderProgress.values()) {
+      encodedSeconds += encoder[0];
+      encodingSpeed += encoder[1];
+      encodingFps += encoder[2];
+    }
+    double encodeWork = progress.durationInSeconds * progress.encodePasses;
+    double encodeFraction = Math.min(1, encodedSeconds / encodeWork);
+    Long encodeEta = encodingSpeed > 0 ? (long) ((encodeWork - encodedSeconds) / encodingSpeed) : null;
+
+    // The slowest branch decides when the video is ready
+    double fraction = encodeFraction;
+    Long eta = encodeEta;
+    if (progress.isTranscribing) {
+      double transcribeFraction = Math.min(1, progress.transcribedSeconds / progress.durationInSeconds);
+      fraction = Math.min(fraction, transcribeFraction);
+
+      long elapsedMillis = System.currentTimeMillis() - progress.transcriptionStartedAt;
+      if (progress.transcriptionStartedAt > 0 && progress.transcribedSeconds > 0) {
+        double realtimeFactor = progress.transcribedSeconds / (elapsedMillis / 1000.0);
+        long transcribeEta = (long) ((progress.durationInSeconds - progress.transcribedSeconds) / realtimeFactor);
+        eta = eta == null ? transcribeEta : Math.max(eta, transcribeEta);
+      }
+    }
+
+    // The last few percent are reserved for the playlists and the DB updates
+    return new Snapshot(
+        progress.stage,
+        Math.round(fraction * 950) / 10.0,
+        eta,
+        encodingSpeed > 0 ? encodingSpeed : null,
+        encodingFps > 0 ? encodingFps : null,
+        progress.isReencode
+    );
+  }
+}
@@ -0,0 +1,404 @@
+package com.akiramenai.videobackend.service;
+
+import com.akiramenai.videobackend.config.VideoProcessingConfig;
+import com.akiramenai.videobackend.model.FileUploadErrorTypes;
+import com.akiramenai.videobackend.model.ReceivedVideo;
+import com.akiramenai.videobackend.model.ResultOrError;
+import com.akiramenai.videobackend.model.VideoUploadSession;
+import com.akiramenai.videobackend.model.VideoUploadSessionResponse;
+import com.akiramenai.videobackend.model.VideoUploadSessionState;
+import com.akiramenai.videobackend.repo.VideoUploadSessionRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/// Resumable uploads. Every chunk is written straight to its offset in the session's `video.part` with a positional
+/// write, so the chunks can arrive in any order and side by side, and completing the session doesn't copy anything.
+///
+/// A chunk only counts as received once its checksum has been verified and its bytes are on the disk. That's recorded
+/// as a `chunk_NNNNNN.sha256` marker next to the video, so any API node sharing the video directory can take the next
+/// chunk.
+@Slf4j
+@Service
+public class VideoUploadSessionService {
+  private static final String SESSIONS_DIRECTORY_NAME = "uploads";
+  private static final String PARTIAL_VIDEO_FILE_NAME = "video.part";
+  private static final Pattern CHUNK_MARKER = Pattern.compile("chunk_(\\d+)\\.sha256");
+  private static final int CHUNK_BUFFER_SIZE = 256 * 1024;
+
+  private final VideoUploadSessionRepo videoUploadSessionRepo;
+  private final MediaStorageService mediaStorageService;
+  private final VideoProcessingConfig videoProcessingConfig;
+  private final StorageQuotaService storageQuotaService;
+
+  public VideoUploadSessionService(
+      VideoUploadSessionRepo videoUploadSessionRepo,
+      MediaStorageService mediaStorageService,
+      VideoProcessingConfig videoProcessingConfig,
+      StorageQuotaService storageQuotaService
+  ) {
+    this.videoUploadSessionRepo = videoUploadSessionRepo;
+    this.mediaStorageService = mediaStorageService;
+    this.videoProcessingConfig = videoProcessingConfig;
+    this.storageQuotaService = storageQuotaService;
+  }
+
+  /// `chunkSizeInBytes` is `0` for the configured default. The session holds on to `reservedStorageInBytes` until it's
+  /// completed, or gives it back once it expires.
+  public ResultOrError<VideoUploadSession, FileUploadErrorTypes> create(
+      UUID uploader,
+      UUID courseId,
+      String fileName,
+      long totalSizeInBytes,
+      long chunkSizeInBytes,
+      long reservedStorageInBytes,
+      String expectedSha256
+  ) {
+    var res = ResultOrError.<VideoUploadSession, FileUploadErrorTypes>builder();
+    removeExpiredSessions();
+
+    long chunkSize = chunkSizeInBytes > 0 ? chunkSizeInBytes : videoProcessingConfig.getUploadChunkSizeInBytes();
+    if (chunkSize > videoProcessingConfig.getMaxUploadChunkSizeInBytes()) {
+      return res
+          .errorType(FileUploadErrorTypes.InvalidChunk)
+          .errorMessage("Chunks can't be larger than " + videoProcessingConfig.getMaxUploadChunkSizeInBytes() + " bytes.")
+          .build();
+    }
+    // Only the last chunk of the upload may come out smaller
+    if (chunkSize < videoProcessingConfig.getMinUploadChunkSizeInBytes()) {
+      return res
+          .errorType(FileUploadErrorTypes.InvalidChunk)
+          .errorMessage("Chunks can't be smaller than " + videoProcessingConfig.getMinUploadChunkSizeInBytes() + " bytes.")
+          .build();
+    }
+    // The chunks are numbered with an `int`
+    if (Math.ceilDiv(totalSizeInBytes, chunkSize) > Integer.MAX_VALUE) {
+      return res
+          .errorType(FileUploadErrorTypes.InvalidChunk)
+          .errorMessage("The upload would take too many chunks. Pick a larger chunk size.")
+          .build();
+    }
+
+    LocalDateTime ldtNow = LocalDateTime.now();
+    VideoUploadSession session = videoUploadSessionRepo.save(VideoUploadSession
+        .builder()
+        .uploader(uploader)
+        .courseId(courseId)
+        .fileExtension(FilenameUtils.getExtension(fileName))
+        .totalSizeInBytes(totalSizeInBytes)
+        .chunkSizeInBytes(chunkSize)
+        .reservedStorageInBytes(reservedStorageInBytes)
+        .expectedSha256(expectedSha256)
+        .state(VideoUploadSessionState.Open)
+        .createdAt(ldtNow)
+        .expiresAt(ldtNow.plus(videoProcessingConfig.getUploadSessionExpiry()))
+        .build()
+    );
+
+    try {
+      Files.createDirectories(getSessionDirectory(session.getId()));
+    } catch (IOException e) {
+      log.error("Failed to create the directory of the upload session. Reason: ", e);
+      videoUploadSessionRepo.delete(session);
+
+      return res
+          .errorType(FileUploadErrorTypes.FailedToCreateUploadDir)
+          .errorMessage("Failed to create the upload session.")
+          .build();
+    }
+
+    return res
+        .result(session)
+        .build();
+  }
+
+  public Optional<VideoUploadSession> find(UUID uploadId, UUID uploader) {
+    return videoUploadSessionRepo.findVideoUploadSessionByIdAndUploader(uploadId, uploader);
+  }
+
+  public VideoUploadSessionResponse toResponse(VideoUploadSession session) {
+    return new VideoUploadSessionResponse(
+        session.getId().toString(),
+        session.getState().name(),
+        session.getTotalSizeInBytes(),
+        session.getChunkSizeInBytes(),
+        session.getChunkCount(),
+        getReceivedChunks(session)
+    );
+  }
+
+  /// Writes the chunk to its place in the video. `expectedSha256` is the checksum of the chunk, a chunk that doesn't
+  /// match it isn't marked as received and has to be sent again.
+  public ResultOrError<Integer, FileUploadErrorTypes> writeChunk(
+      VideoUploadSession session,
+      int chunkIndex,
+      InputStream body,
+      long contentLength,
+      String expectedSha256
+  ) {
+    var res = ResultOrError.<Integer, FileUploadErrorTypes>builder();
+    if (session.getState() != VideoUploadSessionState.Open) {
+      return res
+          .errorType(FileUploadErrorTypes.InvalidChunk)
+          .errorMessage("The upload session isn't taking chunks anymore.")
+          .build();
+    }
+    if (chunkIndex < 0 || chunkIndex >= session.getChunkCount()) {
+      return res
+          .errorType(FileUploadErrorTypes.InvalidChunk)
+          .errorMessage("The upload session has no chunk " + chunkIndex + ".")
+          .build();
+    }
+    long chunkLength = session.getChunkLength(chunkIndex);
+    if (contentLength != chunkLength) {
+      return res
+          .errorType(FileUploadErrorTypes.InvalidChunk)
+          .errorMessage("Chunk " + chunkIndex + " has to be " + chunkLength + " bytes long.")
+          .build();
+    }
+
+    Path sessionDirectory = getSessionDirectory(session.getId());
+    long chunkOffset = chunkIndex * session.getChunkSizeInBytes();
+    long receivedBytes = 0;
+    String sha256;
+    // Chunks of the same session write to separate regions of the file, so they don't get in each other's way
+    try (
+        ReadableByteChannel bodyChannel = Channels.newChannel(body);
+        FileChannel videoChannel = FileChannel.open(
+            sessionDirectory.resolve(PARTIAL_VIDEO_FILE_NAME),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE
+        )
+    ) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BUFFER_SIZE);
+      while (bodyChannel.read(buffer) >= 0) {
+        buffer.flip();
+        if (receivedBytes + buffer.remaining() > chunkLength) {
+          receivedBytes += buffer.remaining();
+          break;
+        }
+
+        digest.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+          receivedBytes += videoChannel.write(buffer, chunkOffset + receivedBytes);
+        }
+        buffer.clear();
+      }
+      // The marker must never get to the disk before the bytes it vouches for
+      videoChannel.force(false);
+      sha256 = HexFormat.of().formatHex(digest.digest());
+    } catch (IOException | NoSuchAlgorithmException e) {
+      log.error("Failed to write chunk {} of upload session {}. Reason: {}", chunkIndex, session.getId(), e.getMessage());
+
+      return res
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .errorMessage("Failed to save the chunk.")
+          .build();
+    }
+
+    if (receivedBytes != chunkLength) {
+      return res
+          .errorType(FileUploadErrorTypes.IncompleteUpload)
+          .errorMessage("Received " + receivedBytes + " bytes of the " + chunkLength + " bytes of chunk " + chunkIndex + ".")
+          .build();
+    }
+    if (!sha256.equalsIgnoreCase(expectedSha256)) {
+      return res
+          .errorType(FileUploadErrorTypes.ChecksumMismatch)
+          .errorMessage("The checksum of chunk " + chunkIndex + " doesn't match. Received: " + sha256)
+          .build();
+    }
+
+    try {
+      Path marker = sessionDirectory.resolve(getChunkMarkerName(chunkIndex));
+      Path temporaryMarker = sessionDirectory.resolve(getChunkMarkerName(chunkIndex) + "." + UUID.randomUUID());
+      Files.writeString(temporaryMarker, sha256, StandardCharsets.US_ASCII);
+      Files.move(temporaryMarker, marker, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.error("Failed to mark chunk {} of upload session {} as received. Reason: ", chunkIndex, session.getId(), e);
+
+      return res
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .errorMessage("Failed to save the chunk.")
+          .build();
+    }
+
+    return res
+        .result(chunkIndex)
+        .build();
+  }
+
+  public List<Integer> getReceivedChunks(VideoUploadSession session) {
+    Path sessionDirectory = getSessionDirectory(session.getId());
+    if (!Files.isDirectory(sessionDirectory)) {
+      return List.of();
+    }
+
+    try (Stream<Path> files = Files.list(sessionDirectory)) {
+      return files
+          .map(file -> CHUNK_MARKER.matcher(file.getFileName().toString()))
+          .filter(Matcher::matches)
+          .map(marker -> Integer.parseInt(marker.group(1)))
+          .sorted()
+          .toList();
+    } catch (IOException e) {
+      log.error("Failed to list the received chunks of upload session {}. Reason: ", session.getId(), e);
+      return List.of();
+    }
+  }
+
+  /// Takes the session over for completion. Returns `false` if it isn't open, e.g. because another request is already
+  /// completing it.
+  public boolean startCompletion(VideoUploadSession session) {
+    return videoUploadSessionRepo.transitionState(
+        session.getId(),
+        VideoUploadSessionState.Open,
+        VideoUploadSessionState.Completing
+    ) > 0;
+  }
+
+  /// Moves the assembled video into the video directory, once every chunk is in. The video is hashed once more, since a
+  /// SHA-256 can't be put together from the checksums of the chunks. That's a read, nothing gets written twice.
+  ///
+  /// The session has to be taken over with `startCompletion` first. It's handed back if anything is missing.
+  public ResultOrError<ReceivedVideo, FileUploadErrorTypes> assemble(VideoUploadSession session) {
+    var res = ResultOrError.<ReceivedVideo, FileUploadErrorTypes>builder();
+
+    int missingChunks = session.getChunkCount() - getReceivedChunks(session).size();
+    if (missingChunks > 0) {
+      reopen(session);
+      return res
+          .errorType(FileUploadErrorTypes.IncompleteUpload)
+          .errorMessage(missingChunks + " chunk(s) of the video are still missing.")
+          .build();
+    }
+
+    Path partialVideo = getSessionDirectory(session.getId()).resolve(PARTIAL_VIDEO_FILE_NAME);
+    String sha256;
+    try (FileChannel videoChannel = FileChannel.open(partialVideo, StandardOpenOption.READ)) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BUFFER_SIZE);
+      while (videoChannel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+      sha256 = HexFormat.of().formatHex(digest.digest());
+    } catch (IOException | NoSuchAlgorithmException e) {
+      log.error("Failed to hash the video of upload session {}. Reason: ", session.getId(), e);
+      reopen(session);
+
+      return res
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .errorMessage("Failed to assemble the video.")
+          .build();
+    }
+    if (session.getExpectedSha256() != null && !session.getExpectedSha256().equalsIgnoreCase(sha256)) {
+      reopen(session);
+
+      return res
+          .errorType(FileUploadErrorTypes.ChecksumMismatch)
+          .errorMessage("The checksum of the video doesn't match. Expected: " + session.getExpectedSha256() + ", received: " + sha256)
+          .build();
+    }
+
+    Path videoFile = Paths.get(mediaStorageService.videoDirectoryString, session.getId() + "." + session.getFileExtension());
+    try {
+      Files.move(partialVideo, videoFile, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Failed to move the video of upload session {}. Reason: ", session.getId(), e);
+      reopen(session);
+
+      return res
+          .errorType(FileUploadErrorTypes.FailedToSaveFile)
+          .errorMessage("Failed to assemble the video.")
+          .build();
+    }
+
+    return res
+        .result(new ReceivedVideo(videoFile.toFile(), sha256))
+        .build();
+  }
+
+  /// Records the video the session has turned into, and drops its chunk markers.
+  public void markCompleted(VideoUploadSession session, UUID videoId) {
+    videoUploadSessionRepo.markCompleted(session.getId(), videoId);
+    FileUtils.deleteQuietly(getSessionDirectory(session.getId()).toFile());
+  }
+
+  /// Puts an assembled video back into its session, for when it couldn't be queued. The uploader can complete the
+  /// session again without resending anything.
+  public void disassemble(VideoUploadSession session, ReceivedVideo video) {
+    try {
+      Files.move(
+          video.file().toPath(),
+          getSessionDirectory(session.getId()).resolve(PARTIAL_VIDEO_FILE_NAME),
+          StandardCopyOption.ATOMIC_MOVE
+      );
+    } catch (IOException e) {
+      log.error("Failed to put the video of upload session {} back. Reason: ", session.getId(), e);
+    }
+    reopen(session);
+  }
+
+  /// Hands a session that couldn't be completed back to its uploader.
+  public void reopen(VideoUploadSession session) {
+    videoUploadSessionRepo.transitionState(
+        session.getId(),
+        VideoUploadSessionState.Completing,
+        VideoUploadSessionState.Open
+    );
+  }
+
+  // A session that is being completed is left to its request, which either completes or reopens it
+  private void removeExpiredSessions() {
+    LocalDateTime ldtNow = LocalDateTime.now();
+    List<VideoUploadSession> expiredSessions = videoUploadSessionRepo.findVideoUploadSessionsByStateAndExpiresAtBefore(
+        VideoUploadSessionState.Open,
+        ldtNow
+    );
+    for (VideoUploadSession expiredSession : expiredSessions) {
+      // Someone else has removed it already, and given its reservation back
+      if (videoUploadSessionRepo.deleteExpiredSession(expiredSession.getId(), ldtNow) == 0) {
+        continue;
+      }
+
+      log.info("Removed expired upload session. UploadId: {}, Uploader: {}", expiredSession.getId(), expiredSession.getUploader());
+      FileUtils.deleteQuietly(getSessionDirectory(expiredSession.getId()).toFile());
+      storageQuotaService.release(expiredSession.getUploader(), expiredSession.getReservedStorageInBytes());
+    }
+  }
+
+  private Path getSessionDirectory(UUID uploadId) {
+    return Paths.get(mediaStorageService.videoDirectoryString, SESSIONS_DIRECTORY_NAME, uploadId.toString());
+  }
+
+  private static String getChunkMarkerName(int chunkIndex) {
+    return String.format("chunk_%06d.sha256", chunkIndex);
+  }
+}
@@ -0,0 +1,100 @@
+package com.akiramenai.videobackend.utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+public class ExternalProcessRunner {
+  // How long the rest of stdout is read after the process has exited
+  private static final Duration OUTPUT_DRAIN_TIMEOUT = Duration.ofSeconds(10);
+
+  /// Starts the process and hands every line it writes to stdout to `stdoutLineHandler`. Stderr goes wherever the
+  /// `ProcessBuilder` redirects it.
+  ///
+  /// Returns the exit code of the process. A process that runs past `timeout` is killed together with its children and
+  /// a `TimeoutException` is thrown. An interrupted caller doesn't leave the process tree running in the background
+  /// either.
+  public static int run(
+      ProcessBuilder processBuilder,
+      Consumer<String> stdoutLineHandler,
+      Duration timeout
+  ) throws IOException, InterruptedException, TimeoutException {
+    return runPipeline(List.of(processBuilder), stdoutLineHandler, timeout);
+  }
+
+  public static int run(ProcessBuilder processBuilder, Duration timeout) throws IOException, InterruptedException, TimeoutException {
+    return run(processBuilder, line -> {
+    }, timeout);
+  }
+
+  /// Same as `run`, except the processes are started as a pipeline: the stdout of each process goes straight into the
+  /// stdin of the next one, without passing through the JVM. `stdoutLineHandler` gets the output of the last process
+  /// and `timeout` applies to the whole pipeline.
+  ///
+  /// Returns the first non-zero exit code, or `0` if every process has succeeded.
+  public static int runPipeline(
+      List<ProcessBuilder> processBuilders,
+      Consumer<String> stdoutLineHandler,
+      Duration timeout
+  ) throws IOException, InterruptedException, TimeoutException {
+    List<Process> processes = ProcessBuilder.startPipeline(processBuilders);
+    Process lastProcess = processes.getLast();
+
+    // Stdout is read on its own thread, so the deadline holds even while the process isn't printing anything
+    AtomicReference<RuntimeException> handlerError = new AtomicReference<>();
+    Thread stdoutReader = Thread.ofVirtual().start(() -> {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(lastProcess.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          stdoutLineHandler.accept(line);
+        }
+      } catch (IOException ignored) {
+        // The stream gets closed under us when the process is killed
+      } catch (RuntimeException e) {
+        handlerError.set(e);
+        processes.forEach(ExternalProcessRunner::destroyProcessTree);
+      }
+    });
+
+    long deadline = System.nanoTime() + timeout.toNanos();
+    try {
+      for (Process process : processes) {
+        if (!process.waitFor(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          processes.forEach(ExternalProcessRunner::destroyProcessTree);
+          throw new TimeoutException(
+              "`" + processBuilders.getLast().command().getFirst() + "` didn't finish within " + timeout.toSeconds() + " seconds."
+          );
+        }
+      }
+
+      if (!stdoutReader.join(OUTPUT_DRAIN_TIMEOUT)) {
+        stdoutReader.interrupt();
+      }
+      if (handlerError.get() != null) {
+        throw handlerError.get();
+      }
+      for (Process process : processes) {
+        if (process.exitValue() != 0) {
+          return process.exitValue();
+        }
+      }
+      return 0;
+    } catch (InterruptedException e) {
+      processes.forEach(ExternalProcessRunner::destroyProcessTree);
+      throw e;
+    }
+  }
+
+  /// Kills the process along with everything it has started, e.g. the encoder processes of a wrapper script.
+  public static void destroyProcessTree(Process process) {
+    // The children have to be collected first, they get re-parented once their parent is gone
+    process.descendants().forEach(ProcessHandle::destroyForcibly);
+    process.destroyForcibly();
+  }
+}
@@ -0,0 +1,42 @@
+package com.akiramenai.videobackend.utility;
+
+import java.util.function.Consumer;
+
+/// Parses the key=value blocks FFMPEG writes with `-progress pipe:1`. Every block ends with a `progress=` line, at
+/// which point the collected values are reported.
+public class FfmpegProgressParser implements Consumer<String> {
+  public record Progress(double outTimeInSeconds, double speed, double fps, boolean isFinished) {
+  }
+
+  private final Consumer<Progress> progressHandler;
+
+  private double outTimeInSeconds = 0;
+  private double speed = 0;
+  private double fps = 0;
+
+  public FfmpegProgressParser(Consumer<Progress> progressHandler) {
+    this.progressHandler = progressHandler;
+  }
+
+  @Override
+  public void accept(String line) {
+    int separatorIndex = line.indexOf('=');
+    if (separatorIndex < 0) {
+      return;
+    }
+
+    String key = line.substring(0, separatorIndex).strip();
+    String value = line.substring(separatorIndex + 1).strip();
+    try {
+      switch (key) {
+        // Despite the name, `out_time_ms` is in microseconds as well
+        case "out_time_us", "out_time_ms" -> outTimeInSeconds = Long.parseLong(value) / 1_000_000.0;
+        case "speed" -> speed = Double.parseDouble(value.replace("x", ""));
+        case "fps" -> fps = Double.parseDouble(value);
+        case "progress" -> progressHandler.accept(new Progress(outTimeInSeconds, speed, fps, value.equals("end")));
+      }
+    } catch (NumberFormatException ignored) {
+      // FFMPEG reports `N/A` until it has encoded the first frames
+    }
+  }
+}
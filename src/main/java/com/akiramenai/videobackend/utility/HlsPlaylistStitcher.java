@@ -0,0 +1,137 @@
+package com.akiramenai.videobackend.utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/// Joins the media playlists of consecutively encoded chunks into a single continuous playlist.
+///
+/// The media files referenced by the chunk playlists are moved next to the target playlist. Segments get renamed so
+/// they continue the `seg_%03d` numbering of the previous chunk, everything else gets the chunk index as a prefix.
+///
+/// Every chunk of an fMP4 rendition comes with its own init segment, so its `#EXT-X-MAP` is kept in front of its
+/// segments. The `#EXT-X-BYTERANGE`s of single file renditions stay as they are, since every chunk keeps its own media
+/// file.
+public class HlsPlaylistStitcher {
+  private static final Pattern SEGMENT_FILENAME = Pattern.compile("seg_\\d+(\\.\\w+)");
+  private static final Pattern MAP_URI = Pattern.compile("#EXT-X-MAP:URI=\"([^\"]+)\"(.*)");
+
+  // Tags that describe the whole playlist. They are written once at the top instead of once per chunk.
+  private static final List<String> PLAYLIST_TAGS = List.of(
+      "#EXTM3U",
+      "#EXT-X-VERSION",
+      "#EXT-X-TARGETDURATION",
+      "#EXT-X-MEDIA-SEQUENCE",
+      "#EXT-X-PLAYLIST-TYPE",
+      "#EXT-X-INDEPENDENT-SEGMENTS",
+      "#EXT-X-ALLOW-CACHE",
+      "#EXT-X-ENDLIST"
+  );
+
+  public static void stitch(List<Path> chunkPlaylists, Path targetPlaylist) throws IOException {
+    Path targetDirectory = targetPlaylist.getParent();
+    Files.createDirectories(targetDirectory);
+
+    String version = "3";
+    double longestSegmentDuration = 0;
+    int segmentIndex = 0;
+    List<String> entries = new ArrayList<>();
+
+    for (int chunkIndex = 0; chunkIndex < chunkPlaylists.size(); chunkIndex++) {
+      Path chunkPlaylist = chunkPlaylists.get(chunkIndex);
+      Path chunkDirectory = chunkPlaylist.getParent();
+      // Single file renditions reference the same media file from every segment, it's only moved once
+      Map<String, String> stitchedNames = new HashMap<>();
+
+      for (String line : Files.readAllLines(chunkPlaylist)) {
+        line = line.strip();
+        if (line.isEmpty()) {
+          continue;
+        }
+
+        if (line.startsWith("#")) {
+          if (line.startsWith("#EXT-X-VERSION:")) {
+            version = line.substring("#EXT-X-VERSION:".length());
+          }
+          if (line.startsWith("#EXTINF:")) {
+            String duration = line.substring("#EXTINF:".length()).split(",")[0];
+            longestSegmentDuration = Math.max(longestSegmentDuration, Double.parseDouble(duration));
+          }
+          Matcher mapMatcher = MAP_URI.matcher(line);
+          if (mapMatcher.matches()) {
+            String stitchedName = stitchedNames.get(mapMatcher.group(1));
+            if (stitchedName == null) {
+              stitchedName = String.format(Locale.ROOT, "c%03d_%s", chunkIndex, mapMatcher.group(1));
+              moveFile(chunkDirectory, mapMatcher.group(1), targetDirectory, stitchedName);
+              stitchedNames.put(mapMatcher.group(1), stitchedName);
+            }
+            entries.add("#EXT-X-MAP:URI=\"" + stitchedName + "\"" + mapMatcher.group(2));
+            continue;
+          }
+          if (!isPlaylistTag(line)) {
+            entries.add(line);
+          }
+          continue;
+        }
+
+        String stitchedName = stitchedNames.get(line);
+        if (stitchedName == null) {
+          Matcher segmentMatcher = SEGMENT_FILENAME.matcher(line);
+          if (segmentMatcher.matches()) {
+            stitchedName = String.format(Locale.ROOT, "seg_%03d%s", segmentIndex++, segmentMatcher.group(1));
+          } else {
+            stitchedName = String.format(Locale.ROOT, "c%03d_%s", chunkIndex, line);
+          }
+          moveFile(chunkDirectory, line, targetDirectory, stitchedName);
+          stitchedNames.put(line, stitchedName);
+        }
+        entries.add(stitchedName);
+      }
+    }
+
+    StringBuilder content = new StringBuilder()
+        .append("#EXTM3U\n")
+        .append("#EXT-X-VERSION:").append(version).append("\n")
+        .append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(longestSegmentDuration)).append("\n")
+        .append("#EXT-X-MEDIA-SEQUENCE:0\n");
+    for (String entry : entries) {
+      content.append(entry).append("\n");
+    }
+    content.append("#EXT-X-ENDLIST\n");
+
+    Files.writeString(targetPlaylist, content.toString());
+  }
+
+  /// How much of the video the media playlist covers, i.e. the sum of its `#EXTINF` durations
+  public static double getDurationInSeconds(Path playlist) throws IOException {
+    double duration = 0;
+    for (String line : Files.readAllLines(playlist)) {
+      if (line.startsWith("#EXTINF:")) {
+        duration += Double.parseDouble(line.substring("#EXTINF:".length()).split(",")[0]);
+      }
+    }
+    return duration;
+  }
+
+  private static void moveFile(Path sourceDirectory, String fileName, Path targetDirectory, String targetName) throws IOException {
+    Files.move(sourceDirectory.resolve(fileName), targetDirectory.resolve(targetName), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static boolean isPlaylistTag(String line) {
+    for (String playlistTag : PLAYLIST_TAGS) {
+      if (line.equals(playlistTag) || line.startsWith(playlistTag + ":")) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,135 @@
+package com.akiramenai.videobackend.utility;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/// The stages a video processing job has completed, along with a checksum of what each of them has produced. It's
+/// persisted on the job, so a retry can skip the stages whose output is still there and unchanged.
+///
+/// Stages that only write to the DB (e.g. the fingerprint) have no checksum, their checkpoint alone counts.
+public class JobStageManifest {
+  public static final String FINGERPRINT = "fingerprint";
+  public static final String TRANSCRIPT = "transcript";
+  public static final String STORYBOARD = "storyboard";
+  public static final String PLAYLISTS = "playlists";
+  public static final String FINALIZE = "finalize";
+
+  public record Checkpoint(String checksum, LocalDateTime completedAt) {
+  }
+
+  private final Map<String, Checkpoint> checkpoints = new LinkedHashMap<>();
+
+  public static String encodeStage(String renditionDirectoryName) {
+    return "encode:" + renditionDirectoryName;
+  }
+
+  public static JobStageManifest fromJson(String json) {
+    JobStageManifest manifest = new JobStageManifest();
+    if (json == null || json.isBlank()) {
+      return manifest;
+    }
+
+    JSONObject stages = new JSONObject(json);
+    for (String stage : stages.keySet()) {
+      JSONObject checkpoint = stages.getJSONObject(stage);
+      manifest.checkpoints.put(stage, new Checkpoint(
+          checkpoint.optString("checksum", null),
+          LocalDateTime.parse(checkpoint.getString("completedAt"))
+      ));
+    }
+    return manifest;
+  }
+
+  public synchronized String toJson() {
+    JSONObject stages = new JSONObject();
+    checkpoints.forEach((stage, checkpoint) -> {
+      JSONObject checkpointJson = new JSONObject().put("completedAt", checkpoint.completedAt().toString());
+      if (checkpoint.checksum() != null) {
+        checkpointJson.put("checksum", checkpoint.checksum());
+      }
+      stages.put(stage, checkpointJson);
+    });
+    return stages.toString();
+  }
+
+  public synchronized boolean isEmpty() {
+    return checkpoints.isEmpty();
+  }
+
+  public synchronized boolean isComplete(String stage) {
+    return checkpoints.containsKey(stage);
+  }
+
+  /// Whether the stage has been completed and its output still has the recorded checksum. A stage whose output has
+  /// gone missing or changed since has to run again.
+  public synchronized boolean isVerified(String stage, Path output) {
+    Checkpoint checkpoint = checkpoints.get(stage);
+    if (checkpoint == null || checkpoint.checksum() == null) {
+      return false;
+    }
+
+    try {
+      String actualChecksum = Files.isDirectory(output) ? directoryChecksum(output) : fileChecksum(output);
+      return Objects.equals(checkpoint.checksum(), actualChecksum);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public synchronized void complete(String stage, String checksum) {
+    checkpoints.put(stage, new Checkpoint(checksum, LocalDateTime.now()));
+  }
+
+  public static String fileChecksum(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    try (InputStream input = new DigestInputStream(Files.newInputStream(file), digest)) {
+      input.transferTo(OutputStream.nullOutputStream());
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /// Checksum of a directory of media files, e.g. an encoded rendition: the content of its playlists plus the name and
+  /// size of every other file. Reading back gigabytes of segments on every retry would cost more than re-encoding a
+  /// short video, while a missing or truncated segment still changes the checksum.
+  public static String directoryChecksum(Path directory) throws IOException {
+    MessageDigest digest = newDigest();
+    List<Path> files;
+    try (Stream<Path> directoryFiles = Files.list(directory)) {
+      files = directoryFiles.filter(Files::isRegularFile).sorted().toList();
+    }
+    for (Path file : files) {
+      String fileName = file.getFileName().toString();
+      digest.update((fileName + "\n").getBytes(StandardCharsets.UTF_8));
+      if (fileName.endsWith(".m3u8") || fileName.endsWith(".vtt")) {
+        digest.update(Files.readAllBytes(file));
+      } else {
+        digest.update((Files.size(file) + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't available.", e);
+    }
+  }
+}
@@ -1,62 +1,56 @@
 package com.akiramenai.videobackend.utility;
 
+import com.akiramenai.videobackend.model.VideoRendition;
+
 import java.util.List;
+import java.util.function.Function;
 
 public class M3u8FileGenerator {
   private static final String MASTER_M3U8_BEGINNING = """
       #EXTM3U
-      #EXT-X-VERSION:3
-      
-      #EXT-X-MEDIA:TYPE=SUBTITLES,GROUP-ID="subs",NAME="English",LANGUAGE="en",DEFAULT=YES,AUTOSELECT=YES,FORCED=NO,URI="sub.m3u8"
+      #EXT-X-VERSION:%d
       
       """;
 
-  private static final String streamOf1080p = """
-      #EXT-X-STREAM-INF:BANDWIDTH=5350000,RESOLUTION=1920x1080,SUBTITLES="subs"
-      v1080/prog.m3u8
-      """;
-
-  private static final String streamOf720p = """
-      #EXT-X-STREAM-INF:BANDWIDTH=2628000,RESOLUTION=1280x720,SUBTITLES="subs"
-      v720/prog.m3u8
-      """;
-
-  private static final String streamOf480p = """
-      #EXT-X-STREAM-INF:BANDWIDTH=856000,RESOLUTION=854x480,SUBTITLES="subs"
-      v480/prog.m3u8
-      """;
-
-  private static final String streamOf360p = """
-      #EXT-X-STREAM-INF:BANDWIDTH=528000,RESOLUTION=640x360,SUBTITLES="subs"
-      v360/prog.m3u8
-      """;
-
-  private static final String streamOf144p = """
-      #EXT-X-STREAM-INF:BANDWIDTH=180000,RESOLUTION=256x144,SUBTITLES="subs"
-      v144/prog.m3u8
+  private static final String SUBTITLES_MEDIA = """
+      #EXT-X-MEDIA:TYPE=SUBTITLES,GROUP-ID="subs",NAME="English",LANGUAGE="en",DEFAULT=YES,AUTOSELECT=YES,FORCED=NO,URI="sub.m3u8"
+      
       """;
 
-  public static String getMasterM3u8FileContent(List<String> videoQualities) {
-    StringBuilder content = new StringBuilder(MASTER_M3U8_BEGINNING);
+  // AAC-LC
+  private static final String AUDIO_CODECS_STRING = "mp4a.40.2";
+
+  /// Only pass the renditions that were actually encoded, every one of them ends up being advertised to the players.
+  /// `playlistVersion` should match the version the media playlists need. `videoCodecsString` gives the codec string
+  /// of a rendition's video, which lets the players skip the variants they can't decode.
+  public static String getMasterM3u8FileContent(
+      List<VideoRendition> renditions,
+      Function<VideoRendition, String> videoCodecsString,
+      boolean hasAudio,
+      boolean hasSubtitles,
+      int playlistVersion
+  ) {
+    StringBuilder content = new StringBuilder(MASTER_M3U8_BEGINNING.formatted(playlistVersion));
+    if (hasSubtitles) {
+      content.append(SUBTITLES_MEDIA);
+    }
 
-    for (String videoQuality : videoQualities) {
-      switch (videoQuality) {
-        case "1080" -> {
-          content.append(streamOf1080p);
-        }
-        case "720" -> {
-          content.append(streamOf720p);
-        }
-        case "480" -> {
-          content.append(streamOf480p);
-        }
-        case "360" -> {
-          content.append(streamOf360p);
-        }
-        case "144" -> {
-          content.append(streamOf144p);
-        }
+    for (VideoRendition rendition : renditions) {
+      content
+          .append("#EXT-X-STREAM-INF:BANDWIDTH=").append(rendition.bandwidth(hasAudio))
+          .append(",AVERAGE-BANDWIDTH=").append(rendition.averageBandwidth(hasAudio))
+          .append(",RESOLUTION=").append(rendition.width()).append("x").append(rendition.height())
+          .append(",CODECS=\"").append(videoCodecsString.apply(rendition));
+      if (hasAudio) {
+        content.append(",").append(AUDIO_CODECS_STRING);
+      }
+      content.append("\"");
+      if (hasSubtitles) {
+        content.append(",SUBTITLES=\"subs\"");
       }
+      content
+          .append("\n")
+          .append(rendition.directoryName()).append("/prog.m3u8\n");
     }
 
     return content.toString();
@@ -0,0 +1,103 @@
+package com.akiramenai.videobackend.utility;
+
+import com.akiramenai.videobackend.model.StoryboardLayout;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/// Writes the `thumbnails.vtt` of a storyboard. Every cue maps a time range of the video to the region of a sprite
+/// sheet that shows it, so the player needs one request per sprite instead of one per thumbnail:
+///
+/// ```
+/// 00:00:05.000 --> 00:00:10.000
+/// sprite_000.jpg#xywh=160,0,160,90
+/// ```
+public class StoryboardGenerator {
+  private static final Pattern SPRITE_FILENAME = Pattern.compile("sprite_\\d+\\.jpg");
+
+  /// Sprites of a consecutive part of the video, e.g. of a chunk that was encoded separately
+  public record Part(Path directory, double startInSeconds, double durationInSeconds) {
+  }
+
+  /// Gathers the sprites of every part into `storyboardDirectory` and writes the thumbnail track for all of them. With
+  /// more than one part the sprites get the part index as a prefix, so their names don't clash.
+  public static void assemble(StoryboardLayout layout, List<Part> parts, Path storyboardDirectory) throws IOException {
+    Files.createDirectories(storyboardDirectory);
+
+    StringBuilder content = new StringBuilder("WEBVTT\n");
+    for (int partIndex = 0; partIndex < parts.size(); partIndex++) {
+      Part part = parts.get(partIndex);
+
+      List<String> sprites = new ArrayList<>();
+      for (String sprite : listSprites(part.directory())) {
+        String assembledName = parts.size() > 1 ? String.format(Locale.ROOT, "c%03d_%s", partIndex, sprite) : sprite;
+        if (!part.directory().equals(storyboardDirectory) || !assembledName.equals(sprite)) {
+          Files.move(
+              part.directory().resolve(sprite),
+              storyboardDirectory.resolve(assembledName),
+              StandardCopyOption.REPLACE_EXISTING
+          );
+        }
+        sprites.add(assembledName);
+      }
+
+      // The last sprite of a part is only partially filled
+      long thumbnailCount = Math.min(
+          (long) Math.ceil(part.durationInSeconds() / layout.intervalInSeconds()),
+          (long) sprites.size() * layout.thumbnailsPerSprite()
+      );
+      double partEnd = part.startInSeconds() + part.durationInSeconds();
+      for (int i = 0; i < thumbnailCount; i++) {
+        double start = part.startInSeconds() + i * layout.intervalInSeconds();
+        double end = Math.min(start + layout.intervalInSeconds(), partEnd);
+        int tileIndex = i % layout.thumbnailsPerSprite();
+
+        content
+            .append("\n")
+            .append(formatTimestamp(start)).append(" --> ").append(formatTimestamp(end)).append("\n")
+            .append(sprites.get(i / layout.thumbnailsPerSprite()))
+            .append("#xywh=")
+            .append((tileIndex % layout.columns()) * layout.thumbnailWidth()).append(",")
+            .append((tileIndex / layout.columns()) * layout.thumbnailHeight()).append(",")
+            .append(layout.thumbnailWidth()).append(",")
+            .append(layout.thumbnailHeight()).append("\n");
+      }
+    }
+
+    Files.writeString(storyboardDirectory.resolve(StoryboardLayout.THUMBNAILS_FILE_NAME), content.toString());
+  }
+
+  private static List<String> listSprites(Path directory) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return List.of();
+    }
+
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .map(file -> file.getFileName().toString())
+          .filter(fileName -> SPRITE_FILENAME.matcher(fileName).matches())
+          .sorted()
+          .toList();
+    }
+  }
+
+  // WebVTT timestamps look like: 01:02:03.456
+  private static String formatTimestamp(double seconds) {
+    long millis = Math.round(seconds * 1000);
+    return String.format(
+        Locale.ROOT,
+        "%02d:%02d:%02d.%03d",
+        millis / 3_600_000,
+        (millis / 60_000) % 60,
+        (millis / 1000) % 60,
+        millis % 1000
+    );
+  }
+}
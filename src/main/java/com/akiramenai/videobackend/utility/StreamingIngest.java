@@ -0,0 +1,164 @@
+package com.akiramenai.videobackend.utility;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/// Uploads that get encoded while they're still coming in. The upload is written to `<source>.part`, which is renamed
+/// to the source once its last byte is in. FFMPEG follows the growing file, so the encode only trails the upload by a
+/// little.
+///
+/// That only works for containers that can be read front to back: Matroska/WebM, MPEG-TS, fragmented MP4 and MP4s
+/// whose `moov` comes before the media. An MP4 with its `moov` at the end can't be decoded before the upload is done.
+@Slf4j
+public class StreamingIngest {
+  public static final String PARTIAL_FILE_SUFFIX = ".part";
+
+  private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+  private static final int EBML_MAGIC = 0x1A45DFA3;
+  private static final int TS_PACKET_SIZE = 188;
+  private static final byte TS_SYNC_BYTE = 0x47;
+  // Top-level boxes an ISO BMFF (MP4/MOV) file can open with
+  private static final Set<String> LEADING_MP4_BOXES = Set.of("ftyp", "styp", "free", "skip", "wide", "moov");
+
+  public static Path partialFileOf(File source) {
+    return Path.of(source.getAbsolutePath() + PARTIAL_FILE_SUFFIX);
+  }
+
+  public static boolean isUploading(File source) {
+    return !source.exists() && Files.exists(partialFileOf(source));
+  }
+
+  /// Whether the container can be decoded while it's still growing. Empty while too little of it has arrived to tell.
+  public static Optional<Boolean> isStreamable(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer header = readAt(channel, 0, 8);
+      if (header == null) {
+        return Optional.empty();
+      }
+
+      if (header.getInt(0) == EBML_MAGIC) {
+        return Optional.of(true);
+      }
+      if (header.get(0) == TS_SYNC_BYTE) {
+        ByteBuffer nextPacket = readAt(channel, TS_PACKET_SIZE, 1);
+        if (nextPacket == null) {
+          return Optional.empty();
+        }
+        if (nextPacket.get(0) == TS_SYNC_BYTE) {
+          return Optional.of(true);
+        }
+      }
+
+      // Walks the top-level boxes of an MP4 until either the `moov`/`moof` or the `mdat` shows up
+      long offset = 0;
+      while (offset + 8 <= size) {
+        ByteBuffer box = readAt(channel, offset, 8);
+        if (box == null) {
+          return Optional.empty();
+        }
+        long boxSize = Integer.toUnsignedLong(box.getInt(0));
+        String boxType = new String(box.array(), 4, 4, StandardCharsets.ISO_8859_1);
+        if (offset == 0 && !LEADING_MP4_BOXES.contains(boxType)) {
+          // Nothing we know to be streamable, so it waits for the whole file
+          return Optional.of(false);
+        }
+        if (boxType.equals("moov") || boxType.equals("moof")) {
+          return Optional.of(true);
+        }
+        if (boxType.equals("mdat")) {
+          return Optional.of(false);
+        }
+
+        if (boxSize == 1) {
+          ByteBuffer largeSize = readAt(channel, offset + 8, 8);
+          if (largeSize == null) {
+            return Optional.empty();
+          }
+          boxSize = largeSize.getLong(0);
+        }
+        if (boxSize < 8) {
+          return Optional.of(false);
+        }
+        offset += boxSize;
+      }
+
+      return Optional.empty();
+    }
+  }
+
+  /// Waits until the upload is complete or `isEnough` is satisfied with what has arrived so far.
+  ///
+  /// Returns `false` if the upload has stopped growing for `stallTimeout`, if it has been aborted (its partial file is
+  /// gone without a source to show for it) or if `isCancelled` says so.
+  public static boolean awaitUpload(
+      File source,
+      Duration stallTimeout,
+      Predicate<Path> isEnough,
+      BooleanSupplier isCancelled
+  ) throws InterruptedException {
+    Path partialFile = partialFileOf(source);
+    long lastSize = -1;
+    long lastGrowthAt = System.nanoTime();
+    while (!isCancelled.getAsBoolean()) {
+      if (source.exists()) {
+        return true;
+      }
+
+      long size;
+      try {
+        size = Files.size(partialFile);
+      } catch (NoSuchFileException e) {
+        // The partial file might have been renamed in the meantime
+        return source.exists();
+      } catch (IOException e) {
+        log.warn("Failed to check the size of the upload. Reason: {}", e.getMessage());
+        size = lastSize;
+      }
+
+      if (size != lastSize) {
+        lastSize = size;
+        lastGrowthAt = System.nanoTime();
+        if (isEnough.test(partialFile)) {
+          return true;
+        }
+      } else if (System.nanoTime() - lastGrowthAt > stallTimeout.toNanos()) {
+        log.warn("The upload has stalled at {} bytes. Source: {}", size, source.getAbsolutePath());
+        return false;
+      }
+
+      Thread.sleep(POLL_INTERVAL.toMillis());
+    }
+
+    return false;
+  }
+
+  public static boolean awaitUpload(File source, Duration stallTimeout, BooleanSupplier isCancelled) throws InterruptedException {
+    return awaitUpload(source, stallTimeout, partialFile -> false, isCancelled);
+  }
+
+  // `null` if the file isn't that long yet
+  private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return null;
+      }
+    }
+    return buffer;
+  }
+}
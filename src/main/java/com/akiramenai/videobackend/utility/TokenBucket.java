@@ -0,0 +1,49 @@
+package com.akiramenai.videobackend.utility;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/// Rate limiter that holds up to `capacity` tokens and gains `refillPerSecond` of them every second. Every acquired
+/// token is one admitted request.
+public class TokenBucket {
+  private final double capacity;
+  private final double refillPerSecond;
+
+  private double tokens;
+  private long lastRefilledAt;
+
+  public TokenBucket(double capacity, double refillPerSecond) {
+    this.capacity = capacity;
+    this.refillPerSecond = refillPerSecond;
+    this.tokens = capacity;
+    this.lastRefilledAt = System.nanoTime();
+  }
+
+  /// Takes a token. If there's none left, nothing is taken and it returns how long it'll be until there is one.
+  public synchronized Optional<Duration> tryAcquire() {
+    refill();
+    if (tokens >= 1) {
+      tokens -= 1;
+      return Optional.empty();
+    }
+
+    long nanosUntilNextToken = (long) Math.ceil((1 - tokens) / refillPerSecond * 1_000_000_000);
+    return Optional.of(Duration.ofNanos(nanosUntilNextToken));
+  }
+
+  /// Gives back a token that has been acquired for a request that wasn't admitted after all.
+  public synchronized void release() {
+    tokens = Math.min(capacity, tokens + 1);
+  }
+
+  public synchronized boolean isFull() {
+    refill();
+    return tokens >= capacity;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefilledAt) / 1_000_000_000.0 * refillPerSecond);
+    lastRefilledAt = now;
+  }
+}
@@ -0,0 +1,125 @@
+package com.akiramenai.videobackend.utility;
+
+import com.akiramenai.videobackend.model.ResultOrError;
+import com.akiramenai.videobackend.model.VideoProcessingErrors;
+import com.akiramenai.videobackend.model.VideoRendition;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Measures how hard a video is to compress. A few short windows spread over the video are encoded at a constant
+/// quality for every rendition, and the size they come out at is the bitrate that quality takes. A slide deck comes
+/// out at a fraction of what a fast-moving screencast of the same height needs.
+@Slf4j
+public class VideoComplexityProbe {
+  /// Returns the measured bitrate (in kbps) of every rendition, in the same order as `renditions`.
+  public static ResultOrError<List<Integer>, VideoProcessingErrors> measureBitrates(
+      File videoToProbe,
+      double sourceDurationInSeconds,
+      List<VideoRendition> renditions,
+      int windowCount,
+      double windowDurationInSeconds,
+      int crf,
+      int threadCount,
+      Path workingDirectory,
+      Duration timeout
+  ) {
+    var res = ResultOrError.<List<Integer>, VideoProcessingErrors>builder();
+
+    // Short videos are probed as a whole
+    List<double[]> windows = new ArrayList<>();
+    if (sourceDurationInSeconds <= windowCount * windowDurationInSeconds * 2) {
+      windows.add(new double[]{0, sourceDurationInSeconds});
+    } else {
+      for (int i = 1; i <= windowCount; i++) {
+        double windowCenter = sourceDurationInSeconds * i / (windowCount + 1);
+        windows.add(new double[]{windowCenter - windowDurationInSeconds / 2, windowDurationInSeconds});
+      }
+    }
+    double sampledSeconds = windows.stream().mapToDouble(window -> window[1]).sum();
+
+    try {
+      Files.createDirectories(workingDirectory);
+
+      // Every window is its own input, so FFMPEG seeks straight to it instead of decoding everything in between
+      List<String> command = new ArrayList<>(List.of("ffmpeg", "-y"));
+      StringBuilder filterGraph = new StringBuilder();
+      for (int i = 0; i < windows.size(); i++) {
+        command.addAll(List.of(
+            "-ss", String.valueOf(windows.get(i)[0]),
+            "-t", String.valueOf(windows.get(i)[1]),
+            "-i", videoToProbe.getAbsolutePath()
+        ));
+        filterGraph.append("[").append(i).append(":v:0]");
+      }
+
+      // [0:v:0][1:v:0]concat=n=2:v=1:a=0,split=2[s0][s1];[s0]scale=1920:1080,setsar=1[v0];...
+      filterGraph
+          .append("concat=n=").append(windows.size()).append(":v=1:a=0")
+          .append(",split=").append(renditions.size());
+      for (int i = 0; i < renditions.size(); i++) {
+        filterGraph.append("[s").append(i).append("]");
+      }
+      for (int i = 0; i < renditions.size(); i++) {
+        filterGraph
+            .append(";[s").append(i).append("]scale=")
+            .append(renditions.get(i).width()).append(":").append(renditions.get(i).height())
+            .append(",setsar=1[v").append(i).append("]");
+      }
+      command.addAll(List.of("-filter_complex", filterGraph.toString()));
+
+      // Raw H.264, so the container doesn't add to the measured size
+      for (int i = 0; i < renditions.size(); i++) {
+        command.addAll(List.of(
+            "-map", "[v" + i + "]",
+            "-c:v", "libx264",
+            "-preset", "veryfast",
+            "-crf", String.valueOf(crf),
+            "-threads", String.valueOf(threadCount),
+            "-an",
+            "-f", "h264",
+            "probe_" + i + ".h264"
+        ));
+      }
+
+      ProcessBuilder probeCommand = new ProcessBuilder(command)
+          .directory(workingDirectory.toFile())
+          .redirectErrorStream(true)
+          .redirectOutput(ProcessBuilder.Redirect.INHERIT);
+      int exitCode = ExternalProcessRunner.run(probeCommand, timeout);
+      if (exitCode != 0) {
+        log.error("Failed to measure the complexity of the video. FFMPEG exited with exit code: {}", exitCode);
+
+        return res
+            .errorType(VideoProcessingErrors.FailedToProcess)
+            .errorMessage("Failed to measure the complexity of the video.")
+            .build();
+      }
+
+      List<Integer> bitrates = new ArrayList<>();
+      for (int i = 0; i < renditions.size(); i++) {
+        long sizeInBytes = Files.size(workingDirectory.resolve("probe_" + i + ".h264"));
+        bitrates.add((int) Math.ceil(sizeInBytes * 8 / 1000.0 / sampledSeconds));
+      }
+
+      return res
+          .result(bitrates)
+          .build();
+    } catch (Exception e) {
+      log.error("Failed to run the command to measure the complexity of the video. Reason: ", e);
+
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to measure the complexity of the video.")
+          .build();
+    } finally {
+      FileUtils.deleteQuietly(workingDirectory.toFile());
+    }
+  }
+}
@@ -1,60 +1,117 @@
 package com.akiramenai.videobackend.utility;
 
 import com.akiramenai.videobackend.config.VideoProcessingConfig;
+import com.akiramenai.videobackend.encoder.VideoEncoder;
+import com.akiramenai.videobackend.encoder.VideoEncoderRegistry;
 import com.akiramenai.videobackend.filters.FingerprintService;
+import com.akiramenai.videobackend.service.StorageQuotaService;
+import com.akiramenai.videobackend.service.TranscriptionCommandService;
+import com.akiramenai.videobackend.service.VideoDeduplicationService;
+import com.akiramenai.videobackend.service.VideoProcessingQueueService;
+import com.akiramenai.videobackend.service.VideoProgressTracker;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.dao.OptimisticLockingFailureException;
 import com.akiramenai.videobackend.model.*;
-import com.akiramenai.videobackend.repo.UserRepo;
 import com.akiramenai.videobackend.repo.VideoMetadataRepo;
 import com.akiramenai.videobackend.service.MediaStorageService;
+import org.springframework.stereotype.Component;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.text.MessageFormat;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Slf4j
+@Component
 public class VideoProcessor {
+  private static final Duration QUEUE_POLL_INTERVAL = Duration.ofSeconds(5);
+  private static final String CANCELLED_REASON = "The job has been cancelled.";
+  // Retrying won't change the verdict, so these jobs fail for good right away
+  private static final String CONTENT_THEFT_REASON = "The video has already been uploaded by another instructor.";
+  // Whisper prints every transcribed line as: [00:01:02.340 --> 00:01:05.120]  Some text
+  private static final Pattern WHISPER_TIMESTAMP = Pattern.compile("^\\[[\\d:.]+ --> (\\d+):(\\d+):(\\d+(?:\\.\\d+)?)]");
+
   String whisperCppCliPath;
   String whisperCppModelPath;
 
-  private final UserRepo userRepo;
+  private final StorageQuotaService storageQuotaService;
   private final VideoMetadataRepo videoMetadataRepo;
   private final FingerprintService fingerprintService;
   private final MediaStorageService mediaStorageService;
-  private final BlockingQueue<VideoProcessingTask> videoFileQueue;
+  private final VideoProcessingQueueService videoProcessingQueueService;
+  private final VideoProgressTracker videoProgressTracker;
 
   private final VideoProcessingConfig videoProcessingConfig;
+  private final VideoEncoderRegistry videoEncoderRegistry;
+  private final VideoDeduplicationService videoDeduplicationService;
+
+  private ExecutorService workerPool;
+  private ScheduledExecutorService heartbeatScheduler;
+  // Job ID -> video ID of the jobs this node is running
+  private final Map<UUID, UUID> activeJobs = new ConcurrentHashMap<>();
+  // Video ID -> threads running its stages, so the stages of a cancelled job can be interrupted
+  private final Map<UUID, Set<Thread>> stageThreads = new ConcurrentHashMap<>();
+  private final Set<UUID> cancelledVideoIds = ConcurrentHashMap.newKeySet();
+  // Stages spend nearly all their time waiting on external processes, so virtual threads are plenty for them
+  private final ExecutorService stageExecutor = Executors.newVirtualThreadPerTaskExecutor();
+  private final AtomicBoolean isShuttingDown = new AtomicBoolean(false);
 
   public VideoProcessor(
-      UserRepo userRepo,
+      StorageQuotaService storageQuotaService,
       VideoMetadataRepo videoMetadataRepo,
       MediaStorageService mediaStorageService,
-      BlockingQueue<VideoProcessingTask> videoFileQueue,
-      String whisperCppCliPath,
-      String whisperCppModelPath,
+      VideoProcessingQueueService videoProcessingQueueService,
+      TranscriptionCommandService transcriptionCommandService,
       VideoProcessingConfig videoProcessingConfig,
-      FingerprintService fingerprintService
+      FingerprintService fingerprintService,
+      VideoProgressTracker videoProgressTracker,
+      VideoEncoderRegistry videoEncoderRegistry,
+      VideoDeduplicationService videoDeduplicationService
   ) {
-    this.userRepo = userRepo;
+    this.storageQuotaService = storageQuotaService;
     this.videoMetadataRepo = videoMetadataRepo;
     this.mediaStorageService = mediaStorageService;
-    this.videoFileQueue = videoFileQueue;
+    this.videoProcessingQueueService = videoProcessingQueueService;
 
-    this.whisperCppCliPath = whisperCppCliPath;
-    this.whisperCppModelPath = whisperCppModelPath;
+    this.whisperCppCliPath = transcriptionCommandService.whisperCppCliPath;
+    this.whisperCppModelPath = transcriptionCommandService.whisperCppModelPath;
 
     this.videoProcessingConfig = videoProcessingConfig;
     this.fingerprintService = fingerprintService;
+    this.videoProgressTracker = videoProgressTracker;
+    this.videoEncoderRegistry = videoEncoderRegistry;
+    this.videoDeduplicationService = videoDeduplicationService;
   }
 
   private boolean writeToFile(File fileToWriteTo, String content) {
@@ -72,45 +129,132 @@ public class VideoProcessor {
     return true;
   }
 
-  private String[] getVideoQualityDetails(String videoHeight) {
-    switch (videoHeight) {
-      case "1080" -> {
-        return new String[]{"5000k", "5350k", "7500k"};
-        //return "-b:v 5000k -maxrate 5350k -bufsize 7500k";
-      }
-      case "720" -> {
-        return new String[]{"2500k", "2675k", "3750k"};
-      }
-      case "480" -> {
-        return new String[]{"800k", "856k", "1200k"};
-      }
-      case "360" -> {
-        return new String[]{"400k", "428k", "600k"};
-      }
-      default -> {
-        return new String[]{"95k", "100k", "150k"};
+  /// Runs FFMPEG with `-progress pipe:1` and reports how far it has got to the progress tracker. FFMPEG's own log still
+  /// goes to stderr.
+  ///
+  /// `encoderKey` tells apart the FFMPEG processes of the same job. `timestampOffsetInSeconds` is the position of the
+  /// encoded part within the whole video.
+  private int runFfmpegWithProgress(
+      List<String> command,
+      Path workingDirectory,
+      UUID videoId,
+      String encoderKey,
+      double timestampOffsetInSeconds,
+      Duration timeout
+  ) throws IOException, InterruptedException, TimeoutException {
+    List<String> progressCommand = new ArrayList<>(command);
+    progressCommand.addAll(1, List.of("-progress", "pipe:1", "-nostats"));
+
+    // Depending on the muxer `out_time` may or may not include the output offset. The first report comes in right
+    // after the start, so it tells which one it is.
+    double[] offsetToSubtract = {-1};
+    FfmpegProgressParser progressParser = new FfmpegProgressParser(progress -> {
+      if (offsetToSubtract[0] < 0) {
+        offsetToSubtract[0] = progress.outTimeInSeconds() >= timestampOffsetInSeconds ? timestampOffsetInSeconds : 0;
       }
+
+      double processedSeconds = Math.max(0, progress.outTimeInSeconds() - offsetToSubtract[0]);
+      videoProgressTracker.reportEncodingProgress(
+          videoId,
+          encoderKey,
+          processedSeconds,
+          progress.isFinished() ? 0 : progress.speed(),
+          progress.isFinished() ? 0 : progress.fps()
+      );
+    });
+
+    ProcessBuilder pb = new ProcessBuilder(progressCommand)
+        .directory(workingDirectory.toFile())
+        .redirectError(ProcessBuilder.Redirect.INHERIT);
+    return ExternalProcessRunner.run(pb, progressParser, timeout);
+  }
+
+  private List<String> getAudioArguments(boolean hasAudio) {
+    if (!hasAudio) {
+      return List.of("-an");
+    }
+
+    return List.of(
+        "-c:a", "aac",
+        "-ac", "2",
+        "-b:a", VideoRendition.AUDIO_BITRATE + "k"
+    );
+  }
+
+  /// Where and in which container the HLS muxer writes the segments of a rendition. The init segment of fMP4 goes next
+  /// to the media playlist.
+  private List<String> getHlsSegmentArguments(String renditionDirectory) {
+    HlsSegmentType segmentType = videoProcessingConfig.getHlsSegmentType();
+    boolean isSingleFile = videoProcessingConfig.isSingleFileRenditions();
+    List<String> arguments = new ArrayList<>();
+    if (segmentType == HlsSegmentType.Fmp4) {
+      arguments.addAll(List.of(
+          "-hls_segment_type", "fmp4",
+          "-hls_fmp4_init_filename", HlsSegmentType.INIT_SEGMENT_FILENAME
+      ));
     }
+    if (isSingleFile) {
+      arguments.addAll(List.of("-hls_flags", "single_file"));
+    }
+    arguments.addAll(List.of(
+        "-hls_segment_filename",
+        renditionDirectory + "/" + segmentType.segmentFilename(isSingleFile)
+    ));
+    return arguments;
+  }
+
+  /// Output options of the storyboard sprites and the poster. They go after the HLS output, so their frames come out of
+  /// the same decode pass as the renditions. `posterStream` is `null` if this pass doesn't produce the poster.
+  private List<String> getStoryboardOutputArguments(List<String> spriteStream, List<String> posterStream) {
+    List<String> arguments = new ArrayList<>(spriteStream);
+    arguments.addAll(List.of(
+        "-an",
+        "-c:v", "mjpeg",
+        "-q:v", "3",
+        "-f", "image2",
+        StoryboardLayout.DIRECTORY_NAME + "/sprite_%03d.jpg"
+    ));
+    if (posterStream != null) {
+      arguments.addAll(posterStream);
+      arguments.addAll(List.of(
+          "-an",
+          "-frames:v", "1",
+          "-c:v", "mjpeg",
+          "-q:v", "2",
+          "-update", "1",
+          StoryboardLayout.DIRECTORY_NAME + "/" + StoryboardLayout.POSTER_FILE_NAME
+      ));
+    }
+    return arguments;
+  }
+
+  // A tenth into the video is usually past the intro, but there's no need to wait for it in long videos
+  private double getPosterTimeInSeconds(double sourceDurationInSeconds) {
+    return Math.min(sourceDurationInSeconds * 0.1, 60);
   }
 
   private ResultOrError<File, VideoProcessingErrors> processVideo(
       File videoToProcess,
       UUID videoId,
-      int width,
-      int height,
-      boolean useGpu
+      Path videoIdDirectory,
+      VideoRendition rendition,
+      int presetTier,
+      boolean hasAudio,
+      int threads,
+      StoryboardLayout storyboard,
+      Double posterTimeInSeconds,
+      Duration timeout
   ) {
     var res = ResultOrError.<File, VideoProcessingErrors>builder();
 
     // Create the video directory and the quality directory
-    Path qualityDirPath = Paths.get(
-        mediaStorageService.videoDirectoryString,
-        videoId.toString(),
-        "v" + height
-    );
+    Path qualityDirPath = videoIdDirectory.resolve(rendition.directoryName());
 
     try {
       Files.createDirectories(qualityDirPath);
+      if (storyboard != null) {
+        Files.createDirectories(videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME));
+      }
     } catch (Exception e) {
       log.error("Error creating directory for video processing.", e);
       return res
@@ -118,53 +262,40 @@ public class VideoProcessor {
           .errorMessage("Failed to create the output file.")
           .build();
     }
-    Path videoIdDirectory = Paths.get(
-        mediaStorageService.videoDirectoryString,
-        videoId.toString()
-    );
 
     try {
-      String encoderToUse = null, presetToUse = null;
-      if (useGpu) {
-        encoderToUse = "h264_nvenc";
-        presetToUse = "p6";
-      } else {
-        encoderToUse = "libx264";
-        presetToUse = "medium";
-      }
+      VideoEncoder encoder = videoEncoderRegistry.forCodec(rendition.codec());
 
-      String[] properties = getVideoQualityDetails(String.valueOf(height));
-
-      String[] command = {
+      List<String> command = new ArrayList<>(List.of(
           "ffmpeg",
           "-i", videoToProcess.getAbsolutePath(),
-          "-c:v", encoderToUse,
-          "-preset", presetToUse,
-          "-profile:v", "main",
-          "-b:v", properties[0],
-          "-maxrate", properties[1],
-          "-bufsize", properties[2],
-          "-vf", "scale=-2:" + height,
-          "-c:a", "aac",
-          "-ac", "2",
-          "-b:a", "128k",
+          "-threads", String.valueOf(threads)
+      ));
+      command.addAll(encoder.getEncodingArguments(rendition, presetTier, ":v"));
+      command.addAll(List.of(
+          "-vf", "scale=" + rendition.width() + ":" + rendition.height() + ",setsar=1"
+      ));
+      command.addAll(getAudioArguments(hasAudio));
+      command.addAll(List.of(
           "-g", "48",
           "-force_key_frames", "expr:gte(t,n_forced*2)",
           "-fflags", "+genpts",
           "-start_at_zero",
           "-hls_time", "2",
-          "-hls_list_size", "0",
-          "-hls_segment_filename", MessageFormat.format("v{0}/seg_%03d.ts", height),
-          MessageFormat.format("v{0}/prog.m3u8", height)
-      };
+          "-hls_list_size", "0"
+      ));
+      command.addAll(getHlsSegmentArguments(rendition.directoryName()));
+      command.add(rendition.directoryName() + "/prog.m3u8");
+      if (storyboard != null) {
+        command.addAll(getStoryboardOutputArguments(
+            List.of("-map", "0:v:0", "-vf", storyboard.spriteFilter()),
+            posterTimeInSeconds == null
+                ? null
+                : List.of("-map", "0:v:0", "-vf", storyboard.posterFilter(posterTimeInSeconds))
+        ));
+      }
 
-      ProcessBuilder pb = new ProcessBuilder(
-          command
-      )
-          .directory(videoIdDirectory.toFile())
-          .redirectErrorStream(true)
-          .redirectOutput(ProcessBuilder.Redirect.INHERIT);
-      int exitCode = pb.start().waitFor();
+      int exitCode = runFfmpegWithProgress(command, videoIdDirectory, videoId, rendition.directoryName(), 0, timeout);
 
       if (exitCode != 0) {
         log.error("Failed to process video. FFMPEG exited with exit code: {}", exitCode);
@@ -189,60 +320,226 @@ public class VideoProcessor {
         .build();
   }
 
-  private ResultOrError<File, VideoProcessingErrors> extractVideoInfo(
-      VideoProcessingTask task,
-      boolean shouldTranscribe
+  /// Decodes the source once and fans the decoded frames out to every rendition through a `split` filter graph.
+  /// All the `vNNN/prog.m3u8` variants are written by the same FFMPEG process.
+  ///
+  /// `timestampOffsetInSeconds` shifts the output timestamps, so chunks of the same video can be encoded separately and
+  /// still line up once they're stitched together.
+  ///
+  /// With a `storyboard` two more branches of the filter graph tile the thumbnails into sprites and pick the poster
+  /// frame, which is only taken if `posterTimeInSeconds` isn't `null`.
+  ///
+  /// `inputArguments` go in front of the source, e.g. to follow a source that is still being uploaded.
+  private ResultOrError<File, VideoProcessingErrors> processVideoRenditions(
+      File videoToProcess,
+      List<String> inputArguments,
+      UUID videoId,
+      Path videoIdDirectory,
+      List<VideoRendition> renditions,
+      int presetTier,
+      boolean hasAudio,
+      int threadCount,
+      double timestampOffsetInSeconds,
+      StoryboardLayout storyboard,
+      Double posterTimeInSeconds,
+      Duration timeout
   ) {
     var res = ResultOrError.<File, VideoProcessingErrors>builder();
 
-    File videoToProcess = task.videoToProcess();
-    UUID videoId = task.videoId();
+    try {
+      for (VideoRendition rendition : renditions) {
+        Files.createDirectories(videoIdDirectory.resolve(rendition.directoryName()));
+      }
+      if (storyboard != null) {
+        Files.createDirectories(videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME));
+      }
+    } catch (Exception e) {
+      log.error("Error creating directory for video processing.", e);
+      return res
+          .errorType(VideoProcessingErrors.FailedToCreateOutputFile)
+          .errorMessage("Failed to create the output file.")
+          .build();
+    }
 
     try {
-      String tempAudioFile = videoId.toString() + "_pcm16.wav";
-      ProcessBuilder pb1 = new ProcessBuilder(
-          "ffmpeg",
+      int renditionCount = renditions.size();
+      boolean hasPoster = storyboard != null && posterTimeInSeconds != null;
+      int branchCount = renditionCount + (storyboard != null ? 1 : 0) + (hasPoster ? 1 : 0);
+
+      // [0:v]split=2[s0][s1];[s0]scale=1920:1080,setsar=1[v0];[s1]scale=1280:720,setsar=1[v1]
+      StringBuilder filterGraph = new StringBuilder("[0:v]split=").append(branchCount);
+      for (int i = 0; i < branchCount; i++) {
+        filterGraph.append("[s").append(i).append("]");
+      }
+      for (int i = 0; i < renditionCount; i++) {
+        filterGraph
+            .append(";[s").append(i).append("]scale=")
+            .append(renditions.get(i).width()).append(":").append(renditions.get(i).height())
+            .append(",setsar=1[v").append(i).append("]");
+      }
+      if (storyboard != null) {
+        filterGraph.append(";[s").append(renditionCount).append("]").append(storyboard.spriteFilter()).append("[sprites]");
+      }
+      if (hasPoster) {
+        filterGraph
+            .append(";[s").append(renditionCount + 1).append("]")
+            .append(storyboard.posterFilter(posterTimeInSeconds))
+            .append("[poster]");
+      }
+
+      List<String> command = new ArrayList<>(List.of("ffmpeg"));
+      command.addAll(inputArguments);
+      command.addAll(List.of(
           "-i", videoToProcess.getAbsolutePath(),
-          "-acodec", "pcm_s16le",
-          tempAudioFile
-      )
-          .directory(new File(mediaStorageService.videoDirectoryString))
-          .redirectErrorStream(true)
-          .redirectOutput(ProcessBuilder.Redirect.INHERIT);
-      Process process1 = pb1.start();
-      int exitCode = process1.waitFor();
-      if (exitCode != 0) {
-        log.error("Failed to extract audio from video. FFMPEG exited with exit code: {}", exitCode);
+          "-filter_complex", filterGraph.toString()
+      ));
+
+      StringBuilder streamMap = new StringBuilder();
+      for (int i = 0; i < renditionCount; i++) {
+        VideoRendition rendition = renditions.get(i);
+
+        command.addAll(List.of("-map", "[v" + i + "]"));
+        command.addAll(
+            videoEncoderRegistry
+                .forCodec(rendition.codec())
+                .getEncodingArguments(rendition, presetTier, ":v:" + i)
+        );
+        if (hasAudio) {
+          command.addAll(List.of("-map", "0:a:0"));
+        }
 
-        return res
-            .errorType(VideoProcessingErrors.FailedToProcess)
-            .errorMessage("Failed to extract 16-bit WAV from the video.")
-            .build();
+        if (!streamMap.isEmpty()) {
+          streamMap.append(" ");
+        }
+        streamMap.append("v:").append(i);
+        if (hasAudio) {
+          streamMap.append(",a:").append(i);
+        }
+        streamMap.append(",name:").append(rendition.variantName());
+      }
+
+      if (timestampOffsetInSeconds > 0) {
+        command.addAll(List.of("-output_ts_offset", String.valueOf(timestampOffsetInSeconds)));
+      }
+      command.addAll(List.of("-threads", String.valueOf(threadCount)));
+      command.addAll(getAudioArguments(hasAudio));
+      command.addAll(List.of(
+          "-g", "48",
+          "-force_key_frames", "expr:gte(t,n_forced*2)",
+          "-fflags", "+genpts",
+          "-start_at_zero",
+          "-f", "hls",
+          "-hls_time", "2",
+          "-hls_list_size", "0",
+          "-var_stream_map", streamMap.toString()
+      ));
+      command.addAll(getHlsSegmentArguments("v%v"));
+      command.add("v%v/prog.m3u8");
+      if (storyboard != null) {
+        command.addAll(getStoryboardOutputArguments(
+            List.of("-map", "[sprites]"),
+            hasPoster ? List.of("-map", "[poster]") : null
+        ));
       }
 
-      File tempAudioFileHandle = Paths.get(mediaStorageService.videoDirectoryString, tempAudioFile).toFile();
+      int exitCode = runFfmpegWithProgress(
+          command,
+          videoIdDirectory,
+          videoId,
+          "offset-" + timestampOffsetInSeconds,
+          timestampOffsetInSeconds,
+          timeout
+      );
 
-      ResultOrError<AudioFingerprint, VideoProcessingErrors> fingerprintResult = extractFingerprint(tempAudioFileHandle);
-      if (fingerprintResult.errorType() != null) {
-        log.error("Failed to extract the audio fingerprint. Reason: {} -> {}", fingerprintResult.errorType(), fingerprintResult.errorMessage());
+      if (exitCode != 0) {
+        log.error("Failed to process video. FFMPEG exited with exit code: {}", exitCode);
 
         return res
-            .errorMessage("Failed to extract the audio fingerprint.")
             .errorType(VideoProcessingErrors.FailedToProcess)
+            .errorMessage("Failed to process video.")
             .build();
       }
-      Fingerprint fingerprint = Fingerprint
-          .builder()
-          .videoMetadataId("VM_" + videoId)
-          .authorId(task.uploader())
-          .audioDuration(fingerprintResult.result().duration())
-          .audioFingerprint(fingerprintResult.result().fingerprint())
+    } catch (Exception e) {
+      log.error("Failed to run the command to process the video. Reason: ", e);
+
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to process video.")
           .build();
-      FingerprintService.FingerprintMatchStatus fprintStatus = this.fingerprintService.examineAndSaveFingerprint(fingerprint);
-      if (fprintStatus.equals(FingerprintService.FingerprintMatchStatus.ACCIDENTAL_REUPLOAD)) {
-        log.warn("It seems instructor has accidentally reuploaded an already uploaded video.");
-      }
+    }
+
+    log.info("Video processing completed successfully. Video path: {}", videoIdDirectory);
+    return res
+        .result(videoIdDirectory.toFile())
+        .build();
+  }
+
+  /// Fingerprints the start of the audio of `source` and checks it against every video uploaded so far. A stolen video
+  /// comes back as `ContentThiefDetected`, its uploader has been shadow-banned by then.
+  ///
+  /// `source` is either the complete upload or one that has at least the fingerprinted part of it in already.
+  private ResultOrError<FingerprintService.FingerprintMatchStatus, VideoProcessingErrors> examineFingerprint(
+      VideoProcessingJob job,
+      JobStageManifest manifest,
+      File source,
+      double sourceDurationInSeconds
+  ) {
+    var res = ResultOrError.<FingerprintService.FingerprintMatchStatus, VideoProcessingErrors>builder();
+    VideoProcessingTask task = job.toTask();
+
+    // fpcalc decodes the audio of the source by itself, and only as much of it as goes into the fingerprint
+    double fingerprintedSeconds = Math.min(sourceDurationInSeconds, videoProcessingConfig.getFingerprintLengthInSeconds());
+    ResultOrError<AudioFingerprint, VideoProcessingErrors> fingerprintResult = extractFingerprint(
+        source,
+        videoProcessingConfig.getAuxiliaryTimeout(fingerprintedSeconds)
+    );
+    if (fingerprintResult.errorType() != null) {
+      log.error("Failed to extract the audio fingerprint. Reason: {} -> {}", fingerprintResult.errorType(), fingerprintResult.errorMessage());
+
+      return res
+          .errorMessage("Failed to extract the audio fingerprint.")
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .build();
+    }
+    Fingerprint fingerprint = Fingerprint
+        .builder()
+        .videoMetadataId("VM_" + task.videoId())
+        .authorId(task.uploader())
+        .audioDuration(fingerprintResult.result().duration())
+        .audioFingerprint(fingerprintResult.result().fingerprint())
+        .build();
+    FingerprintService.FingerprintMatchStatus fprintStatus = this.fingerprintService.examineAndSaveFingerprint(fingerprint);
+    if (fprintStatus.equals(FingerprintService.FingerprintMatchStatus.STOLEN)) {
+      log.warn("Video {} matches the fingerprint of another instructor's video. Uploader: {}", task.videoId(), task.uploader());
+
+      return res
+          .errorType(VideoProcessingErrors.ContentThiefDetected)
+          .errorMessage(CONTENT_THEFT_REASON)
+          .build();
+    }
+    if (fprintStatus.equals(FingerprintService.FingerprintMatchStatus.ACCIDENTAL_REUPLOAD)) {
+      log.warn("It seems instructor has accidentally reuploaded an already uploaded video.");
+    }
+    completeStage(job.getId(), manifest, JobStageManifest.FINGERPRINT, null);
+
+    return res
+        .result(fprintStatus)
+        .build();
+  }
+
+  private ResultOrError<File, VideoProcessingErrors> extractVideoInfo(
+      VideoProcessingJob job,
+      JobStageManifest manifest,
+      boolean shouldTranscribe,
+      double sourceDurationInSeconds
+  ) {
+    var res = ResultOrError.<File, VideoProcessingErrors>builder();
+
+    VideoProcessingTask task = job.toTask();
+    File videoToProcess = task.videoToProcess();
+    UUID videoId = task.videoId();
 
+    try {
       Optional<File> vttFile = mediaStorageService.getNewFile(videoId + "_vtt", MediaStorageService.FileType.VTT);
       if (vttFile.isEmpty()) {
         return res
@@ -251,31 +548,47 @@ public class VideoProcessor {
             .build();
       }
       if (shouldTranscribe) {
+        // Decode straight to what Whisper works with (16 kHz mono PCM) and pipe it in, so no WAV ever lands on disk
+        ProcessBuilder decodeCommand = new ProcessBuilder(
+            "ffmpeg",
+            "-i", videoToProcess.getAbsolutePath(),
+            "-map", "0:a:0",
+            "-vn",
+            "-ac", "1",
+            "-ar", "16000",
+            "-c:a", "pcm_s16le",
+            "-f", "wav",
+            "pipe:1"
+        )
+            .redirectError(ProcessBuilder.Redirect.INHERIT);
         ProcessBuilder pb2 = new ProcessBuilder(
             whisperCppCliPath,
             "-m",
             whisperCppModelPath,
-            "-f", Paths.get(mediaStorageService.videoDirectoryString, tempAudioFile).toString()
-        );
+            "-t", String.valueOf(videoProcessingConfig.getTranscriptionThreads()),
+            "-f", "-"
+        )
+            .redirectError(ProcessBuilder.Redirect.INHERIT);
 
-        Process process2 = pb2.start();
-
-        // Read and store stdout
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process2.getInputStream()));
+        // Store stdout and follow the timestamps of the transcribed lines to see how far Whisper has got
         StringBuilder output = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
+        int exitCode = ExternalProcessRunner.runPipeline(List.of(decodeCommand, pb2), line -> {
           output.append(line).append("\n");
-        }
-        reader.close();
 
-        exitCode = process2.waitFor();
+          Matcher timestampMatcher = WHISPER_TIMESTAMP.matcher(line);
+          if (timestampMatcher.find()) {
+            double transcribedSeconds = Integer.parseInt(timestampMatcher.group(1)) * 3600
+                + Integer.parseInt(timestampMatcher.group(2)) * 60
+                + Double.parseDouble(timestampMatcher.group(3));
+            videoProgressTracker.reportTranscriptionProgress(videoId, transcribedSeconds);
+          }
+        }, videoProcessingConfig.getTranscriptionTimeout(sourceDurationInSeconds));
         if (exitCode != 0) {
-          log.error("Failed to process video. Whisper-CLI exited with exit code: {}", exitCode);
+          log.error("Failed to transcribe the video. FFMPEG/Whisper-CLI exited with exit code: {}", exitCode);
 
           return res
               .errorType(VideoProcessingErrors.FailedToProcess)
-              .errorMessage("Failed to extract 16-bit WAV from the video.")
+              .errorMessage("Failed to transcribe the video.")
               .build();
         }
 
@@ -312,32 +625,83 @@ public class VideoProcessor {
         }
       }
 
-      // Remove the temporarily created audio file used for transcription
-      if (!tempAudioFileHandle.delete()) {
-        log.error("Failed to delete temporary WAV file: {}", tempAudioFileHandle.getAbsolutePath());
-      }
-
+      completeStage(
+          job.getId(),
+          manifest,
+          JobStageManifest.TRANSCRIPT,
+          JobStageManifest.fileChecksum(vttFile.get().toPath())
+      );
       return res
           .result(vttFile.get())
           .build();
     } catch (Exception e) {
-      log.error("Failed to extract VTT file and fingerprint from the video. Reason: ", e);
+      log.error("Failed to extract VTT file from the video. Reason: ", e);
 
       return res
           .errorType(VideoProcessingErrors.FailedToProcess)
-          .errorMessage("Failed to extract VTT file and fingerprint from the video.")
+          .errorMessage("Failed to extract VTT file from the video.")
           .build();
     }
   }
 
   private ResultOrError<String, VideoProcessingErrors> generateM3u8Files(
+      Path videoIdDir,
+      File vttFile,
+      List<VideoRendition> renditions,
+      boolean hasAudio
+  ) {
+    var res = ResultOrError.<String, VideoProcessingErrors>builder();
+    // Silent videos don't get a transcript, so there are no subtitles to hook up
+    if (vttFile != null) {
+      ResultOrError<String, VideoProcessingErrors> subtitleResult = generateSubtitleM3u8File(videoIdDir, vttFile);
+      if (subtitleResult.errorType() != null) {
+        return subtitleResult;
+      }
+    }
+
+    // generate the master m3u8 file according to the qualities that were actually encoded
+    List<VideoRendition> encodedRenditions = renditions
+        .stream()
+        .filter(rendition -> Files.exists(videoIdDir.resolve(rendition.directoryName()).resolve("prog.m3u8")))
+        .toList();
+    if (encodedRenditions.isEmpty()) {
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("None of the video qualities were encoded.")
+          .build();
+    }
+    String content = M3u8FileGenerator.getMasterM3u8FileContent(
+        encodedRenditions,
+        rendition -> videoEncoderRegistry.forCodec(rendition.codec()).getCodecsString(rendition),
+        hasAudio,
+        vttFile != null,
+        videoProcessingConfig.getHlsPlaylistVersion()
+    );
+
+    Path pathToMasterM3u8File = videoIdDir.resolve("master.m3u8");
+    boolean isWriteSuccessful = writeToFile(pathToMasterM3u8File.toFile(), content);
+    if (!isWriteSuccessful) {
+      log.error("Failed to write `master.m3u8` file into the VideoIdDirectory.");
+
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to write `master.m3u8` file into the VideoIdDirectory.")
+          .build();
+    }
+
+    return res
+        .result("")
+        .build();
+  }
+
+  private ResultOrError<String, VideoProcessingErrors> generateSubtitleM3u8File(
       Path videoIdDir,
       File vttFile
   ) {
     var res = ResultOrError.<String, VideoProcessingErrors>builder();
     // get the VTT file in here
     try {
-      Files.copy(vttFile.toPath(), videoIdDir.resolve("subtitle.vtt"));
+      Files.copy(vttFile.toPath(), videoIdDir.resolve("subtitle.vtt"), StandardCopyOption.REPLACE_EXISTING);
     } catch (Exception e) {
       log.error("Failed to copy VTT file into the VideoIdDirectory. Reason: ", e);
 
@@ -368,59 +732,34 @@ public class VideoProcessor {
           .build();
     }
 
-    // generate the master VTT file according to the qualities we have
-
-    ArrayList<String> videoQualities = new ArrayList<>();
-    for (int[] dimensions : this.videoProcessingConfig.getVideoDimensions()) {
-      videoQualities.add(String.valueOf(dimensions[1]));
-    }
-    content = M3u8FileGenerator.getMasterM3u8FileContent(videoQualities);
-
-    Path pathToMasterM3u8File = videoIdDir.resolve("master.m3u8");
-    isWriteSuccessful = writeToFile(pathToMasterM3u8File.toFile(), content);
-    if (!isWriteSuccessful) {
-      log.error("Failed to write `master.m3u8` file into the VideoIdDirectory.");
-
-      return res
-          .errorType(VideoProcessingErrors.FailedToProcess)
-          .errorMessage("Failed to write `sub.m3u8` file into the VideoIdDirectory.")
-          .build();
-    }
-
     return res
         .result("")
         .build();
   }
 
   private ResultOrError<AudioFingerprint, VideoProcessingErrors> extractFingerprint(
-      File targetAudioFile
+      File targetMediaFile,
+      Duration timeout
   ) {
     var res = ResultOrError.<AudioFingerprint, VideoProcessingErrors>builder();
 
     try {
       ProcessBuilder fpcalcCommand = new ProcessBuilder(
           "fpcalc",
-          targetAudioFile.getAbsolutePath()
-      );
-
-      Process commandProcess = fpcalcCommand.start();
+          "-length", String.valueOf(videoProcessingConfig.getFingerprintLengthInSeconds()),
+          targetMediaFile.getAbsolutePath()
+      )
+          // Only stdout is drained, a full stderr pipe would block fpcalc
+          .redirectError(ProcessBuilder.Redirect.INHERIT);
 
       // Read and store stdout
-      BufferedReader reader = new BufferedReader(new InputStreamReader(commandProcess.getInputStream()));
       StringBuilder output = new StringBuilder();
-      String line;
-      while ((line = reader.readLine()) != null) {
-        output.append(line).append("\n");
-      }
-      reader.close();
-
-
-      int exitCode = commandProcess.waitFor();
+      int exitCode = ExternalProcessRunner.run(fpcalcCommand, line -> output.append(line).append("\n"), timeout);
       if (exitCode != 0) {
         log.error(
-            "Failed to extract audio fingerprint from the audio. Exit code: {}. Audio file path: {}",
+            "Failed to extract audio fingerprint from the audio. Exit code: {}. File path: {}",
             exitCode,
-            targetAudioFile.getAbsolutePath()
+            targetMediaFile.getAbsolutePath()
         );
 
         return res
@@ -447,85 +786,1404 @@ public class VideoProcessor {
     }
   }
 
-  public void start() {
-    new Thread(() -> {
-      log.info("Video processing thread has started.");
+  /// Encodes every rendition into `videoIdDirectory`, either in chunks, in a single pass or one by one, with `threads`
+  /// FFMPEG threads between them. `storyboard` is `null` if the storyboard isn't needed.
+  private ResultOrError<File, VideoProcessingErrors> encodeRenditions(
+      VideoProcessingTask task,
+      VideoSourceInfo sourceInfo,
+      List<VideoRendition> renditions,
+      Path videoIdDirectory,
+      int presetTier,
+      int threads,
+      StoryboardLayout storyboard
+  ) {
+    ResultOrError<File, VideoProcessingErrors> processedResult = null;
 
-      while (!Thread.currentThread().isInterrupted()) {
-        try {
-          VideoProcessingTask task = videoFileQueue.take();
-
-          ResultOrError<File, VideoProcessingErrors> processedResult = null;
-          var videoDimensions = videoProcessingConfig.getVideoDimensions();
-          for (int[] dimension : videoDimensions) {
-            processedResult = processVideo(
-                task.videoToProcess(),
-                task.videoId(),
-                dimension[0],
-                dimension[1],
-                videoProcessingConfig.useGpu()
-            );
-            if (processedResult.errorType() != null) {
-              break;
-            }
-          }
-          if (processedResult.errorType() != null) {
-            log.error("Failed to process the video. Reason: {} -> {}", processedResult.errorType(), processedResult.errorMessage());
-            continue;
-          }
+    if (
+        videoProcessingConfig.isChunkedEncoding()
+            && sourceInfo.durationInSeconds() >= videoProcessingConfig.getChunkedEncodingMinDurationInSeconds()
+    ) {
+      return encodeInChunks(
+          task.videoToProcess(),
+          task.videoId(),
+          videoIdDirectory,
+          renditions,
+          presetTier,
+          sourceInfo.hasAudio(),
+          sourceInfo.durationInSeconds(),
+          threads,
+          storyboard
+      );
+    }
 
-          ResultOrError<File, VideoProcessingErrors> transcriptionResult = extractVideoInfo(task, videoProcessingConfig.useGpu());
-          if (transcriptionResult.errorType() != null) {
-            log.error("Failed to process the video. Reason: {} -> {}", transcriptionResult.errorType(), transcriptionResult.errorMessage());
-            continue;
-          }
+    double posterTimeInSeconds = getPosterTimeInSeconds(sourceInfo.durationInSeconds());
+    if (videoProcessingConfig.isSinglePassEncoding()) {
+      processedResult = processVideoRenditions(
+          task.videoToProcess(),
+          List.of(),
+          task.videoId(),
+          videoIdDirectory,
+          renditions,
+          presetTier,
+          sourceInfo.hasAudio(),
+          threads,
+          0,
+          storyboard,
+          posterTimeInSeconds,
+          videoProcessingConfig.getEncodeTimeout(sourceInfo.durationInSeconds())
+      );
+    } else {
+      for (int i = 0; i < renditions.size(); i++) {
+        // The storyboard tags along with the first rendition, there's no need to decode the source for it again
+        processedResult = processVideo(
+            task.videoToProcess(),
+            task.videoId(),
+            videoIdDirectory,
+            renditions.get(i),
+            presetTier,
+            sourceInfo.hasAudio(),
+            threads,
+            i == 0 ? storyboard : null,
+            posterTimeInSeconds,
+            videoProcessingConfig.getEncodeTimeout(sourceInfo.durationInSeconds())
+        );
+        if (processedResult.errorType() != null) {
+          break;
+        }
+      }
+    }
 
-          Path videoIdDirectory = Paths.get(
-              mediaStorageService.videoDirectoryString,
-              task.videoId().toString()
-          );
-          ResultOrError<String, VideoProcessingErrors> result = generateM3u8Files(
-              videoIdDirectory,
-              transcriptionResult.result()
-          );
-          if (result.errorType() != null) {
-            log.error("Failed to generate m3u8 files. Reason: {} -> {}", result.errorType(), result.errorMessage());
-            continue;
-          }
+    if (processedResult.errorType() != null || storyboard == null) {
+      return processedResult;
+    }
+    Path storyboardDirectory = videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME);
+    return assembleStoryboard(
+        storyboard,
+        List.of(new StoryboardGenerator.Part(storyboardDirectory, 0, sourceInfo.durationInSeconds())),
+        storyboardDirectory,
+        processedResult
+    );
+  }
+
+  private ResultOrError<File, VideoProcessingErrors> assembleStoryboard(
+      StoryboardLayout storyboard,
+      List<StoryboardGenerator.Part> parts,
+      Path storyboardDirectory,
+      ResultOrError<File, VideoProcessingErrors> encodeResult
+  ) {
+    try {
+      StoryboardGenerator.assemble(storyboard, parts, storyboardDirectory);
+    } catch (IOException e) {
+      log.error("Failed to assemble the storyboard. Reason: ", e);
+      return ResultOrError.<File, VideoProcessingErrors>builder()
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to assemble the storyboard.")
+          .build();
+    }
+
+    return encodeResult;
+  }
+
+  /// Splits the source at keyframes into chunks of roughly `chunk-duration-in-seconds`, encodes the chunks in parallel
+  /// and stitches the resulting segments back into one continuous playlist per rendition.
+  private ResultOrError<File, VideoProcessingErrors> encodeInChunks(
+      File videoToProcess,
+      UUID videoId,
+      Path videoIdDirectory,
+      List<VideoRendition> renditions,
+      int presetTier,
+      boolean hasAudio,
+      double sourceDurationInSeconds,
+      int threads,
+      StoryboardLayout storyboard
+  ) {
+    var res = ResultOrError.<File, VideoProcessingErrors>builder();
+    Path chunksDirectory = videoIdDirectory.resolve("chunks");
+    double posterTimeInSeconds = getPosterTimeInSeconds(sourceDurationInSeconds);
+
+    try {
+      // Chunks left behind by an interrupted attempt would end up in the list of this one
+      FileUtils.deleteQuietly(chunksDirectory.toFile());
+      Files.createDirectories(chunksDirectory);
+
+      // Stream copy only cuts at keyframes, so every chunk can be decoded on its own
+      List<String> command = new ArrayList<>(List.of(
+          "ffmpeg",
+          "-nostdin",
+          "-y",
+          "-i", videoToProcess.getAbsolutePath(),
+          "-map", "0:v:0"
+      ));
+      if (hasAudio) {
+        command.addAll(List.of("-map", "0:a:0"));
+      }
+      command.addAll(List.of(
+          "-c", "copy",
+          "-f", "segment",
+          "-segment_time", String.valueOf(videoProcessingConfig.getChunkDurationInSeconds()),
+          "-reset_timestamps", "1",
+          "-segment_list", "chunks.csv",
+          "-segment_list_type", "csv",
+          "chunk_%03d.mkv"
+      ));
+      ProcessBuilder splitCommand = new ProcessBuilder(command)
+          .directory(chunksDirectory.toFile())
+          .redirectErrorStream(true)
+          .redirectOutput(ProcessBuilder.Redirect.INHERIT);
+      int exitCode = ExternalProcessRunner.run(
+          splitCommand,
+          videoProcessingConfig.getAuxiliaryTimeout(sourceDurationInSeconds)
+      );
+      if (exitCode != 0) {
+        log.error("Failed to split the video into chunks. FFMPEG exited with exit code: {}", exitCode);
+
+        return res
+            .errorType(VideoProcessingErrors.FailedToProcess)
+            .errorMessage("Failed to split the video into chunks.")
+            .build();
+      }
+
+      // Each line looks like: chunk_000.mkv,0.000000,300.033333
+      List<String> chunkList = Files.readAllLines(chunksDirectory.resolve("chunks.csv"));
+      int parallelism = Math.max(1, Math.min(videoProcessingConfig.getChunkParallelism(), chunkList.size()));
+      int threadsPerChunk = Math.max(1, threads / parallelism);
+      Semaphore chunkSlots = new Semaphore(parallelism);
+
+      List<CompletableFuture<ResultOrError<File, VideoProcessingErrors>>> chunkEncodes = new ArrayList<>();
+      List<StoryboardGenerator.Part> storyboardParts = new ArrayList<>();
+      Path posterChunkDirectory = null;
+      for (int i = 0; i < chunkList.size(); i++) {
+        String[] chunkInfo = chunkList.get(i).split(",");
+        File chunkFile = chunksDirectory.resolve(chunkInfo[0]).toFile();
+        Path chunkOutputDirectory = chunksDirectory.resolve("c" + i);
+        double chunkStart = Double.parseDouble(chunkInfo[1]);
+        double chunkEnd = Double.parseDouble(chunkInfo[2]);
+        storyboardParts.add(new StoryboardGenerator.Part(
+            chunkOutputDirectory.resolve(StoryboardLayout.DIRECTORY_NAME),
+            chunkStart,
+            chunkEnd - chunkStart
+        ));
+
+        // Only the chunk the poster time falls into picks the poster
+        boolean hasPoster = chunkStart <= posterTimeInSeconds && posterTimeInSeconds < chunkEnd;
+        if (hasPoster) {
+          posterChunkDirectory = chunkOutputDirectory;
+        }
 
-          if (!task.videoToProcess().delete()) {
-            log.warn("Failed to delete the temporarily uploaded video file.");
+        chunkEncodes.add(runStage(videoId, () -> {
+          try {
+            chunkSlots.acquire();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResultOrError.<File, VideoProcessingErrors>builder()
+                .errorType(VideoProcessingErrors.FailedToProcess)
+                .errorMessage("Interrupted while waiting to encode a chunk.")
+                .build();
           }
 
-          Optional<VideoMetadata> targetMetadata = videoMetadataRepo.findVideoMetadataByVideoFileId(task.videoId());
-          if (targetMetadata.isEmpty()) {
-            log.warn("Failed to find video metadata for video file id: {}", task.videoId());
-            continue;
+          try {
+            Files.createDirectories(chunkOutputDirectory);
+            return processVideoRenditions(
+                chunkFile,
+                List.of(),
+                videoId,
+                chunkOutputDirectory,
+                renditions,
+                presetTier,
+                hasAudio,
+                threadsPerChunk,
+                chunkStart,
+                storyboard,
+                hasPoster ? posterTimeInSeconds - chunkStart : null,
+                videoProcessingConfig.getEncodeTimeout(chunkEnd - chunkStart)
+            );
+          } catch (IOException e) {
+            log.error("Error creating directory for chunk encoding.", e);
+            return ResultOrError.<File, VideoProcessingErrors>builder()
+                .errorType(VideoProcessingErrors.FailedToCreateOutputFile)
+                .errorMessage("Failed to create the output file.")
+                .build();
+          } finally {
+            chunkSlots.release();
           }
-          targetMetadata.get().setProcessing(false);
-          targetMetadata.get().setSubtitleFileName(transcriptionResult.result().getName());
-          videoMetadataRepo.save(targetMetadata.get());
+        }));
+      }
 
-          Optional<Users> targetUser = userRepo.findUsersById(task.uploader());
-          if (targetUser.isEmpty()) {
-            log.error("Failed to update the uploaded user's profile storage details. User not found.");
+      // Wait for every chunk, so the chunk directory isn't removed from under a still running encode
+      CompletableFuture.allOf(chunkEncodes.toArray(CompletableFuture[]::new)).get();
+      for (CompletableFuture<ResultOrError<File, VideoProcessingErrors>> chunkEncode : chunkEncodes) {
+        ResultOrError<File, VideoProcessingErrors> chunkResult = chunkEncode.get();
+        if (chunkResult.errorType() != null) {
+          return chunkResult;
+        }
+      }
 
-            continue;
-          }
+      for (VideoRendition rendition : renditions) {
+        String renditionDirectory = rendition.directoryName();
+        List<Path> chunkPlaylists = new ArrayList<>();
+        for (int i = 0; i < chunkList.size(); i++) {
+          chunkPlaylists.add(chunksDirectory.resolve("c" + i).resolve(renditionDirectory).resolve("prog.m3u8"));
+        }
+
+        HlsPlaylistStitcher.stitch(chunkPlaylists, videoIdDirectory.resolve(renditionDirectory).resolve("prog.m3u8"));
+      }
 
-          long bytesUsed = FileUtils.sizeOf(videoIdDirectory.toFile());
-          targetUser.get().setUsedStorageInBytes(
-              targetUser.get().getUsedStorageInBytes() + bytesUsed
+      if (storyboard != null) {
+        Path storyboardDirectory = videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME);
+        StoryboardGenerator.assemble(storyboard, storyboardParts, storyboardDirectory);
+
+        Path poster = posterChunkDirectory == null
+            ? null
+            : posterChunkDirectory.resolve(StoryboardLayout.DIRECTORY_NAME).resolve(StoryboardLayout.POSTER_FILE_NAME);
+        if (poster != null && Files.exists(poster)) {
+          Files.move(
+              poster,
+              storyboardDirectory.resolve(StoryboardLayout.POSTER_FILE_NAME),
+              StandardCopyOption.REPLACE_EXISTING
           );
-          userRepo.save(targetUser.get());
+        }
+      }
+    } catch (Exception e) {
+      log.error("Failed to encode the video in chunks. Reason: ", e);
+
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to process video.")
+          .build();
+    } finally {
+      FileUtils.deleteQuietly(chunksDirectory.toFile());
+    }
 
-          log.info("Video processed successfully. VideoId: {}", task.videoId());
-        } catch (IllegalArgumentException | OptimisticLockingFailureException e) {
-          log.error("Failed to update video processing status. Reason: ", e);
-        } catch (Exception e) {
-          log.error("Failed to process video. Reason: ", e);
+    log.info("Chunked video processing completed successfully. Video path: {}", videoIdDirectory);
+    return res
+        .result(videoIdDirectory.toFile())
+        .build();
+  }
+
+  private <T> CompletableFuture<ResultOrError<T, VideoProcessingErrors>> runStage(
+      UUID videoId,
+      Supplier<ResultOrError<T, VideoProcessingErrors>> stage
+  ) {
+    return CompletableFuture.supplyAsync(() -> {
+      Set<Thread> threads = stageThreads.computeIfAbsent(videoId, id -> ConcurrentHashMap.newKeySet());
+      threads.add(Thread.currentThread());
+      try {
+        // The job may have been cancelled before this stage got to start
+        if (cancelledVideoIds.contains(videoId)) {
+          return ResultOrError.<T, VideoProcessingErrors>builder()
+              .errorType(VideoProcessingErrors.FailedToProcess)
+              .errorMessage(CANCELLED_REASON)
+              .build();
         }
+        return stage.get();
+      } finally {
+        threads.remove(Thread.currentThread());
       }
-    }).start();
+    }, stageExecutor);
+  }
+
+  /// Runs every stage of the task. Stages that an earlier attempt has completed, and whose output is still intact, are
+  /// skipped.
+  ///
+  /// Returns the failure reason if any of the stages has failed.
+  private Optional<String> processTask(VideoProcessingJob job) throws ExecutionException, InterruptedException {
+    VideoProcessingTask task = job.toTask();
+    JobStageManifest manifest = JobStageManifest.fromJson(job.getStageManifest());
+    // An earlier attempt got as far as updating the DB, only marking the job as done was left
+    if (manifest.isComplete(JobStageManifest.FINALIZE)) {
+      log.info("Video has already been processed by an earlier attempt. VideoId: {}", task.videoId());
+      return Optional.empty();
+    }
+
+    // The upload is still coming in. The renditions get encoded while it does, or once it's complete if that can't be
+    // done. Either way the stages below get the complete source.
+    if (StreamingIngest.isUploading(task.videoToProcess())) {
+      Optional<String> uploadFailure = encodeWhileUploading(job, manifest);
+      if (uploadFailure.isPresent()) {
+        return uploadFailure;
+      }
+    }
+
+    // A video the uploader already has gets linked to its renditions instead of being encoded again. The checksum of a
+    // streamed upload is only recorded once it's complete, so it's looked up again.
+    String sourceSha256 = videoProcessingQueueService
+        .findJobByVideoId(task.videoId())
+        .map(VideoProcessingJob::getSourceSha256)
+        .orElse(job.getSourceSha256());
+    Optional<VideoMetadata> duplicateVideo = videoDeduplicationService.findProcessedDuplicate(
+        task.uploader(),
+        sourceSha256,
+        task.videoId()
+    );
+    if (duplicateVideo.isPresent() && linkToDuplicate(job, manifest, duplicateVideo.get())) {
+      return Optional.empty();
+    }
+
+    // The stages of a job form the following graph. The video and the audio branch don't depend on each other, so they
+    // run side by side and are joined before the playlists get generated. Silent videos skip the audio branch.
+    //
+    // The fingerprint only takes the start of the audio, so it's checked up front. Stolen videos don't get any further.
+    //
+    //                                     ┌─> encode renditions ───┐
+    // source ──> probe ──> fingerprint ───┤                        ├──> playlists ──> finalize
+    //                                     └─> audio -> transcript ─┘
+    ResultOrError<VideoSourceInfo, VideoProcessingErrors> probeResult = VideoSourceProber.probe(
+        task.videoToProcess(),
+        videoProcessingConfig.getProbeTimeout()
+    );
+    if (probeResult.errorType() != null) {
+      log.error("Failed to probe the video. Reason: {} -> {}", probeResult.errorType(), probeResult.errorMessage());
+      return Optional.of(probeResult.errorMessage());
+    }
+    VideoSourceInfo sourceInfo = probeResult.result();
+    videoProcessingQueueService.recordSourceInfo(job.getId(), sourceInfo);
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+
+    // The fingerprint of an earlier attempt is already saved, examining it again would flag the video as a re-upload
+    if (sourceInfo.hasAudio() && !manifest.isComplete(JobStageManifest.FINGERPRINT)) {
+      ResultOrError<FingerprintService.FingerprintMatchStatus, VideoProcessingErrors> fingerprintResult = runStage(
+          task.videoId(),
+          () -> examineFingerprint(job, manifest, task.videoToProcess(), sourceInfo.durationInSeconds())
+      ).get();
+      if (cancelledVideoIds.contains(task.videoId())) {
+        return Optional.of(CANCELLED_REASON);
+      }
+      if (fingerprintResult.errorType() != null) {
+        return Optional.of(fingerprintResult.errorMessage());
+      }
+    }
+
+    Path videoIdDirectory = Paths.get(
+        mediaStorageService.videoDirectoryString,
+        task.videoId().toString()
+    );
+    List<VideoRendition> renditions = getRenditionLadder(job, sourceInfo, videoIdDirectory);
+    videoProcessingQueueService.recordRenditionLadder(job.getId(), renditions);
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+    List<VideoRendition> renditionsToEncode = new ArrayList<>();
+    for (VideoRendition rendition : renditions) {
+      Path renditionDirectory = videoIdDirectory.resolve(rendition.directoryName());
+      if (!manifest.isVerified(JobStageManifest.encodeStage(rendition.directoryName()), renditionDirectory)) {
+        // Whatever an interrupted encode has left behind can't be trusted
+        FileUtils.deleteQuietly(renditionDirectory.toFile());
+        renditionsToEncode.add(rendition);
+      }
+    }
+    StoryboardLayout storyboard = videoProcessingConfig.getStoryboardLayout(sourceInfo).orElse(null);
+    Path storyboardDirectory = videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME);
+    if (storyboard != null) {
+      // The storyboard comes out of the decode pass of the renditions, so a missing one is redone along with the
+      // smallest rendition
+      boolean isStoryboardVerified = manifest.isVerified(JobStageManifest.STORYBOARD, storyboardDirectory);
+      if (!isStoryboardVerified && renditionsToEncode.isEmpty()) {
+        VideoRendition smallestRendition = renditions
+            .stream()
+            .min(Comparator.comparingInt(VideoRendition::height))
+            .orElseThrow();
+        FileUtils.deleteQuietly(videoIdDirectory.resolve(smallestRendition.directoryName()).toFile());
+        renditionsToEncode.add(smallestRendition);
+      }
+      if (!renditionsToEncode.isEmpty()) {
+        FileUtils.deleteQuietly(storyboardDirectory.toFile());
+      }
+    }
+    Optional<File> existingVttFile = mediaStorageService
+        .getNewFile(task.videoId() + "_vtt", MediaStorageService.FileType.VTT)
+        .filter(vttFile -> manifest.isVerified(JobStageManifest.TRANSCRIPT, vttFile.toPath()));
+    log.info(
+        "Probed video {}: {}x{} @ {} fps, {} seconds, audio: {}. Encoding {} of {} rendition(s).",
+        task.videoId(),
+        sourceInfo.width(),
+        sourceInfo.height(),
+        String.format("%.2f", sourceInfo.frameRate()),
+        sourceInfo.durationInSeconds(),
+        sourceInfo.hasAudio(),
+        renditionsToEncode.size(),
+        renditions.size()
+    );
+
+    // The legacy path runs a separate FFMPEG process over the whole source for every rendition
+    int encodePasses = videoProcessingConfig.isSinglePassEncoding() || videoProcessingConfig.isChunkedEncoding()
+        ? 1
+        : renditionsToEncode.size();
+    boolean isTranscribing = sourceInfo.hasAudio() && videoProcessingConfig.useGpu() && existingVttFile.isEmpty();
+    videoProgressTracker.setWorkload(
+        task.videoId(),
+        sourceInfo.durationInSeconds(),
+        encodePasses,
+        isTranscribing
+    );
+    videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.Encoding);
+
+    // A fast preset gets the video out sooner while the backlog is long. It can be re-encoded efficiently later on.
+    // Renditions left over from an earlier attempt keep the ladder on the preset they were encoded with.
+    // The job records the preset of the H.264 encoder, the other encoders use the same tier of their own presets.
+    VideoEncoder h264Encoder = videoEncoderRegistry.forCodec(VideoCodec.H264);
+    int presetTier = renditionsToEncode.size() < renditions.size() && job.getEncoderPreset() != null
+        ? h264Encoder.presetTier(job.getEncoderPreset())
+        : videoProcessingConfig.pickEncoderPresetTier(h264Encoder.presets().size());
+    boolean needsReencode = videoProcessingConfig.isBackgroundReencode() && presetTier > 0;
+    videoProcessingQueueService.recordEncoderPreset(job.getId(), h264Encoder.preset(presetTier), needsReencode);
+
+    CompletableFuture<ResultOrError<File, VideoProcessingErrors>> encodeStage;
+    if (renditionsToEncode.isEmpty()) {
+      videoProgressTracker.reportEncodingProgress(task.videoId(), "checkpoint", sourceInfo.durationInSeconds(), 0, 0);
+      encodeStage = CompletableFuture.completedFuture(
+          ResultOrError.<File, VideoProcessingErrors>builder().result(videoIdDirectory.toFile()).build()
+      );
+    } else {
+      encodeStage = runStage(task.videoId(), () -> {
+        long encodeStartedAt = System.nanoTime();
+        ResultOrError<File, VideoProcessingErrors> encodeResult = encodeRenditions(
+            task,
+            sourceInfo,
+            renditionsToEncode,
+            videoIdDirectory,
+            presetTier,
+            // Whisper takes its share of the budget while it runs next to the encode
+            isTranscribing ? videoProcessingConfig.getEncodeThreads() : videoProcessingConfig.getThreadsPerJob(),
+            storyboard
+        );
+        if (encodeResult.errorType() != null) {
+          return encodeResult;
+        }
+
+        double encodeTimeInSeconds = (System.nanoTime() - encodeStartedAt) / 1_000_000_000.0;
+        if (encodeTimeInSeconds > 0) {
+          videoProcessingConfig.recordEncodeSpeed(sourceInfo.durationInSeconds() / encodeTimeInSeconds);
+        }
+        return checkpointEncodes(
+            job.getId(),
+            manifest,
+            videoIdDirectory,
+            renditionsToEncode,
+            storyboard != null,
+            encodeResult
+        );
+      });
+    }
+
+    CompletableFuture<ResultOrError<File, VideoProcessingErrors>> audioStage;
+    if (!sourceInfo.hasAudio()) {
+      audioStage = CompletableFuture.completedFuture(ResultOrError.<File, VideoProcessingErrors>builder().build());
+    } else if (existingVttFile.isPresent()) {
+      audioStage = CompletableFuture.completedFuture(
+          ResultOrError.<File, VideoProcessingErrors>builder().result(existingVttFile.get()).build()
+      );
+    } else {
+      audioStage = runStage(
+          task.videoId(),
+          () -> extractVideoInfo(job, manifest, videoProcessingConfig.useGpu(), sourceInfo.durationInSeconds())
+      );
+    }
+
+    // Whichever branch fails first stops the other one, e.g. Whisper doesn't get to finish the transcript of a video
+    // whose encode has failed
+    CompletableFuture<ResultOrError<File, VideoProcessingErrors>> firstFailure = new CompletableFuture<>();
+    for (CompletableFuture<ResultOrError<File, VideoProcessingErrors>> stage : List.of(encodeStage, audioStage)) {
+      stage.thenAccept(result -> {
+        if (result.errorType() != null) {
+          firstFailure.complete(result);
+        }
+      });
+    }
+    CompletableFuture.anyOf(encodeStage, firstFailure).get();
+    if (!firstFailure.isDone() && !audioStage.isDone()) {
+      videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.Transcribing);
+    }
+    CompletableFuture.anyOf(audioStage, firstFailure).get();
+    if (firstFailure.isDone()) {
+      stageThreads.getOrDefault(task.videoId(), Set.of()).forEach(Thread::interrupt);
+      // Neither of them may still be writing its output once the job gets retried
+      CompletableFuture.allOf(encodeStage, audioStage).get();
+      if (cancelledVideoIds.contains(task.videoId())) {
+        return Optional.of(CANCELLED_REASON);
+      }
+
+      ResultOrError<File, VideoProcessingErrors> failedResult = firstFailure.get();
+      log.error("Failed to process the video. Reason: {} -> {}", failedResult.errorType(), failedResult.errorMessage());
+      return Optional.of(failedResult.errorMessage());
+    }
+
+    ResultOrError<File, VideoProcessingErrors> processedResult = encodeStage.get();
+    ResultOrError<File, VideoProcessingErrors> transcriptionResult = audioStage.get();
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+    if (processedResult.errorType() != null) {
+      log.error("Failed to process the video. Reason: {} -> {}", processedResult.errorType(), processedResult.errorMessage());
+      return Optional.of(processedResult.errorMessage());
+    }
+    if (transcriptionResult.errorType() != null) {
+      log.error("Failed to process the video. Reason: {} -> {}", transcriptionResult.errorType(), transcriptionResult.errorMessage());
+      return Optional.of(transcriptionResult.errorMessage());
+    }
+
+    videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.GeneratingPlaylists);
+    // The playlists only stay valid as long as nothing they point to has been redone
+    Path masterPlaylist = videoIdDirectory.resolve("master.m3u8");
+    boolean hasRedoneAnything = !renditionsToEncode.isEmpty() || (sourceInfo.hasAudio() && existingVttFile.isEmpty());
+    if (hasRedoneAnything || !manifest.isVerified(JobStageManifest.PLAYLISTS, masterPlaylist)) {
+      ResultOrError<String, VideoProcessingErrors> result = generateM3u8Files(
+          videoIdDirectory,
+          transcriptionResult.result(),
+          renditions,
+          sourceInfo.hasAudio()
+      );
+      if (result.errorType() != null) {
+        log.error("Failed to generate m3u8 files. Reason: {} -> {}", result.errorType(), result.errorMessage());
+        return Optional.of(result.errorMessage());
+      }
+      try {
+        completeStage(job.getId(), manifest, JobStageManifest.PLAYLISTS, JobStageManifest.fileChecksum(masterPlaylist));
+      } catch (IOException e) {
+        log.error("Failed to checksum the master playlist. Reason: ", e);
+        return Optional.of("Failed to checksum the master playlist.");
+      }
+    }
+
+    videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.Finalizing);
+    finalizeVideo(job, transcriptionResult.result(), videoIdDirectory);
+    completeStage(job.getId(), manifest, JobStageManifest.FINALIZE, null);
+
+    // Every stage is checkpointed by now, so a retry won't need the source anymore. The re-encode does, so it's only
+    // deleted once that's done.
+    if (!needsReencode && !task.videoToProcess().delete()) {
+      log.warn("Failed to delete the temporarily uploaded video file.");
+    }
+
+    log.info("Video processed successfully. VideoId: {}", task.videoId());
+    return Optional.empty();
+  }
+
+  /// Encodes the renditions and the storyboard from the upload as it grows, and checkpoints them, so `processTask` only
+  /// has the audio and the playlists left once the upload is complete. The renditions get the default bitrates, since
+  /// the complexity probe needs the whole video.
+  ///
+  /// The encode only starts once the fingerprint has cleared the start of the upload. Anything that goes wrong with the
+  /// encode falls back to encoding the complete source. Only a stolen video or an upload that never completes fails the
+  /// job.
+  private Optional<String> encodeWhileUploading(
+      VideoProcessingJob job,
+      JobStageManifest manifest
+  ) throws ExecutionException, InterruptedException {
+    VideoProcessingTask task = job.toTask();
+    Path partialSource = StreamingIngest.partialFileOf(task.videoToProcess());
+    Duration stallTimeout = videoProcessingConfig.getStreamingIngestStallTimeout();
+    String incompleteUploadReason = "The upload of the video didn't complete.";
+
+    // Retries have the checkpoints of the earlier attempt to go on, they just wait for the rest of the upload
+    if (!videoProcessingConfig.isStreamingIngest() || !manifest.isEmpty()) {
+      return awaitCompleteUpload(task, stallTimeout, incompleteUploadReason);
+    }
+
+    // Waits until enough of the upload is in to tell whether it can be followed, and for the header to be probed
+    AtomicReference<VideoSourceInfo> partialSourceInfo = new AtomicReference<>();
+    boolean hasUploadStarted = StreamingIngest.awaitUpload(
+        task.videoToProcess(),
+        stallTimeout,
+        partialFile -> {
+          try {
+            Optional<Boolean> isStreamable = StreamingIngest.isStreamable(partialFile);
+            if (isStreamable.isEmpty()) {
+              return false;
+            }
+            if (!isStreamable.get()) {
+              return true;
+            }
+          } catch (IOException e) {
+            log.warn("Failed to read the header of the upload. Reason: {}", e.getMessage());
+            return false;
+          }
+
+          ResultOrError<VideoSourceInfo, VideoProcessingErrors> probeResult = VideoSourceProber.probe(
+              partialFile.toFile(),
+              videoProcessingConfig.getProbeTimeout()
+          );
+          partialSourceInfo.set(probeResult.result());
+          return probeResult.errorType() == null;
+        },
+        () -> cancelledVideoIds.contains(task.videoId())
+    );
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+    if (!hasUploadStarted) {
+      return Optional.of(incompleteUploadReason);
+    }
+    if (partialSourceInfo.get() == null || !StreamingIngest.isUploading(task.videoToProcess())) {
+      log.info("Encoding the video once its upload is complete. VideoId: {}", task.videoId());
+      return awaitCompleteUpload(task, stallTimeout, incompleteUploadReason);
+    }
+
+    VideoSourceInfo sourceInfo = partialSourceInfo.get();
+    // Nothing gets encoded before the fingerprint has cleared the video, so a stolen one doesn't cost a single encode
+    if (sourceInfo.hasAudio()) {
+      Optional<String> fingerprintFailure = examinePartialFingerprint(job, manifest, stallTimeout);
+      if (fingerprintFailure.isPresent()) {
+        return fingerprintFailure;
+      }
+      if (!manifest.isComplete(JobStageManifest.FINGERPRINT)) {
+        log.info("Encoding the video once its upload is complete. VideoId: {}", task.videoId());
+        return awaitCompleteUpload(task, stallTimeout, incompleteUploadReason);
+      }
+    }
+
+    Path videoIdDirectory = Paths.get(mediaStorageService.videoDirectoryString, task.videoId().toString());
+    List<VideoRendition> renditions = withAdditionalCodecs(videoProcessingConfig.getVideoRenditions(sourceInfo));
+    StoryboardLayout storyboard = videoProcessingConfig.getStoryboardLayout(sourceInfo).orElse(null);
+    VideoEncoder h264Encoder = videoEncoderRegistry.forCodec(VideoCodec.H264);
+    int presetTier = videoProcessingConfig.pickEncoderPresetTier(h264Encoder.presets().size());
+    boolean needsReencode = videoProcessingConfig.isBackgroundReencode() && presetTier > 0;
+    // `processTask` picks both of them up from the job, so it stays on the ladder and the preset encoded here
+    videoProcessingQueueService.recordRenditionLadder(job.getId(), renditions);
+    videoProcessingQueueService.recordEncoderPreset(job.getId(), h264Encoder.preset(presetTier), needsReencode);
+    job.setRenditionLadder(VideoRendition.toLadderString(renditions));
+    job.setEncoderPreset(h264Encoder.preset(presetTier));
+
+    log.info(
+        "Encoding video {} while it's being uploaded: {}x{}, {} rendition(s).",
+        task.videoId(),
+        sourceInfo.width(),
+        sourceInfo.height(),
+        renditions.size()
+    );
+    videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.Encoding);
+    // FFMPEG keeps waiting for more data at the end of the file, and takes a silence as long as the stall timeout as
+    // the end of the video
+    List<String> followArguments = List.of(
+        "-follow", "1",
+        "-rw_timeout", String.valueOf(stallTimeout.toNanos() / 1000)
+    );
+    ResultOrError<File, VideoProcessingErrors> encodeResult = runStage(
+        task.videoId(),
+        () -> processVideoRenditions(
+            partialSource.toFile(),
+            followArguments,
+            task.videoId(),
+            videoIdDirectory,
+            renditions,
+            presetTier,
+            sourceInfo.hasAudio(),
+            videoProcessingConfig.getThreadsPerJob(),
+            0,
+            storyboard,
+            // The length of the video isn't known yet, so the poster is taken where long videos get it from
+            storyboard != null ? getPosterTimeInSeconds(Double.MAX_VALUE) : null,
+            videoProcessingConfig.getStreamingEncodeTimeout()
+        )
+    ).get();
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+
+    // The encode has to have reached the end of the complete upload, a stall in the middle of it ends it early
+    Optional<String> uploadFailure = awaitCompleteUpload(task, stallTimeout, incompleteUploadReason);
+    if (uploadFailure.isPresent()) {
+      return uploadFailure;
+    }
+    ResultOrError<VideoSourceInfo, VideoProcessingErrors> probeResult = VideoSourceProber.probe(
+        task.videoToProcess(),
+        videoProcessingConfig.getProbeTimeout()
+    );
+    boolean isEncodeComplete = false;
+    if (encodeResult.errorType() == null && probeResult.errorType() == null) {
+      try {
+        Path firstPlaylist = videoIdDirectory.resolve(renditions.getFirst().directoryName()).resolve("prog.m3u8");
+        double encodedSeconds = HlsPlaylistStitcher.getDurationInSeconds(firstPlaylist);
+        // The last segment can come out a frame short
+        isEncodeComplete = encodedSeconds >= probeResult.result().durationInSeconds() - 1;
+      } catch (IOException | NumberFormatException e) {
+        log.warn("Failed to read the playlist of the encode that followed the upload. Reason: {}", e.getMessage());
+      }
+    }
+    if (!isEncodeComplete) {
+      log.warn("The encode that followed the upload is incomplete, encoding the whole upload again. VideoId: {}", task.videoId());
+      for (VideoRendition rendition : renditions) {
+        FileUtils.deleteQuietly(videoIdDirectory.resolve(rendition.directoryName()).toFile());
+      }
+      FileUtils.deleteQuietly(videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME).toFile());
+      return Optional.empty();
+    }
+
+    if (storyboard != null) {
+      Path storyboardDirectory = videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME);
+      encodeResult = assembleStoryboard(
+          storyboard,
+          List.of(new StoryboardGenerator.Part(storyboardDirectory, 0, probeResult.result().durationInSeconds())),
+          storyboardDirectory,
+          encodeResult
+      );
+    }
+    encodeResult = checkpointEncodes(job.getId(), manifest, videoIdDirectory, renditions, storyboard != null, encodeResult);
+    if (encodeResult.errorType() != null) {
+      return Optional.of(encodeResult.errorMessage());
+    }
+
+    log.info("The renditions were encoded by the time the upload was complete. VideoId: {}", task.videoId());
+    return Optional.empty();
+  }
+
+  /// Waits for as much of the upload as goes into the fingerprint, and examines it. An upload that completes first is
+  /// left to `processTask` to examine, the manifest doesn't have the fingerprint then.
+  ///
+  /// Returns the failure reason if the video has been rejected or the upload has stalled.
+  private Optional<String> examinePartialFingerprint(
+      VideoProcessingJob job,
+      JobStageManifest manifest,
+      Duration stallTimeout
+  ) throws ExecutionException, InterruptedException {
+    VideoProcessingTask task = job.toTask();
+    double fingerprintLengthInSeconds = videoProcessingConfig.getFingerprintLengthInSeconds();
+    // The audio is measured again once the upload has grown to where the last measurement says it should be enough
+    AtomicLong nextMeasurementSize = new AtomicLong(0);
+    boolean hasEnoughAudio = StreamingIngest.awaitUpload(
+        task.videoToProcess(),
+        stallTimeout,
+        partialFile -> {
+          long size;
+          try {
+            size = Files.size(partialFile);
+          } catch (IOException e) {
+            return false;
+          }
+          if (size < nextMeasurementSize.get()) {
+            return false;
+          }
+
+          ResultOrError<Double, VideoProcessingErrors> audioLengthResult = VideoSourceProber.probeAudioLength(
+              partialFile.toFile(),
+              fingerprintLengthInSeconds,
+              videoProcessingConfig.getProbeTimeout()
+          );
+          double audioLengthInSeconds = Objects.requireNonNullElse(audioLengthResult.result(), 0.0);
+          // The last packet that has come in may still be cut short
+          if (audioLengthInSeconds >= fingerprintLengthInSeconds - 1) {
+            return true;
+          }
+          nextMeasurementSize.set(audioLengthInSeconds > 0
+              ? (long) (size * fingerprintLengthInSeconds / audioLengthInSeconds)
+              : size + size / 4
+          );
+          return false;
+        },
+        () -> cancelledVideoIds.contains(task.videoId())
+    );
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+    if (!hasEnoughAudio) {
+      return Optional.of("The upload of the video didn't complete.");
+    }
+    if (!StreamingIngest.isUploading(task.videoToProcess())) {
+      return Optional.empty();
+    }
+
+    ResultOrError<FingerprintService.FingerprintMatchStatus, VideoProcessingErrors> fingerprintResult = runStage(
+        task.videoId(),
+        () -> examineFingerprint(
+            job,
+            manifest,
+            StreamingIngest.partialFileOf(task.videoToProcess()).toFile(),
+            fingerprintLengthInSeconds
+        )
+    ).get();
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+    if (fingerprintResult.errorType() != null) {
+      return Optional.of(fingerprintResult.errorMessage());
+    }
+    return Optional.empty();
+  }
+
+  private Optional<String> awaitCompleteUpload(
+      VideoProcessingTask task,
+      Duration stallTimeout,
+      String incompleteUploadReason
+  ) throws InterruptedException {
+    boolean isComplete = StreamingIngest.awaitUpload(
+        task.videoToProcess(),
+        stallTimeout,
+        () -> cancelledVideoIds.contains(task.videoId())
+    );
+    if (cancelledVideoIds.contains(task.videoId())) {
+      return Optional.of(CANCELLED_REASON);
+    }
+    return isComplete ? Optional.empty() : Optional.of(incompleteUploadReason);
+  }
+
+  /// The ladder an earlier attempt has settled on, otherwise a new one. With per-title bitrates the default bitrates of
+  /// the ladder get fitted to how complex the video is. A failed probe isn't worth failing the job for, the video just
+  /// gets the default bitrates then.
+  private List<VideoRendition> getRenditionLadder(VideoProcessingJob job, VideoSourceInfo sourceInfo, Path videoIdDirectory) {
+    if (job.getRenditionLadder() != null) {
+      return VideoRendition.fromLadderString(job.getRenditionLadder());
+    }
+
+    return withAdditionalCodecs(getH264RenditionLadder(job, sourceInfo, videoIdDirectory));
+  }
+
+  private List<VideoRendition> getH264RenditionLadder(
+      VideoProcessingJob job,
+      VideoSourceInfo sourceInfo,
+      Path videoIdDirectory
+  ) {
+    List<VideoRendition> defaultRenditions = videoProcessingConfig.getVideoRenditions(sourceInfo);
+    if (!videoProcessingConfig.isPerTitleBitrates()) {
+      return defaultRenditions;
+    }
+
+    ResultOrError<List<Integer>, VideoProcessingErrors> probeResult = VideoComplexityProbe.measureBitrates(
+        job.toTask().videoToProcess(),
+        sourceInfo.durationInSeconds(),
+        defaultRenditions,
+        videoProcessingConfig.getComplexityProbeWindows(),
+        videoProcessingConfig.getComplexityProbeWindowInSeconds(),
+        videoProcessingConfig.getComplexityProbeCrf(),
+        videoProcessingConfig.getThreadsPerJob(),
+        videoIdDirectory.resolve("complexity"),
+        videoProcessingConfig.getAuxiliaryTimeout(sourceInfo.durationInSeconds())
+    );
+    if (probeResult.errorType() != null) {
+      log.warn("Falling back to the default bitrates. Reason: {} -> {}", probeResult.errorType(), probeResult.errorMessage());
+      return defaultRenditions;
+    }
+
+    List<VideoRendition> renditions = new ArrayList<>();
+    for (int i = 0; i < defaultRenditions.size(); i++) {
+      VideoRendition rendition = defaultRenditions.get(i).withMeasuredBitrate(
+          probeResult.result().get(i),
+          videoProcessingConfig.getMinBitrateFraction()
+      );
+      log.info(
+          "Fitted the bitrate of {}p to {}k (default: {}k, measured: {}k). VideoId: {}",
+          rendition.height(),
+          rendition.videoBitrate(),
+          defaultRenditions.get(i).videoBitrate(),
+          probeResult.result().get(i),
+          job.getVideoId()
+      );
+      renditions.add(rendition);
+    }
+    return renditions;
+  }
+
+  /// Adds the HEVC/AV1 variants of the H.264 rungs. Their bitrates follow the (fitted) H.264 bitrates, scaled by how
+  /// much less their encoder needs for the same quality.
+  private List<VideoRendition> withAdditionalCodecs(List<VideoRendition> h264Renditions) {
+    List<VideoRendition> renditions = new ArrayList<>(h264Renditions);
+    for (VideoRendition rendition : h264Renditions) {
+      for (VideoCodec codec : videoProcessingConfig.getAdditionalCodecs(rendition.height())) {
+        if (codec == VideoCodec.H264) {
+          continue;
+        }
+        renditions.add(rendition.withCodec(codec, videoEncoderRegistry.forCodec(codec).bitrateFactor()));
+      }
+    }
+    return renditions;
+  }
+
+  /// Checkpoints the renditions that have just been encoded, along with the storyboard that came out of the same pass.
+  private ResultOrError<File, VideoProcessingErrors> checkpointEncodes(
+      UUID jobId,
+      JobStageManifest manifest,
+      Path videoIdDirectory,
+      List<VideoRendition> renditions,
+      boolean hasStoryboard,
+      ResultOrError<File, VideoProcessingErrors> encodeResult
+  ) {
+    try {
+      if (hasStoryboard) {
+        completeStage(
+            jobId,
+            manifest,
+            JobStageManifest.STORYBOARD,
+            JobStageManifest.directoryChecksum(videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME))
+        );
+      }
+      for (VideoRendition rendition : renditions) {
+        Path renditionDirectory = videoIdDirectory.resolve(rendition.directoryName());
+        if (Files.exists(renditionDirectory.resolve("prog.m3u8"))) {
+          completeStage(
+              jobId,
+              manifest,
+              JobStageManifest.encodeStage(rendition.directoryName()),
+              JobStageManifest.directoryChecksum(renditionDirectory)
+          );
+        }
+      }
+    } catch (IOException e) {
+      log.error("Failed to checksum the encoded renditions. Reason: ", e);
+      return ResultOrError.<File, VideoProcessingErrors>builder()
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to checksum the encoded renditions.")
+          .build();
+    }
+
+    return encodeResult;
+  }
+
+  /// Records that the stage is done, so a retry of the job can skip it.
+  private void completeStage(UUID jobId, JobStageManifest manifest, String stage, String checksum) {
+    // The whole manifest is written every time, so the writes of the stages running side by side can't overtake each
+    // other
+    synchronized (manifest) {
+      manifest.complete(stage, checksum);
+      videoProcessingQueueService.recordStageManifest(jobId, manifest.toJson());
+    }
+  }
+
+  /// Points the video at the renditions of an identical one and marks it as ready. Anything encoded for it so far is
+  /// thrown away, and nothing is charged to the uploader's storage.
+  private boolean linkToDuplicate(VideoProcessingJob job, JobStageManifest manifest, VideoMetadata duplicateVideo) {
+    Optional<VideoMetadata> targetMetadata = videoMetadataRepo.findVideoMetadataByVideoFileId(job.getVideoId());
+    if (targetMetadata.isEmpty()) {
+      log.warn("Failed to find video metadata for video file id: {}", job.getVideoId());
+      return false;
+    }
+
+    videoProgressTracker.setStage(job.getVideoId(), VideoProcessingStage.Finalizing);
+    videoDeduplicationService.linkTo(targetMetadata.get(), duplicateVideo);
+    videoMetadataRepo.save(targetMetadata.get());
+    completeStage(job.getId(), manifest, JobStageManifest.FINALIZE, null);
+    cleanUpJobFiles(job);
+
+    log.info("Video is a re-upload, linked it to the existing renditions. VideoId: {}", job.getVideoId());
+    return true;
+  }
+
+  /// Marks the video as ready and charges its renditions to the uploader's storage, in place of what has been reserved
+  /// for them.
+  private void finalizeVideo(VideoProcessingJob job, File vttFile, Path videoIdDirectory) {
+    VideoProcessingTask task = job.toTask();
+    Optional<VideoMetadata> targetMetadata = videoMetadataRepo.findVideoMetadataByVideoFileId(task.videoId());
+    if (targetMetadata.isEmpty()) {
+      log.warn("Failed to find video metadata for video file id: {}", task.videoId());
+      storageQuotaService.releaseJob(job.getId());
+      return;
+    }
+    targetMetadata.get().setProcessing(false);
+    if (vttFile != null) {
+      targetMetadata.get().setSubtitleFileName(vttFile.getName());
+    }
+    // A thumbnail picked by the uploader wins over the poster frame
+    Path poster = videoIdDirectory.resolve(StoryboardLayout.DIRECTORY_NAME).resolve(StoryboardLayout.POSTER_FILE_NAME);
+    if (targetMetadata.get().getThumbnailImageName() == null && Files.exists(poster)) {
+      Optional<File> posterFile = mediaStorageService.getNewFile(task.videoId() + "_poster", MediaStorageService.FileType.JPG);
+      try {
+        if (posterFile.isPresent()) {
+          Files.copy(poster, posterFile.get().toPath(), StandardCopyOption.REPLACE_EXISTING);
+          targetMetadata.get().setThumbnailImageName(posterFile.get().getName());
+        }
+      } catch (IOException e) {
+        log.warn("Failed to copy the poster frame into the picture directory. Reason: ", e);
+      }
+    }
+    videoMetadataRepo.save(targetMetadata.get());
+
+    long bytesUsed = FileUtils.sizeOf(videoIdDirectory.toFile());
+    storageQuotaService.settle(job.getId(), bytesUsed);
+  }
+
+  /// Re-encodes the renditions of an already processed video with the efficient preset and swaps them in for the ones
+  /// encoded with a fast preset. The playlists stay as they are, since the ladder and the segment boundaries are the
+  /// same.
+  private Optional<String> reencodeTask(VideoProcessingJob job) throws ExecutionException, InterruptedException {
+    VideoProcessingTask task = job.toTask();
+
+    ResultOrError<VideoSourceInfo, VideoProcessingErrors> probeResult = VideoSourceProber.probe(
+        task.videoToProcess(),
+        videoProcessingConfig.getProbeTimeout()
+    );
+    if (probeResult.errorType() != null) {
+      log.error("Failed to probe the video. Reason: {} -> {}", probeResult.errorType(), probeResult.errorMessage());
+      return Optional.of(probeResult.errorMessage());
+    }
+    VideoSourceInfo sourceInfo = probeResult.result();
+    List<VideoRendition> renditions = job.getRenditionLadder() != null
+        ? VideoRendition.fromLadderString(job.getRenditionLadder())
+        : videoProcessingConfig.getVideoRenditions(sourceInfo);
+
+    int encodePasses = videoProcessingConfig.isSinglePassEncoding() || videoProcessingConfig.isChunkedEncoding()
+        ? 1
+        : renditions.size();
+    videoProgressTracker.setWorkload(task.videoId(), sourceInfo.durationInSeconds(), encodePasses, false);
+    videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.Encoding);
+
+    String preset = videoEncoderRegistry.forCodec(VideoCodec.H264).preset(0);
+    Path videoIdDirectory = Paths.get(
+        mediaStorageService.videoDirectoryString,
+        task.videoId().toString()
+    );
+    Path reencodeDirectory = videoIdDirectory.resolve("reencode");
+    // The renditions being replaced are parked here until every one of them has been swapped, so a failed swap can put
+    // them back
+    Path replacedDirectory = videoIdDirectory.resolve("replaced");
+    try {
+      restoreReplacedRenditions(videoIdDirectory, replacedDirectory);
+    } catch (IOException e) {
+      log.error("Failed to restore the renditions of an interrupted swap. Reason: ", e);
+      return Optional.of("Failed to restore the renditions of an interrupted swap.");
+    }
+    log.info("Re-encoding video {} with the `{}` preset. Previous preset: {}", task.videoId(), preset, job.getEncoderPreset());
+
+    long bytesUsedBefore;
+    long bytesUsedAfter;
+    try {
+      ResultOrError<File, VideoProcessingErrors> encodeResult = runStage(
+          task.videoId(),
+          () -> encodeRenditions(
+              task,
+              sourceInfo,
+              renditions,
+              reencodeDirectory,
+              0,
+              videoProcessingConfig.getThreadsPerJob(),
+              null
+          )
+      ).get();
+      if (encodeResult.errorType() != null) {
+        log.error("Failed to re-encode the video. Reason: {} -> {}", encodeResult.errorType(), encodeResult.errorMessage());
+        return Optional.of(encodeResult.errorMessage());
+      }
+
+      videoProgressTracker.setStage(task.videoId(), VideoProcessingStage.Finalizing);
+      bytesUsedBefore = FileUtils.sizeOf(videoIdDirectory.toFile()) - FileUtils.sizeOf(reencodeDirectory.toFile());
+      List<String> swappedRenditions = new ArrayList<>();
+      try {
+        Files.createDirectories(replacedDirectory);
+        for (VideoRendition rendition : renditions) {
+          Path currentRendition = videoIdDirectory.resolve(rendition.directoryName());
+          Path reencodedRendition = reencodeDirectory.resolve(rendition.directoryName());
+          // Only replace what the master playlist already points to
+          if (!Files.exists(currentRendition) || !Files.exists(reencodedRendition.resolve("prog.m3u8"))) {
+            continue;
+          }
+
+          Path replacedRendition = replacedDirectory.resolve(rendition.directoryName());
+          Files.move(currentRendition, replacedRendition, StandardCopyOption.ATOMIC_MOVE);
+          try {
+            Files.move(reencodedRendition, currentRendition, StandardCopyOption.ATOMIC_MOVE);
+          } catch (IOException e) {
+            Files.move(replacedRendition, currentRendition, StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+          }
+          swappedRenditions.add(rendition.directoryName());
+        }
+      } catch (IOException e) {
+        log.error("Failed to swap in the re-encoded renditions, putting back the replaced ones. Reason: ", e);
+        for (String renditionDirectoryName : swappedRenditions.reversed()) {
+          Path currentRendition = videoIdDirectory.resolve(renditionDirectoryName);
+          Files.move(currentRendition, reencodeDirectory.resolve(renditionDirectoryName), StandardCopyOption.ATOMIC_MOVE);
+          Files.move(replacedDirectory.resolve(renditionDirectoryName), currentRendition, StandardCopyOption.ATOMIC_MOVE);
+        }
+        FileUtils.deleteQuietly(replacedDirectory.toFile());
+        return Optional.of("Failed to swap in the re-encoded renditions.");
+      }
+      // Nothing points to the replaced renditions anymore
+      FileUtils.deleteQuietly(replacedDirectory.toFile());
+      FileUtils.deleteQuietly(reencodeDirectory.toFile());
+      bytesUsedAfter = FileUtils.sizeOf(videoIdDirectory.toFile());
+    } catch (IOException e) {
+      // The replaced renditions that couldn't be put back stay where they are, the next attempt restores them
+      log.error("Failed to put back the replaced renditions. Reason: ", e);
+      return Optional.of("Failed to swap in the re-encoded renditions.");
+    } finally {
+      FileUtils.deleteQuietly(reencodeDirectory.toFile());
+    }
+
+    if (!task.videoToProcess().delete()) {
+      log.warn("Failed to delete the temporarily uploaded video file.");
+    }
+
+    storageQuotaService.adjustUsedStorage(task.uploader(), bytesUsedAfter - bytesUsedBefore);
+
+    log.info(
+        "Video re-encoded successfully. VideoId: {}, Bytes saved: {}",
+        task.videoId(),
+        bytesUsedBefore - bytesUsedAfter
+    );
+    return Optional.empty();
+  }
+
+  /// Puts back the renditions that a swap has moved out of the way, if it was interrupted before it could finish.
+  private void restoreReplacedRenditions(Path videoIdDirectory, Path replacedDirectory) throws IOException {
+    if (!Files.isDirectory(replacedDirectory)) {
+      return;
+    }
+
+    try (Stream<Path> replacedRenditions = Files.list(replacedDirectory)) {
+      for (Path replacedRendition : replacedRenditions.toList()) {
+        Path currentRendition = videoIdDirectory.resolve(replacedRendition.getFileName());
+        if (!Files.exists(currentRendition)) {
+          log.warn("Restoring a rendition that an interrupted swap has moved away. Rendition: {}", currentRendition);
+          Files.move(replacedRendition, currentRendition, StandardCopyOption.ATOMIC_MOVE);
+        }
+      }
+    }
+    FileUtils.deleteQuietly(replacedDirectory.toFile());
+  }
+
+  private void runJob(VideoProcessingJob job) {
+    videoProgressTracker.start(job.getVideoId(), Boolean.TRUE.equals(job.getIsReencode()));
+    try {
+      Optional<String> failureReason = Boolean.TRUE.equals(job.getIsReencode())
+          ? reencodeTask(job)
+          : processTask(job);
+      if (failureReason.isEmpty()) {
+        videoProcessingQueueService.markDone(job.getId());
+        return;
+      }
+
+      if (cancelledVideoIds.contains(job.getVideoId())) {
+        finishCancelledJob(job);
+        return;
+      }
+      if (failureReason.get().equals(CONTENT_THEFT_REASON)) {
+        rejectJob(job);
+        return;
+      }
+      // A job that failed because its ffmpeg/whisper process was interrupted by a shutdown isn't a real failure, so we
+      // hand it back to the queue instead of counting it as an attempt.
+      if (isShuttingDown.get()) {
+        videoProcessingQueueService.release(job.getId());
+        return;
+      }
+      failJob(job, failureReason.get());
+    } catch (IllegalArgumentException | OptimisticLockingFailureException e) {
+      log.error("Failed to update video processing status. Reason: ", e);
+      failJob(job, "Failed to update video processing status.");
+    } catch (InterruptedException e) {
+      videoProcessingQueueService.release(job.getId());
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      log.error("Failed to process video. Reason: ", e);
+      failJob(job, "Failed to process video.");
+    } finally {
+      videoProgressTracker.finish(job.getVideoId());
+      stageThreads.remove(job.getVideoId());
+      cancelledVideoIds.remove(job.getVideoId());
+    }
+  }
+
+  private void failJob(VideoProcessingJob job, String reason) {
+    Optional<VideoProcessingJobState> jobState = videoProcessingQueueService.markFailed(job.getId(), reason);
+    // Someone else has taken over the job, so the files in its directory are theirs now
+    if (jobState.isEmpty()) {
+      return;
+    }
+
+    // The retry picks up the checkpointed output of this attempt, so the files only go once there's no retry left
+    if (jobState.get() == VideoProcessingJobState.Failed) {
+      log.error("Video processing job has failed for good. VideoId: {}, Attempts: {}", job.getVideoId(), job.getAttempts());
+      cleanUpJobFiles(job);
+    } else {
+      log.info("Video processing job will be retried. VideoId: {}, Attempt: {}", job.getVideoId(), job.getAttempts());
+    }
+  }
+
+  private void rejectJob(VideoProcessingJob job) {
+    log.warn("Video processing job has been rejected. VideoId: {}, Reason: {}", job.getVideoId(), CONTENT_THEFT_REASON);
+    if (videoProcessingQueueService.markFailed(job.getId(), CONTENT_THEFT_REASON, false).isPresent()) {
+      cleanUpJobFiles(job);
+    }
+  }
+
+  private void finishCancelledJob(VideoProcessingJob job) {
+    log.info("Video processing job has been cancelled. VideoId: {}", job.getVideoId());
+    videoProcessingQueueService.markCancelled(job.getId());
+    cleanUpJobFiles(job);
+  }
+
+  /// Removes whatever the job has written so far, so a job that has failed for good or has been cancelled doesn't keep
+  /// holding on to disk space.
+  private void cleanUpJobFiles(VideoProcessingJob job) {
+    UUID videoId = job.getVideoId();
+    Path videoIdDirectory = Paths.get(mediaStorageService.videoDirectoryString, videoId.toString());
+    if (Boolean.TRUE.equals(job.getIsReencode())) {
+      // The renditions that are being watched stay, only the unfinished re-encode goes
+      FileUtils.deleteQuietly(videoIdDirectory.resolve("reencode").toFile());
+    } else {
+      // Nothing of the video is kept, so neither is the storage reserved for it
+      storageQuotaService.releaseJob(job.getId());
+      FileUtils.deleteQuietly(videoIdDirectory.toFile());
+      mediaStorageService.getNewFile(videoId + "_vtt", MediaStorageService.FileType.VTT).ifPresent(FileUtils::deleteQuietly);
+      mediaStorageService.getNewFile(videoId + "_temp", MediaStorageService.FileType.VTT).ifPresent(FileUtils::deleteQuietly);
+      mediaStorageService.getNewFile(videoId + "_poster", MediaStorageService.FileType.JPG).ifPresent(FileUtils::deleteQuietly);
+    }
+
+    File sourceVideo = new File(job.getSourceFilePath());
+    if (sourceVideo.exists() && !sourceVideo.delete()) {
+      log.warn("Failed to delete the uploaded video of the job: {}", sourceVideo.getAbsolutePath());
+    }
+    FileUtils.deleteQuietly(StreamingIngest.partialFileOf(sourceVideo).toFile());
+  }
+
+  /// Interrupts the stages of the job. Their external processes get killed and the job fails with `CANCELLED_REASON`.
+  private void stopCancelledJob(UUID videoId) {
+    if (!cancelledVideoIds.add(videoId)) {
+      return;
+    }
+
+    log.info("Stopping cancelled video processing job. VideoId: {}", videoId);
+    stageThreads.getOrDefault(videoId, Set.of()).forEach(Thread::interrupt);
+  }
+
+  @EventListener
+  public void onCancellation(VideoProcessingCancellationEvent event) {
+    VideoProcessingJob job = event.job();
+    if (event.isCancelled()) {
+      // Nobody is running the job, so whatever it has left behind can go right away
+      cleanUpJobFiles(job);
+      return;
+    }
+
+    // Jobs running on other nodes are stopped by their own heartbeat
+    if (activeJobs.containsKey(job.getId())) {
+      stopCancelledJob(job.getVideoId());
+    }
+  }
+
+  private void runWorker() {
+    log.info("Video processing worker `{}` has started.", Thread.currentThread().getName());
+
+    while (!isShuttingDown.get() && !Thread.currentThread().isInterrupted()) {
+      Optional<VideoProcessingJob> claimedJob;
+      try {
+        claimedJob = videoProcessingQueueService.claimNext();
+        if (claimedJob.isEmpty()) {
+          videoProcessingQueueService.awaitNewJob(QUEUE_POLL_INTERVAL);
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (Exception e) {
+        log.error("Failed to claim a video processing job. Reason: ", e);
+        sleepQuietly(QUEUE_POLL_INTERVAL);
+        continue;
+      }
+
+      videoProcessingConfig.getActiveJobCount().incrementAndGet();
+      activeJobs.put(claimedJob.get().getId(), claimedJob.get().getVideoId());
+      try {
+        runJob(claimedJob.get());
+      } finally {
+        activeJobs.remove(claimedJob.get().getId());
+        videoProcessingConfig.getActiveJobCount().decrementAndGet();
+      }
+    }
+
+    log.info("Video processing worker `{}` has stopped.", Thread.currentThread().getName());
+  }
+
+  private void sleepQuietly(Duration duration) {
+    try {
+      Thread.sleep(duration);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sendHeartbeat() {
+    Map<UUID, UUID> runningJobs = Map.copyOf(activeJobs);
+    try {
+      videoProcessingQueueService.renewLeases(runningJobs.keySet());
+    } catch (Exception e) {
+      log.error("Failed to renew the leases of the running video processing jobs. Reason: ", e);
+    }
+
+    try {
+      for (UUID jobId : videoProcessingQueueService.findCancelRequestedJobIds(runningJobs.keySet())) {
+        stopCancelledJob(runningJobs.get(jobId));
+      }
+    } catch (Exception e) {
+      log.error("Failed to check the running video processing jobs for cancellations. Reason: ", e);
+    }
+
+    // Progress is only persisted this often, so the per-frame FFMPEG reports never reach the DB
+    runningJobs.forEach((jobId, videoId) -> videoProgressTracker.getSnapshot(videoId).ifPresent(snapshot -> {
+      try {
+        videoProcessingQueueService.recordProgress(jobId, snapshot);
+      } catch (Exception e) {
+        log.error("Failed to persist the progress of video processing job {}. Reason: ", jobId, e);
+      }
+    }));
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    videoProcessingConfig.setQueueDepthSupplier(videoProcessingQueueService::getQueueDepth);
+    if (!videoProcessingConfig.getRunMode().runsWorkers()) {
+      log.info("Video processing workers are disabled in `{}` run mode.", videoProcessingConfig.getRunMode());
+      return;
+    }
+    // Every job would fail on a worker that can't see the uploads, better not to claim any. An `All` node creates the
+    // directory along with its first upload.
+    Path videoDirectory = Paths.get(mediaStorageService.videoDirectoryString);
+    if (
+        videoProcessingConfig.getRunMode() == ApplicationRunMode.Worker
+            && (!Files.isDirectory(videoDirectory) || !Files.isWritable(videoDirectory))
+    ) {
+      throw new IllegalStateException(
+          "The video directory `" + videoDirectory + "` isn't a writable directory. Workers must share it with the API nodes."
+      );
+    }
+
+    int workerCount = Math.max(1, videoProcessingConfig.getConcurrentJobs());
+
+    AtomicInteger workerIndex = new AtomicInteger(0);
+    workerPool = Executors.newFixedThreadPool(
+        workerCount,
+        runnable -> new Thread(runnable, "video-worker-" + workerIndex.getAndIncrement())
+    );
+    for (int i = 0; i < workerCount; i++) {
+      workerPool.submit(this::runWorker);
+    }
+
+    long heartbeatIntervalInSeconds = videoProcessingConfig.getHeartbeatInterval().toSeconds();
+    heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "video-heartbeat"));
+    heartbeatScheduler.scheduleAtFixedRate(
+        this::sendHeartbeat,
+        heartbeatIntervalInSeconds,
+        heartbeatIntervalInSeconds,
+        TimeUnit.SECONDS
+    );
+
+    log.info(
+        "Video processing pool has started. Concurrent jobs: {}, FFMPEG threads per job: {}",
+        workerCount,
+        videoProcessingConfig.getThreadsPerJob()
+    );
+  }
+
+  /// Stops taking new jobs and waits for the in-flight ones to finish. Whatever is still running once the grace
+  /// period runs out gets interrupted and put back into the queue.
+  @PreDestroy
+  public void stop() {
+    if (workerPool == null || !isShuttingDown.compareAndSet(false, true)) {
+      return;
+    }
+
+    log.info("Stopping the video processing pool. Active jobs: {}", videoProcessingConfig.getActiveJobCount().get());
+    workerPool.shutdown();
+    try {
+      if (!workerPool.awaitTermination(videoProcessingConfig.getShutdownGracePeriodInSeconds(), TimeUnit.SECONDS)) {
+        log.warn("Video processing jobs didn't finish within the grace period. Interrupting them.");
+        stageExecutor.shutdownNow();
+        workerPool.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      stageExecutor.shutdownNow();
+      workerPool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    stageExecutor.shutdown();
+    heartbeatScheduler.shutdownNow();
   }
 }
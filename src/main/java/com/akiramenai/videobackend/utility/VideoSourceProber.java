@@ -0,0 +1,178 @@
+package com.akiramenai.videobackend.utility;
+
+import com.akiramenai.videobackend.model.ResultOrError;
+import com.akiramenai.videobackend.model.VideoProcessingErrors;
+import com.akiramenai.videobackend.model.VideoSourceInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.time.Duration;
+
+@Slf4j
+public class VideoSourceProber {
+  public static ResultOrError<VideoSourceInfo, VideoProcessingErrors> probe(File videoToProbe, Duration timeout) {
+    var res = ResultOrError.<VideoSourceInfo, VideoProcessingErrors>builder();
+
+    try {
+      ProcessBuilder probeCommand = new ProcessBuilder(
+          "ffprobe",
+          "-v", "error",
+          "-print_format", "json",
+          "-show_format",
+          "-show_streams",
+          videoToProbe.getAbsolutePath()
+      )
+          // Only stdout is drained, a full stderr pipe would block FFPROBE
+          .redirectError(ProcessBuilder.Redirect.INHERIT);
+      StringBuilder output = new StringBuilder();
+      int exitCode = ExternalProcessRunner.run(probeCommand, line -> output.append(line).append("\n"), timeout);
+      if (exitCode != 0) {
+        log.error("Failed to probe the video. FFPROBE exited with exit code: {}", exitCode);
+
+        return res
+            .errorType(VideoProcessingErrors.FailedToProcess)
+            .errorMessage("Failed to probe the video.")
+            .build();
+      }
+
+      JSONObject probeResult = new JSONObject(output.toString());
+      JSONObject videoStream = null, audioStream = null;
+      JSONArray streams = probeResult.optJSONArray("streams", new JSONArray());
+      for (int i = 0; i < streams.length(); i++) {
+        JSONObject stream = streams.getJSONObject(i);
+        String codecType = stream.optString("codec_type");
+        // Cover art shows up as a video stream as well, skip it
+        boolean isAttachedPicture = stream.optJSONObject("disposition", new JSONObject()).optInt("attached_pic") == 1;
+
+        if (videoStream == null && codecType.equals("video") && !isAttachedPicture) {
+          videoStream = stream;
+        } else if (audioStream == null && codecType.equals("audio")) {
+          audioStream = stream;
+        }
+      }
+      if (videoStream == null) {
+        return res
+            .errorType(VideoProcessingErrors.FailedToProcess)
+            .errorMessage("Uploaded file doesn't contain a video stream.")
+            .build();
+      }
+
+      int width = videoStream.getInt("width");
+      int height = videoStream.getInt("height");
+
+      // Anamorphic sources store fewer pixels than they're supposed to be displayed with
+      String[] sampleAspectRatio = videoStream.optString("sample_aspect_ratio", "1:1").split(":");
+      if (sampleAspectRatio.length == 2 && !sampleAspectRatio[0].equals("0") && !sampleAspectRatio[1].equals("0")) {
+        width = (int) Math.round(width * Double.parseDouble(sampleAspectRatio[0]) / Double.parseDouble(sampleAspectRatio[1]));
+      }
+
+      // Phone recordings are usually stored in landscape, with a rotation that turns them into portrait
+      if (Math.abs(getRotation(videoStream)) % 180 == 90) {
+        int rotatedWidth = height;
+        height = width;
+        width = rotatedWidth;
+      }
+
+      double duration = probeResult.optJSONObject("format", new JSONObject()).optDouble("duration", Double.NaN);
+      if (Double.isNaN(duration)) {
+        duration = videoStream.optDouble("duration", 0);
+      }
+
+      return res
+          .result(new VideoSourceInfo(
+              width,
+              height,
+              parseFrameRate(videoStream.optString("avg_frame_rate", "0/0")),
+              duration,
+              videoStream.optString("codec_name"),
+              audioStream == null ? null : audioStream.optString("codec_name"),
+              audioStream != null
+          ))
+          .build();
+    } catch (Exception e) {
+      log.error("Failed to run the command to probe the video. Reason: ", e);
+
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to probe the video.")
+          .build();
+    }
+  }
+
+  /// How many seconds of audio the first `maxSeconds` of the file hold. Only the packets are read, nothing gets decoded,
+  /// so it's cheap enough to ask of an upload that is still coming in.
+  public static ResultOrError<Double, VideoProcessingErrors> probeAudioLength(
+      File videoToProbe,
+      double maxSeconds,
+      Duration timeout
+  ) {
+    var res = ResultOrError.<Double, VideoProcessingErrors>builder();
+
+    try {
+      ProcessBuilder probeCommand = new ProcessBuilder(
+          "ffprobe",
+          "-v", "error",
+          "-select_streams", "a:0",
+          "-read_intervals", "%+" + maxSeconds,
+          "-show_entries", "packet=pts_time",
+          "-of", "csv=p=0",
+          videoToProbe.getAbsolutePath()
+      )
+          .redirectError(ProcessBuilder.Redirect.INHERIT);
+      // The timestamps don't have to start at 0
+      double[] timestampRange = {Double.MAX_VALUE, 0};
+      int exitCode = ExternalProcessRunner.run(probeCommand, line -> {
+        try {
+          double timestamp = Double.parseDouble(line.strip().replace(",", ""));
+          timestampRange[0] = Math.min(timestampRange[0], timestamp);
+          timestampRange[1] = Math.max(timestampRange[1], timestamp);
+        } catch (NumberFormatException ignored) {
+          // Packets without a timestamp
+        }
+      }, timeout);
+      if (exitCode != 0) {
+        log.error("Failed to probe the length of the audio. FFPROBE exited with exit code: {}", exitCode);
+
+        return res
+            .errorType(VideoProcessingErrors.FailedToProcess)
+            .errorMessage("Failed to probe the length of the audio.")
+            .build();
+      }
+
+      return res
+          .result(timestampRange[0] > timestampRange[1] ? 0 : timestampRange[1] - timestampRange[0])
+          .build();
+    } catch (Exception e) {
+      log.error("Failed to run the command to probe the length of the audio. Reason: ", e);
+
+      return res
+          .errorType(VideoProcessingErrors.FailedToProcess)
+          .errorMessage("Failed to probe the length of the audio.")
+          .build();
+    }
+  }
+
+  private static int getRotation(JSONObject videoStream) {
+    JSONArray sideDataList = videoStream.optJSONArray("side_data_list", new JSONArray());
+    for (int i = 0; i < sideDataList.length(); i++) {
+      JSONObject sideData = sideDataList.getJSONObject(i);
+      if (sideData.has("rotation")) {
+        return sideData.optInt("rotation");
+      }
+    }
+
+    return videoStream.optJSONObject("tags", new JSONObject()).optInt("rotate", 0);
+  }
+
+  // Frame rates come in as fractions, e.g. "30000/1001"
+  private static double parseFrameRate(String frameRate) {
+    String[] parts = frameRate.split("/");
+    if (parts.length != 2 || Double.parseDouble(parts[1]) == 0) {
+      return 0;
+    }
+
+    return Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]);
+  }
+}
@@ -0,0 +1,38 @@
+package com.akiramenai.videobackend.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class VideoRenditionTests {
+  @Test
+  void writesTheLadderAsAString() {
+    List<VideoRendition> renditions = List.of(
+        new VideoRendition(1920, 1080, 5000, 5350, 7500, VideoCodec.H264),
+        new VideoRendition(1920, 1080, 3250, 3478, 4875, VideoCodec.Hevc)
+    );
+
+    assertEquals("1920x1080@5000/5350/7500;1920x1080@3250/3478/4875:Hevc", VideoRendition.toLadderString(renditions));
+  }
+
+  @Test
+  void readsTheLadderBackFromItsString() {
+    List<VideoRendition> renditions = List.of(
+        new VideoRendition(1280, 720, 2500, 2675, 3750, VideoCodec.H264),
+        new VideoRendition(640, 360, 400, 428, 600, VideoCodec.H264),
+        new VideoRendition(1280, 720, 1375, 1471, 2063, VideoCodec.Av1)
+    );
+
+    assertEquals(renditions, VideoRendition.fromLadderString(VideoRendition.toLadderString(renditions)));
+  }
+
+  @Test
+  void readsRungsWithoutACodecAsH264() {
+    assertEquals(
+        List.of(new VideoRendition(854, 480, 800, 856, 1200, VideoCodec.H264)),
+        VideoRendition.fromLadderString("854x480@800/856/1200")
+    );
+  }
+}
@@ -0,0 +1,63 @@
+package com.akiramenai.videobackend.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FfmpegProgressParserTests {
+  @Test
+  void reportsEveryBlockOnItsProgressLine() {
+    List<FfmpegProgressParser.Progress> reports = new ArrayList<>();
+    FfmpegProgressParser parser = new FfmpegProgressParser(reports::add);
+
+    List.of(
+        "frame=120",
+        "fps=59.94",
+        "out_time_us=4000000",
+        "speed=1.98x",
+        "progress=continue",
+        "fps=60.0",
+        "out_time_us=8500000",
+        "speed=2.01x",
+        "progress=end"
+    ).forEach(parser);
+
+    assertEquals(2, reports.size());
+    assertEquals(new FfmpegProgressParser.Progress(4.0, 1.98, 59.94, false), reports.get(0));
+    assertEquals(new FfmpegProgressParser.Progress(8.5, 2.01, 60.0, true), reports.get(1));
+  }
+
+  @Test
+  void readsOutTimeMsAsMicroseconds() {
+    List<FfmpegProgressParser.Progress> reports = new ArrayList<>();
+    FfmpegProgressParser parser = new FfmpegProgressParser(reports::add);
+
+    parser.accept("out_time_ms=2500000");
+    parser.accept("progress=continue");
+
+    assertEquals(2.5, reports.getFirst().outTimeInSeconds(), 1e-9);
+  }
+
+  @Test
+  void keepsTheLastValuesWhileFfmpegReportsNotAvailable() {
+    List<FfmpegProgressParser.Progress> reports = new ArrayList<>();
+    FfmpegProgressParser parser = new FfmpegProgressParser(reports::add);
+
+    parser.accept("out_time_us=1000000");
+    parser.accept("speed=1.5x");
+    parser.accept("progress=continue");
+    parser.accept("out_time_us=N/A");
+    parser.accept("speed=N/A");
+    parser.accept("not a key value pair");
+    parser.accept("progress=continue");
+
+    assertEquals(reports.get(0), reports.get(1));
+    assertFalse(reports.get(1).isFinished());
+    assertTrue(reports.get(1).speed() > 0);
+  }
+}
@@ -0,0 +1,165 @@
+package com.akiramenai.videobackend.utility;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HlsPlaylistStitcherTests {
+  @TempDir
+  Path tempDirectory;
+
+  @Test
+  void continuesSegmentNumberingAcrossChunks() throws IOException {
+    Path firstChunk = writeChunk("c0", """
+        #EXTM3U
+        #EXT-X-VERSION:3
+        #EXT-X-TARGETDURATION:4
+        #EXT-X-MEDIA-SEQUENCE:0
+        #EXTINF:4.000000,
+        seg_000.ts
+        #EXTINF:2.500000,
+        seg_001.ts
+        #EXT-X-ENDLIST
+        """, "seg_000.ts", "seg_001.ts");
+    Path secondChunk = writeChunk("c1", """
+        #EXTM3U
+        #EXT-X-VERSION:3
+        #EXT-X-TARGETDURATION:6
+        #EXT-X-MEDIA-SEQUENCE:0
+        #EXTINF:6.006000,
+        seg_000.ts
+        #EXT-X-ENDLIST
+        """, "seg_000.ts");
+    Path targetPlaylist = tempDirectory.resolve("720p").resolve("prog.m3u8");
+
+    HlsPlaylistStitcher.stitch(List.of(firstChunk, secondChunk), targetPlaylist);
+
+    assertEquals("""
+        #EXTM3U
+        #EXT-X-VERSION:3
+        #EXT-X-TARGETDURATION:7
+        #EXT-X-MEDIA-SEQUENCE:0
+        #EXTINF:4.000000,
+        seg_000.ts
+        #EXTINF:2.500000,
+        seg_001.ts
+        #EXTINF:6.006000,
+        seg_002.ts
+        #EXT-X-ENDLIST
+        """, Files.readString(targetPlaylist));
+    assertEquals("c1/seg_000.ts", Files.readString(targetPlaylist.resolveSibling("seg_002.ts")));
+    assertFalse(Files.exists(firstChunk.resolveSibling("seg_000.ts")));
+  }
+
+  @Test
+  void keepsTheInitSegmentOfEveryChunk() throws IOException {
+    Path firstChunk = writeChunk("c0", """
+        #EXTM3U
+        #EXT-X-VERSION:7
+        #EXT-X-TARGETDURATION:4
+        #EXT-X-MAP:URI="init.mp4"
+        #EXTINF:4.000000,
+        seg_000.m4s
+        #EXT-X-ENDLIST
+        """, "init.mp4", "seg_000.m4s");
+    Path secondChunk = writeChunk("c1", """
+        #EXTM3U
+        #EXT-X-VERSION:7
+        #EXT-X-TARGETDURATION:4
+        #EXT-X-MAP:URI="init.mp4"
+        #EXTINF:3.000000,
+        seg_000.m4s
+        #EXT-X-ENDLIST
+        """, "init.mp4", "seg_000.m4s");
+    Path targetPlaylist = tempDirectory.resolve("720p").resolve("prog.m3u8");
+
+    HlsPlaylistStitcher.stitch(List.of(firstChunk, secondChunk), targetPlaylist);
+
+    assertEquals("""
+        #EXTM3U
+        #EXT-X-VERSION:7
+        #EXT-X-TARGETDURATION:4
+        #EXT-X-MEDIA-SEQUENCE:0
+        #EXT-X-MAP:URI="c000_init.mp4"
+        #EXTINF:4.000000,
+        seg_000.m4s
+        #EXT-X-MAP:URI="c001_init.mp4"
+        #EXTINF:3.000000,
+        seg_001.m4s
+        #EXT-X-ENDLIST
+        """, Files.readString(targetPlaylist));
+    assertEquals("c1/init.mp4", Files.readString(targetPlaylist.resolveSibling("c001_init.mp4")));
+  }
+
+  @Test
+  void movesTheMediaFileOfSingleFileRenditionsOnce() throws IOException {
+    Path chunk = writeChunk("c0", """
+        #EXTM3U
+        #EXT-X-VERSION:7
+        #EXT-X-TARGETDURATION:4
+        #EXT-X-MAP:URI="stream.mp4",BYTERANGE="800@0"
+        #EXTINF:4.000000,
+        #EXT-X-BYTERANGE:1000@800
+        stream.mp4
+        #EXTINF:4.000000,
+        #EXT-X-BYTERANGE:1200@1800
+        stream.mp4
+        #EXT-X-ENDLIST
+        """, "stream.mp4");
+    Path targetPlaylist = tempDirectory.resolve("720p").resolve("prog.m3u8");
+
+    HlsPlaylistStitcher.stitch(List.of(chunk), targetPlaylist);
+
+    assertEquals("""
+        #EXTM3U
+        #EXT-X-VERSION:7
+        #EXT-X-TARGETDURATION:4
+        #EXT-X-MEDIA-SEQUENCE:0
+        #EXT-X-MAP:URI="c000_stream.mp4",BYTERANGE="800@0"
+        #EXTINF:4.000000,
+        #EXT-X-BYTERANGE:1000@800
+        c000_stream.mp4
+        #EXTINF:4.000000,
+        #EXT-X-BYTERANGE:1200@1800
+        c000_stream.mp4
+        #EXT-X-ENDLIST
+        """, Files.readString(targetPlaylist));
+    assertTrue(Files.exists(targetPlaylist.resolveSibling("c000_stream.mp4")));
+  }
+
+  @Test
+  void sumsTheSegmentDurations() throws IOException {
+    Path playlist = tempDirectory.resolve("prog.m3u8");
+    Files.writeString(playlist, """
+        #EXTM3U
+        #EXT-X-TARGETDURATION:4
+        #EXTINF:4.000000,
+        seg_000.ts
+        #EXTINF:1.500000,
+        seg_001.ts
+        #EXT-X-ENDLIST
+        """);
+
+    assertEquals(5.5, HlsPlaylistStitcher.getDurationInSeconds(playlist), 1e-9);
+  }
+
+  // Every media file holds the path it was written to, so the tests can tell where it has been moved from
+  private Path writeChunk(String chunkName, String playlist, String... mediaFiles) throws IOException {
+    Path chunkDirectory = Files.createDirectories(tempDirectory.resolve("chunks").resolve(chunkName));
+    for (String mediaFile : mediaFiles) {
+      Files.writeString(chunkDirectory.resolve(mediaFile), chunkName + "/" + mediaFile);
+    }
+
+    Path chunkPlaylist = chunkDirectory.resolve("prog.m3u8");
+    Files.writeString(chunkPlaylist, playlist);
+    return chunkPlaylist;
+  }
+}
@@ -0,0 +1,77 @@
+package com.akiramenai.videobackend.utility;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobStageManifestTests {
+  @TempDir
+  Path tempDirectory;
+
+  @Test
+  void survivesTheRoundTripThroughJson() throws IOException {
+    Path masterPlaylist = Files.writeString(tempDirectory.resolve("master.m3u8"), "#EXTM3U\n");
+    JobStageManifest manifest = new JobStageManifest();
+    manifest.complete(JobStageManifest.FINGERPRINT, null);
+    manifest.complete(JobStageManifest.PLAYLISTS, JobStageManifest.fileChecksum(masterPlaylist));
+
+    JobStageManifest restoredManifest = JobStageManifest.fromJson(manifest.toJson());
+
+    assertTrue(restoredManifest.isComplete(JobStageManifest.FINGERPRINT));
+    assertTrue(restoredManifest.isVerified(JobStageManifest.PLAYLISTS, masterPlaylist));
+    assertFalse(restoredManifest.isComplete(JobStageManifest.TRANSCRIPT));
+  }
+
+  @Test
+  void startsEmptyWithoutJson() {
+    assertTrue(JobStageManifest.fromJson(null).isEmpty());
+    assertTrue(JobStageManifest.fromJson(" ").isEmpty());
+  }
+
+  @Test
+  void verifiesAFileAgainstItsChecksum() throws IOException {
+    Path vttFile = Files.writeString(tempDirectory.resolve("video.vtt"), "WEBVTT\n");
+    JobStageManifest manifest = new JobStageManifest();
+    manifest.complete(JobStageManifest.TRANSCRIPT, JobStageManifest.fileChecksum(vttFile));
+
+    assertTrue(manifest.isVerified(JobStageManifest.TRANSCRIPT, vttFile));
+
+    Files.writeString(vttFile, "WEBVTT\n\n00:00.000 --> 00:01.000\nChanged\n");
+    assertFalse(manifest.isVerified(JobStageManifest.TRANSCRIPT, vttFile));
+
+    Files.delete(vttFile);
+    assertFalse(manifest.isVerified(JobStageManifest.TRANSCRIPT, vttFile));
+  }
+
+  @Test
+  void verifiesADirectoryAgainstItsChecksum() throws IOException {
+    Path renditionDirectory = Files.createDirectories(tempDirectory.resolve("v720"));
+    Files.writeString(renditionDirectory.resolve("prog.m3u8"), "#EXTM3U\n");
+    Path segment = Files.writeString(renditionDirectory.resolve("seg_000.ts"), "segment");
+    JobStageManifest manifest = new JobStageManifest();
+    String stage = JobStageManifest.encodeStage("v720");
+    manifest.complete(stage, JobStageManifest.directoryChecksum(renditionDirectory));
+
+    assertTrue(manifest.isVerified(stage, renditionDirectory));
+
+    // A truncated segment changes its size
+    Files.writeString(segment, "seg");
+    assertFalse(manifest.isVerified(stage, renditionDirectory));
+  }
+
+  @Test
+  void doesNotVerifyStagesWithoutAChecksum() {
+    JobStageManifest manifest = new JobStageManifest();
+    manifest.complete(JobStageManifest.FINGERPRINT, null);
+
+    assertTrue(manifest.isComplete(JobStageManifest.FINGERPRINT));
+    assertFalse(manifest.isVerified(JobStageManifest.FINGERPRINT, tempDirectory));
+    assertFalse(manifest.isVerified(JobStageManifest.PLAYLISTS, tempDirectory));
+  }
+}
@@ -0,0 +1,93 @@
+package com.akiramenai.videobackend.utility;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingIngestTests {
+  @TempDir
+  Path tempDirectory;
+
+  @Test
+  void streamsMatroska() throws IOException {
+    byte[] header = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, 0x01, 0x00, 0x00, 0x00};
+
+    assertEquals(Optional.of(true), isStreamable(header));
+  }
+
+  @Test
+  void streamsMpegTsOnceTheSecondPacketHasArrived() throws IOException {
+    byte[] packets = new byte[2 * 188];
+    packets[0] = 0x47;
+    packets[188] = 0x47;
+
+    assertEquals(Optional.empty(), isStreamable(Arrays.copyOf(packets, 100)));
+    assertEquals(Optional.of(true), isStreamable(packets));
+  }
+
+  @Test
+  void streamsMp4sWithTheirMoovFirst() throws IOException {
+    byte[] mp4 = concat(box("ftyp", 16), box("moov", 32), box("mdat", 64));
+
+    assertEquals(Optional.of(true), isStreamable(mp4));
+  }
+
+  @Test
+  void streamsFragmentedMp4s() throws IOException {
+    byte[] mp4 = concat(box("ftyp", 16), box("styp", 16), box("moof", 32));
+
+    assertEquals(Optional.of(true), isStreamable(mp4));
+  }
+
+  @Test
+  void waitsForMp4sWithTheirMoovLast() throws IOException {
+    byte[] mp4 = concat(box("ftyp", 16), box("mdat", 64), box("moov", 32));
+
+    assertEquals(Optional.of(false), isStreamable(mp4));
+  }
+
+  @Test
+  void cannotTellBeforeTheFirstBoxesHaveArrived() throws IOException {
+    byte[] ftyp = box("ftyp", 16);
+
+    assertEquals(Optional.empty(), isStreamable(Arrays.copyOf(ftyp, 4)));
+    assertEquals(Optional.empty(), isStreamable(ftyp));
+  }
+
+  @Test
+  void waitsForUnknownContainers() throws IOException {
+    byte[] avi = "RIFF\0\0\0\0AVI LIST".getBytes(StandardCharsets.ISO_8859_1);
+
+    assertEquals(Optional.of(false), isStreamable(avi));
+  }
+
+  private Optional<Boolean> isStreamable(byte[] content) throws IOException {
+    Path file = Files.write(tempDirectory.resolve("upload.part"), content);
+    return StreamingIngest.isStreamable(file);
+  }
+
+  private static byte[] box(String type, int size) {
+    ByteBuffer box = ByteBuffer.allocate(size);
+    box.putInt(size);
+    box.put(type.getBytes(StandardCharsets.ISO_8859_1));
+    return box.array();
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      content.writeBytes(part);
+    }
+    return content.toByteArray();
+  }
+}
@@ -0,0 +1,57 @@
+package com.akiramenai.videobackend.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTests {
+  // Slow enough that nothing refills while a test runs
+  private static final double NO_REFILL = 1e-6;
+
+  @Test
+  void admitsUpToItsCapacity() {
+    TokenBucket bucket = new TokenBucket(2, NO_REFILL);
+
+    assertTrue(bucket.tryAcquire().isEmpty());
+    assertTrue(bucket.tryAcquire().isEmpty());
+    assertTrue(bucket.tryAcquire().isPresent());
+  }
+
+  @Test
+  void admitsAgainOnceATokenIsReleased() {
+    TokenBucket bucket = new TokenBucket(1, NO_REFILL);
+    bucket.tryAcquire();
+    assertFalse(bucket.isFull());
+
+    bucket.release();
+
+    assertTrue(bucket.isFull());
+    assertTrue(bucket.tryAcquire().isEmpty());
+  }
+
+  @Test
+  void doesNotGrowPastItsCapacity() {
+    TokenBucket bucket = new TokenBucket(1, NO_REFILL);
+
+    bucket.release();
+
+    assertTrue(bucket.tryAcquire().isEmpty());
+    assertTrue(bucket.tryAcquire().isPresent());
+  }
+
+  @Test
+  void tellsHowLongUntilTheNextToken() {
+    TokenBucket bucket = new TokenBucket(1, 0.5);
+    bucket.tryAcquire();
+
+    Optional<Duration> retryAfter = bucket.tryAcquire();
+
+    assertTrue(retryAfter.isPresent());
+    assertTrue(retryAfter.get().compareTo(Duration.ofMillis(1900)) > 0, retryAfter.get().toString());
+    assertTrue(retryAfter.get().compareTo(Duration.ofSeconds(2)) <= 0, retryAfter.get().toString());
+  }
+}